@@ -0,0 +1,89 @@
+package de.kune.phoenix.server;
+
+import static de.kune.phoenix.server.BenchmarkMessages.message;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Measures the time from adding a message until all of the configured number
+ * of waiters for it have been woken, including the add itself. The difference
+ * to a single waiter is the cost of waking the others. Waiters are registered
+ * with {@link ObjectStore#awaitAsync(java.util.function.Predicate)} before
+ * each invocation on an emptied store, so registration is not measured.
+ */
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AwaitBenchmark {
+
+	@Param({ "TRANSIENT", "FILESYSTEM", "SEGMENTEDLOG", "PARTITIONED" })
+	public StoreType store;
+
+	@Param({ "1", "100", "1000" })
+	public int waiters;
+
+	private Path directory;
+	private ObjectStore<Message, String, String> objectStore;
+	private long next;
+	private Message message;
+	private List<CompletableFuture<Set<Message>>> woken;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		directory = StoreType.createDirectory();
+		objectStore = store.create(directory);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		objectStore.clear();
+		StoreType.deleteDirectory(directory);
+	}
+
+	@Setup(Level.Invocation)
+	public void await() {
+		objectStore.clear();
+		message = message(next++);
+		String id = message.getId();
+		woken = new ArrayList<>(waiters);
+		for (int i = 0; i < waiters; i++) {
+			woken.add(objectStore.awaitAsync(m -> m.getId().equals(id)));
+		}
+	}
+
+	@Benchmark
+	public Set<Message> wakeUp() {
+		message.setSequenceKey(objectStore.generateSequenceKey());
+		objectStore.add(message);
+		Set<Message> result = null;
+		for (CompletableFuture<Set<Message>> future : woken) {
+			result = future.join();
+		}
+		return result;
+	}
+
+}
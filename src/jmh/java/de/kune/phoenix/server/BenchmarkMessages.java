@@ -0,0 +1,50 @@
+package de.kune.phoenix.server;
+
+import java.util.Date;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Creates the messages the benchmarks add.
+ */
+class BenchmarkMessages {
+
+	static final int RECIPIENTS = 100;
+
+	static final int CONVERSATIONS = 1000;
+
+	private static final byte[] CONTENT = new byte[64];
+
+	private BenchmarkMessages() {
+	}
+
+	/**
+	 * Returns the id of the recipient of the message with the specified
+	 * number.
+	 */
+	static String recipientId(long number) {
+		return "recipient-" + number % RECIPIENTS;
+	}
+
+	/**
+	 * Creates a message with the specified number sent to one of
+	 * {@value #RECIPIENTS} recipients in one of {@value #CONVERSATIONS}
+	 * conversations.
+	 *
+	 * @param number
+	 *            the number
+	 * @return the message
+	 */
+	static Message message(long number) {
+		Message result = new Message();
+		result.setId("message-" + number);
+		result.setSenderId("sender");
+		result.setRecipientIds(new String[] { recipientId(number) });
+		result.setConversationId("conversation-" + number % CONVERSATIONS);
+		result.setMessageType(Message.Type.PLAIN_TEXT);
+		result.setContent(CONTENT);
+		result.setTimestamp(new Date());
+		return result;
+	}
+
+}
@@ -0,0 +1,79 @@
+package de.kune.phoenix.server;
+
+import static de.kune.phoenix.server.BenchmarkMessages.message;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Measures the throughput of adding messages one at a time and in batches of
+ * {@value #BATCH_SIZE}, in messages per second. Each iteration starts with an
+ * empty store.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ObjectStoreAddBenchmark {
+
+	static final int BATCH_SIZE = 100;
+
+	@Param({ "TRANSIENT", "FILESYSTEM", "SEGMENTEDLOG", "PARTITIONED" })
+	public StoreType store;
+
+	private Path directory;
+	private ObjectStore<Message, String, String> objectStore;
+	private long next;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		directory = StoreType.createDirectory();
+		objectStore = store.create(directory);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		objectStore.clear();
+		StoreType.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public void add() {
+		Message message = message(next++);
+		message.setSequenceKey(objectStore.generateSequenceKey());
+		objectStore.add(message);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public Map<String, String> addAllIfAbsent() {
+		List<Message> batch = new ArrayList<>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			batch.add(message(next++));
+		}
+		return objectStore.addAllIfAbsent(batch, Message::setSequenceKey);
+	}
+
+}
@@ -0,0 +1,115 @@
+package de.kune.phoenix.server;
+
+import static de.kune.phoenix.server.BenchmarkMessages.message;
+import static de.kune.phoenix.server.BenchmarkMessages.recipientId;
+import static de.kune.phoenix.server.MessagePredicates.matching;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Measures the latency of queries on a store holding the configured number of
+ * messages, sent to {@value BenchmarkMessages#RECIPIENTS} recipients in turn.
+ * As the file system store lists its directory to check for present ids,
+ * filling it with a million messages takes hours, restrict the parameters
+ * with e.g. <code>-p store=TRANSIENT,SEGMENTEDLOG</code> if needed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ObjectStoreQueryBenchmark {
+
+	private static final int FILL_BATCH_SIZE = 1000;
+
+	private static final int PAGE_SIZE = 100;
+
+	@Param({ "TRANSIENT", "FILESYSTEM", "SEGMENTEDLOG", "PARTITIONED" })
+	public StoreType store;
+
+	@Param({ "10000", "100000", "1000000" })
+	public int size;
+
+	private Path directory;
+	private ObjectStore<Message, String, String> objectStore;
+	private String[] sequenceKeys;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		directory = StoreType.createDirectory();
+		objectStore = store.create(directory);
+		sequenceKeys = new String[size];
+		for (int first = 0; first < size; first += FILL_BATCH_SIZE) {
+			List<Message> batch = new ArrayList<>(FILL_BATCH_SIZE);
+			for (int i = first; i < Math.min(size, first + FILL_BATCH_SIZE); i++) {
+				batch.add(message(i));
+			}
+			objectStore.addAllIfAbsent(batch, Message::setSequenceKey);
+			for (Message message : batch) {
+				sequenceKeys[Integer.parseInt(message.getId().substring("message-".length()))] = message
+						.getSequenceKey();
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		objectStore.clear();
+		StoreType.deleteDirectory(directory);
+	}
+
+	private int randomNumber() {
+		return ThreadLocalRandom.current().nextInt(size);
+	}
+
+	/**
+	 * Gets the messages of one recipient, a hundredth of all messages.
+	 */
+	@Benchmark
+	public Set<Message> getByPredicate() {
+		return objectStore.get(matching(recipientId(randomNumber()), null, null));
+	}
+
+	/**
+	 * Gets the next page of messages of one recipient after a random message,
+	 * as a poll does.
+	 */
+	@Benchmark
+	public Page<Message, String> getAfter() {
+		int number = randomNumber();
+		return objectStore.getAfter(sequenceKeys[number], matching(recipientId(number), null, null), PAGE_SIZE);
+	}
+
+	@Benchmark
+	public boolean containsPresent() {
+		return objectStore.contains("message-" + randomNumber());
+	}
+
+	@Benchmark
+	public boolean containsAbsent() {
+		return objectStore.contains("absent-" + randomNumber());
+	}
+
+}
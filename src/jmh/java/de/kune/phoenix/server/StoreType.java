@@ -0,0 +1,90 @@
+package de.kune.phoenix.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * The message store implementations benchmarked in their default
+ * configuration, selected by the <code>store</code> parameter of the
+ * benchmarks. A new store implementation is benchmarked by adding a constant
+ * here.
+ */
+public enum StoreType {
+
+	TRANSIENT {
+		@Override
+		ObjectStore<Message, String, String> create(Path directory) {
+			return new TransientInMemoryObjectStore<>();
+		}
+	},
+
+	FILESYSTEM {
+		@Override
+		ObjectStore<Message, String, String> create(Path directory) {
+			return FileSystemBackedObjectStore.getInstance(directory.toString());
+		}
+	},
+
+	SEGMENTEDLOG {
+		@Override
+		ObjectStore<Message, String, String> create(Path directory) {
+			return SegmentedLogObjectStore.getInstance(directory.toString(), 16 * 1024 * 1024);
+		}
+	},
+
+	PARTITIONED {
+		@Override
+		ObjectStore<Message, String, String> create(Path directory) {
+			List<ObjectStore<Message, String, String>> shards = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				shards.add(new TransientInMemoryObjectStore<>());
+			}
+			return new PartitionedObjectStore<>(shards, Message::getConversationId);
+		}
+	};
+
+	/**
+	 * Creates an empty store.
+	 *
+	 * @param directory
+	 *            an empty directory for stores persisting their elements
+	 * @return the store
+	 */
+	abstract ObjectStore<Message, String, String> create(Path directory);
+
+	/**
+	 * Creates a temporary directory for a store.
+	 *
+	 * @return the directory
+	 */
+	static Path createDirectory() {
+		try {
+			return Files.createTempDirectory("phoenix-benchmark");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Deletes a directory created by {@link #createDirectory()} with its
+	 * contents.
+	 *
+	 * @param directory
+	 *            the directory
+	 */
+	static void deleteDirectory(Path directory) {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
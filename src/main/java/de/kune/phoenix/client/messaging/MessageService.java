@@ -2,19 +2,29 @@ package de.kune.phoenix.client.messaging;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.fusesource.restygwt.client.Defaults;
+import org.fusesource.restygwt.client.JsonEncoderDecoder;
 import org.fusesource.restygwt.client.Method;
 import org.fusesource.restygwt.client.MethodCallback;
 
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.json.client.JSONParser;
 import com.google.gwt.user.client.Timer;
 
 import de.kune.phoenix.client.functional.FailureHandler;
 import de.kune.phoenix.client.functional.SuccessHandler;
+import de.kune.phoenix.client.messaging.communication.EventSource;
 import de.kune.phoenix.client.messaging.communication.RestMessageService;
+import de.kune.phoenix.client.messaging.communication.WebSocket;
+import de.kune.phoenix.shared.Identifiable;
 import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.MessageFrame;
+import de.kune.phoenix.shared.Sequenced;
 
 public class MessageService {
 
@@ -26,6 +36,68 @@ public class MessageService {
 		void handleServerIdentifierChange(String oldServerIdentifier, String newServerIdenfier, MessageService service);
 	}
 
+	/**
+	 * The transport messages are received and sent with.
+	 */
+	public static enum Transport {
+		/**
+		 * Long polls the REST API for received messages and posts sent ones.
+		 */
+		POLLING,
+
+		/**
+		 * Receives messages from a server-sent event stream, which the browser
+		 * resumes after the last received message on reconnection, and posts
+		 * sent ones. Falls back to polling if the stream cannot be opened or
+		 * fails repeatedly, e.g. if it is requested from a cluster node not
+		 * owning the recipient.
+		 */
+		EVENT_SOURCE,
+
+		/**
+		 * Receives and sends messages over a single WebSocket connection.
+		 * Messages are posted to the REST API while it is not connected. In a
+		 * cluster, the connection must reach the node owning the recipient,
+		 * other nodes reject the subscription.
+		 */
+		WEB_SOCKET;
+	}
+
+	public static interface MessageFrameCodec extends JsonEncoderDecoder<MessageFrame> {
+	}
+
+	public static interface MessageListCodec extends JsonEncoderDecoder<List<Message>> {
+	}
+
+	/**
+	 * Messages posted over the WebSocket connection awaiting the server's
+	 * answer.
+	 */
+	private static class PendingPost {
+		private final List<Message> messages;
+		private final SuccessHandler<Message> successHandler;
+		private final FailureHandler<Message> failureHandler;
+
+		private PendingPost(List<Message> messages, SuccessHandler<Message> successHandler,
+				FailureHandler<Message> failureHandler) {
+			this.messages = messages;
+			this.successHandler = successHandler;
+			this.failureHandler = failureHandler;
+		}
+
+		private void succeed() {
+			for (Message m : messages) {
+				successHandler.handle(m);
+			}
+		}
+
+		private void fail(Throwable exception) {
+			for (Message m : messages) {
+				failureHandler.handle(exception, m);
+			}
+		}
+	}
+
 	private static final MessageService instance = new MessageService();
 	private static final int pollInterval = 250;
 
@@ -36,7 +108,6 @@ public class MessageService {
 	private final RestMessageService restMessageService;
 	private final Timer pollingRestReceiverTimer = new Timer() {
 		private int connectionFailureCount = 0;
-		private String lastReceivedSequenceKey;
 
 		@Override
 		public void run() {
@@ -78,21 +149,31 @@ public class MessageService {
 					pollingRestReceiverTimer.schedule(delay);
 				}
 
-				private void updateLastReceivedSequenceKey(List<Message> response) {
-					for (Message r : response) {
-						if (lastReceivedSequenceKey == null
-								|| r.getSequenceKey().compareTo(lastReceivedSequenceKey) > 0) {
-							lastReceivedSequenceKey = r.getSequenceKey();
-						}
-					}
-				}
-
 			};
 			GWT.log("last received sequence key: " + lastReceivedSequenceKey);
 			restMessageService.get(connected, lastReceivedSequenceKey, recipientId, messageHandler);
 		}
 	};
 
+	private final Timer webSocketReconnectTimer = new Timer() {
+		@Override
+		public void run() {
+			connectWebSocket();
+		}
+	};
+
+	private static final int MAX_EVENT_SOURCE_FAILURES = 3;
+
+	private final MessageFrameCodec messageFrameCodec = GWT.create(MessageFrameCodec.class);
+	private final MessageListCodec messageListCodec = GWT.create(MessageListCodec.class);
+	private EventSource eventSource;
+	private int eventSourceFailureCount;
+	private final Map<String, PendingPost> pendingPosts = new HashMap<>();
+	private WebSocket webSocket;
+	private int webSocketFailureCount;
+	private Transport transport = Transport.POLLING;
+	private String lastReceivedSequenceKey;
+	private long lastReceivedSequence = Sequenced.NO_SEQUENCE;
 	private boolean connected;
 	private String serverIdentifier;
 	private List<ConnectionStateChangeHandler> connectionStateChangeHandlers = new ArrayList<>();
@@ -107,6 +188,162 @@ public class MessageService {
 		restMessageService = GWT.create(RestMessageService.class);
 	}
 
+	private void updateLastReceivedSequenceKey(List<Message> response) {
+		for (Message r : response) {
+			if (r.sequence() > lastReceivedSequence) {
+				lastReceivedSequence = r.sequence();
+				lastReceivedSequenceKey = r.getSequenceKey();
+			}
+		}
+	}
+
+	private void setConnected(boolean connected) {
+		if (this.connected != connected) {
+			GWT.log(connected ? "(re-)established connection" : "lost connection");
+			this.connected = connected;
+			invokeConnectionStateChangeHandlers();
+		}
+	}
+
+	private static String baseUri() {
+		return GWT.getModuleBaseURL().replace(GWT.getModuleName() + "/", "");
+	}
+
+	private String webSocketUri() {
+		return baseUri().replaceFirst("^http", "ws") + "ws/message";
+	}
+
+	private String eventSourceUri() {
+		String result = baseUri() + "es/message?recipientId=" + URL.encodeQueryString(recipientId);
+		if (lastReceivedSequenceKey != null) {
+			result += "&last-transmission=" + URL.encodeQueryString(lastReceivedSequenceKey);
+		}
+		return result;
+	}
+
+	private void connectEventSource() {
+		if (!EventSource.isSupported()) {
+			fallBackToPolling();
+			return;
+		}
+		eventSource = EventSource.connect(eventSourceUri(), new EventSource.EventSourceHandler() {
+			@Override
+			public void handleOpen(EventSource es) {
+				eventSourceFailureCount = 0;
+				setConnected(true);
+			}
+
+			@Override
+			public void handleMessage(EventSource es, String messageType, String message) {
+				List<Message> messages = messageListCodec.decode(JSONParser.parseStrict(message));
+				GWT.log("received messages " + messages);
+				updateLastReceivedSequenceKey(messages);
+				MessageProcessor.instance().process(messages);
+			}
+
+			@Override
+			public void handleClose(EventSource es) {
+				handleError(es, null, null);
+			}
+
+			@Override
+			public void handleError(EventSource es, String messageType, String message) {
+				if (es != eventSource) {
+					return;
+				}
+				setConnected(false);
+				eventSourceFailureCount++;
+				// Unless closed, the browser reconnects, resuming after the id
+				// of the last received event.
+				if (es.getState() == EventSource.State.CLOSED || eventSourceFailureCount >= MAX_EVENT_SOURCE_FAILURES) {
+					GWT.log("event stream failed " + eventSourceFailureCount + " times");
+					fallBackToPolling();
+				}
+			}
+		});
+	}
+
+	private void fallBackToPolling() {
+		GWT.log("falling back to polling");
+		if (eventSource != null) {
+			eventSource.close();
+			eventSource = null;
+		}
+		transport = Transport.POLLING;
+		pollingRestReceiverTimer.schedule(0);
+	}
+
+	private void connectWebSocket() {
+		webSocket = WebSocket.connect(webSocketUri(), new WebSocket.WebSocketHandler() {
+			@Override
+			public void handleOpen(WebSocket ws) {
+				webSocketFailureCount = 0;
+				setConnected(true);
+				MessageFrame subscribe = MessageFrame.of(MessageFrame.Type.SUBSCRIBE);
+				subscribe.setRecipientId(recipientId);
+				subscribe.setSequenceKey(lastReceivedSequenceKey);
+				send(ws, subscribe);
+			}
+
+			@Override
+			public void handleMessage(WebSocket ws, String message) {
+				MessageFrame frame = messageFrameCodec.decode(JSONParser.parseStrict(message));
+				switch (frame.getType()) {
+				case MESSAGES:
+					GWT.log("received messages " + frame.getMessages());
+					updateLastReceivedSequenceKey(frame.getMessages());
+					MessageProcessor.instance().process(frame.getMessages());
+					break;
+				case POSTED:
+					PendingPost posted = pendingPosts.remove(frame.getRequestId());
+					if (posted != null) {
+						posted.succeed();
+					}
+					break;
+				case ERROR:
+					PendingPost failed = pendingPosts.remove(frame.getRequestId());
+					if (failed != null) {
+						failed.fail(new IllegalStateException(frame.getError()));
+					} else {
+						GWT.log("web socket error: " + frame.getError());
+					}
+					break;
+				default:
+					GWT.log("unexpected frame type " + frame.getType());
+				}
+			}
+
+			@Override
+			public void handleClose(WebSocket ws) {
+				if (ws != webSocket) {
+					return;
+				}
+				webSocket = null;
+				setConnected(false);
+				List<PendingPost> failed = new ArrayList<>(pendingPosts.values());
+				pendingPosts.clear();
+				for (PendingPost p : failed) {
+					p.fail(new IllegalStateException("web socket closed"));
+				}
+				if (transport == Transport.WEB_SOCKET) {
+					webSocketFailureCount++;
+					int delay = Math.min(webSocketFailureCount * webSocketFailureCount * 250, 60 * 1000);
+					GWT.log("web socket closed " + webSocketFailureCount + " times, reconnecting in " + delay + "ms");
+					webSocketReconnectTimer.schedule(delay);
+				}
+			}
+
+			@Override
+			public void handleError(WebSocket ws, String message) {
+				GWT.log("web socket error: " + message);
+			}
+		});
+	}
+
+	private void send(WebSocket ws, MessageFrame frame) {
+		ws.send(messageFrameCodec.encode(frame).toString());
+	}
+
 	private void invokeConnectionStateChangeHandlers() {
 		GWT.log("invoking connection state change handlers");
 		for (ConnectionStateChangeHandler h : connectionStateChangeHandlers) {
@@ -226,6 +463,14 @@ public class MessageService {
 		messagesToSend.addAll(outgoingMessageQueue);
 		outgoingMessageQueue.clear();
 		messagesToSend.addAll(messages);
+		if (webSocket != null && webSocket.getState() == WebSocket.State.CONNECTED) {
+			MessageFrame post = MessageFrame.of(MessageFrame.Type.POST);
+			post.setRequestId(Identifiable.generateStringId(16));
+			post.setMessages(messagesToSend);
+			pendingPosts.put(post.getRequestId(), new PendingPost(messagesToSend, successHandler, failureHandler));
+			send(webSocket, post);
+			return messages;
+		}
 		restMessageService.post(messagesToSend, new MethodCallback<Void>() {
 			@Override
 			public void onFailure(Method method, Throwable exception) {
@@ -259,12 +504,40 @@ public class MessageService {
 	}
 
 	public void start(String recipientId) {
+		start(recipientId, Transport.EVENT_SOURCE);
+	}
+
+	/**
+	 * Starts receiving the messages of the specified recipient.
+	 * 
+	 * @param recipientId
+	 *            the recipient id
+	 * @param transport
+	 *            the transport to receive and send messages with
+	 */
+	public void start(String recipientId, Transport transport) {
 		this.recipientId = recipientId;
-		pollingRestReceiverTimer.schedule(0);
+		this.transport = transport;
+		if (transport == Transport.WEB_SOCKET) {
+			connectWebSocket();
+		} else if (transport == Transport.EVENT_SOURCE) {
+			connectEventSource();
+		} else {
+			pollingRestReceiverTimer.schedule(0);
+		}
 	}
 
 	public void stop() {
 		pollingRestReceiverTimer.cancel();
+		webSocketReconnectTimer.cancel();
+		transport = Transport.POLLING;
+		if (webSocket != null) {
+			webSocket.close();
+		}
+		if (eventSource != null) {
+			eventSource.close();
+			eventSource = null;
+		}
 	}
 
 	public boolean isConnected() {
@@ -18,6 +18,13 @@ public class EventSource {
 		void handleError(EventSource es, String messageType, String message);
 	}
 
+	/**
+	 * Returns whether the browser supports server-sent events.
+	 */
+	public static native boolean isSupported() /*-{
+		return !!$wnd.EventSource;
+	}-*/;
+
 	public static EventSource connect(String uri, EventSource.EventSourceHandler handler) {
 		return new EventSource(uri, handler);
 	}
@@ -40,15 +47,8 @@ public class EventSource {
 
 			@Override
 			public void handleMessage(EventSource es, String messageType, String message) {
-				StringBuilder result = new StringBuilder();
-				for (String line : message.split("\n")) {
-					if (line.toLowerCase().startsWith("data:")) {
-						line = line.substring(5).trim();
-						result.append(line);
-						result.append("\n");
-					}
-				}
-				handler.handleMessage(es, messageType, result.toString());
+				// The browser has already joined the data lines of the event.
+				handler.handleMessage(es, messageType, message);
 			}
 
 			@Override
@@ -94,21 +94,21 @@ public class EventSource {
 		}-*/;
 
 		private native final void connect(EventSource.EventSourceHandler handler) /*-{
-			var es = new EventSource(this.uri);
+			var es = new $wnd.EventSource(this.uri);
 			var container = this.container;
 			this.es = es;
 			this.onMessage = function(evt) {
-				handler.@de.kune.phoenix.client.messaging.MessageService.EventSource.EventSourceHandler::handleMessage(Lde/kune/phoenix/client/messaging/MessageService$EventSource;Ljava/lang/String;Ljava/lang/String;)(container,evt.event,evt.data);
+				handler.@de.kune.phoenix.client.messaging.communication.EventSource.EventSourceHandler::handleMessage(Lde/kune/phoenix/client/messaging/communication/EventSource;Ljava/lang/String;Ljava/lang/String;)(container,evt.type,evt.data);
 			}; 
 			this.es.addEventListener('message', this.onMessage);
 			this.es.addEventListener('open', function(evt) {
-				handler.@de.kune.phoenix.client.messaging.MessageService.EventSource.EventSourceHandler::handleOpen(Lde/kune/phoenix/client/messaging/MessageService$EventSource;)(container);
+				handler.@de.kune.phoenix.client.messaging.communication.EventSource.EventSourceHandler::handleOpen(Lde/kune/phoenix/client/messaging/communication/EventSource;)(container);
 			});
 			this.es.addEventListener('close', function(evt) {
-				handler.@de.kune.phoenix.client.messaging.MessageService.EventSource.EventSourceHandler::handleClose(Lde/kune/phoenix/client/messaging/MessageService$EventSource;)(container);
+				handler.@de.kune.phoenix.client.messaging.communication.EventSource.EventSourceHandler::handleClose(Lde/kune/phoenix/client/messaging/communication/EventSource;)(container);
 			});
 			this.es.addEventListener('error', function(evt) {
-				handler.@de.kune.phoenix.client.messaging.MessageService.EventSource.EventSourceHandler::handleError(Lde/kune/phoenix/client/messaging/MessageService$EventSource;Ljava/lang/String;Ljava/lang/String;)(container,evt.event,evt.data);
+				handler.@de.kune.phoenix.client.messaging.communication.EventSource.EventSourceHandler::handleError(Lde/kune/phoenix/client/messaging/communication/EventSource;Ljava/lang/String;Ljava/lang/String;)(container,evt.type,evt.data);
 			});
 		}-*/;
 
@@ -67,16 +67,16 @@ public class WebSocket {
 			this.ws = ws;
 			var container = this.container;
 			this.ws.onopen = function(evt) {
-				handler.@de.kune.phoenix.client.messaging.MessageService.WebSocket.WebSocketHandler::handleOpen(Lde/kune/phoenix/client/messaging/MessageService$WebSocket;)(container);
+				handler.@de.kune.phoenix.client.messaging.communication.WebSocket.WebSocketHandler::handleOpen(Lde/kune/phoenix/client/messaging/communication/WebSocket;)(container);
 			};
 			this.ws.onclose = function(evt) {
-				handler.@de.kune.phoenix.client.messaging.MessageService.WebSocket.WebSocketHandler::handleClose(Lde/kune/phoenix/client/messaging/MessageService$WebSocket;)(container);
+				handler.@de.kune.phoenix.client.messaging.communication.WebSocket.WebSocketHandler::handleClose(Lde/kune/phoenix/client/messaging/communication/WebSocket;)(container);
 			};
 			this.ws.onmessage = function(evt) {
-				handler.@de.kune.phoenix.client.messaging.MessageService.WebSocket.WebSocketHandler::handleMessage(Lde/kune/phoenix/client/messaging/MessageService$WebSocket;Ljava/lang/String;)(container,evt.data);
+				handler.@de.kune.phoenix.client.messaging.communication.WebSocket.WebSocketHandler::handleMessage(Lde/kune/phoenix/client/messaging/communication/WebSocket;Ljava/lang/String;)(container,evt.data);
 			};
 			this.ws.onerror = function(evt) {
-				handler.@de.kune.phoenix.client.messaging.MessageService.WebSocket.WebSocketHandler::handleError(Lde/kune/phoenix/client/messaging/MessageService$WebSocket;Ljava/lang/String;)(container,evt.data);
+				handler.@de.kune.phoenix.client.messaging.communication.WebSocket.WebSocketHandler::handleError(Lde/kune/phoenix/client/messaging/communication/WebSocket;Ljava/lang/String;)(container,evt.data);
 			};
 		}-*/;
 
@@ -1,9 +1,22 @@
 package de.kune.phoenix.server;
 
+import static de.kune.phoenix.server.MessagePredicates.withMessageIndexes;
+import static java.lang.String.format;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import javax.inject.Singleton;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 
 import de.kune.phoenix.shared.Message;
@@ -18,8 +31,271 @@ public class ApplicationConfiguration {
 
 	@Bean
 	@Singleton
-	public ObjectStore<Message, String, String> messageStore() {
-		return new FileSystemBackedObjectStore<>();
+	public LongPollSettings longPollSettings() {
+		return new LongPollSettings();
+	}
+
+	@Bean
+	@Singleton
+	public PagingSettings pagingSettings() {
+		return new PagingSettings();
+	}
+
+	@Bean
+	@Singleton
+	public DeliveryCursors deliveryCursors(SequenceKeyGenerator sequenceKeyGenerator) {
+		return new DeliveryCursors(sequenceKeyGenerator::highest);
+	}
+
+	@Bean
+	@Singleton
+	public SubscriptionHub subscriptionHub(ObjectStore<Message, String, String> messageStore) {
+		return new SubscriptionHub(messageStore);
+	}
+
+	/**
+	 * Returns the collector of delivered messages, running periodically if
+	 * an interval is configured.
+	 */
+	@Bean(destroyMethod = "stop")
+	@Singleton
+	public DeliveredMessageCollector deliveredMessageCollector(ObjectStore<Message, String, String> messageStore,
+			DeliveryCursors deliveryCursors, @Value("${delivery.gc.interval:0}") long interval) {
+		DeliveredMessageCollector collector = new DeliveredMessageCollector(messageStore, deliveryCursors);
+		if (interval > 0) {
+			collector.start(interval, TimeUnit.MILLISECONDS);
+		}
+		return collector;
+	}
+
+	/**
+	 * Returns the small pool shared by all WebSocket connections to send
+	 * their messages.
+	 */
+	@Bean(destroyMethod = "shutdownNow")
+	@Singleton
+	public ExecutorService messageSocketDispatcher() {
+		return Executors.newFixedThreadPool(2, r -> {
+			Thread thread = new Thread(r, "message-socket-dispatcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Returns the replicator, following the configured leader if any.
+	 */
+	@Bean(destroyMethod = "stop")
+	@Singleton
+	public Replicator replicator(ObjectStore<Message, String, String> messageStore,
+			@Value("${replication.leader:}") String leader, @Value("${replication.pagesize:1000}") int pageSize,
+			@Value("${replication.wait:30000}") long wait) {
+		Replicator replicator = new Replicator(messageStore, leader.isEmpty() ? null : URI.create(leader), pageSize,
+				wait);
+		if (replicator.isFollower()) {
+			replicator.start();
+		}
+		return replicator;
+	}
+
+	/**
+	 * Returns the router of the cluster configured by a ring configuration
+	 * file, checked for changes in the configured interval. Clustered nodes
+	 * must generate sequence keys with a hybrid logical clock and share a
+	 * secret authenticating the requests they route to each other.
+	 */
+	@Bean(destroyMethod = "close")
+	@Singleton
+	public ClusterRouter clusterRouter(ObjectStore<Message, String, String> messageStore,
+			DeliveryCursors deliveryCursors, SequenceKeyGenerator sequenceKeyGenerator,
+			@Value("${cluster.config:}") String config,
+			@Value("${cluster.nodeid:}") String nodeId, @Value("${cluster.secret:}") String secret,
+			@Value("${cluster.maxskew:60000}") long maxSkew, @Value("${cluster.timeout:60000}") long timeout,
+			@Value("${cluster.reload.interval:10000}") long interval) {
+		if (!config.isEmpty() && nodeId.isEmpty()) {
+			throw new IllegalArgumentException("cluster.nodeid is required with cluster.config");
+		}
+		if (!config.isEmpty() && secret.isEmpty()) {
+			throw new IllegalArgumentException("cluster.secret is required with cluster.config");
+		}
+		if (!config.isEmpty() && !(sequenceKeyGenerator instanceof HybridLogicalClock)) {
+			throw new IllegalArgumentException("sequence.generator must be hlc with cluster.config");
+		}
+		ClusterRouter router = new ClusterRouter(messageStore, deliveryCursors,
+				config.isEmpty() ? null : Paths.get(config), nodeId, secret,
+				config.isEmpty() ? null : (HybridLogicalClock) sequenceKeyGenerator, maxSkew, timeout);
+		if (router.isClustered() && interval > 0) {
+			router.start(interval, TimeUnit.MILLISECONDS);
+		}
+		return router;
+	}
+
+	/**
+	 * Returns the generator of the sequences of the message stores, a counter
+	 * or, to generate sequences distinct from those of other nodes, a hybrid
+	 * logical clock with the configured node id.
+	 */
+	@Bean
+	@Singleton
+	public SequenceKeyGenerator sequenceKeyGenerator(@Value("${sequence.generator:counter}") String type,
+			@Value("${sequence.nodeid:0}") int nodeId) {
+		switch (type) {
+		case "counter":
+			return new CounterSequenceKeyGenerator();
+		case "hlc":
+			return new HybridLogicalClock(nodeId);
+		default:
+			throw new IllegalArgumentException(format("unknown sequence generator type [%s]", type));
+		}
+	}
+
+	@Value("${messagestore:filesystem}")
+	private String messageStoreType;
+
+	@Value("${messagestore.partitions:1}")
+	private int partitions;
+
+	@Value("${messagestore.indexed:false}")
+	private boolean indexed;
+
+	@Value("${cluster.config:}")
+	private String clusterConfig;
+
+	@Value("${messagestore.groupcommit.maxbatchsize:0}")
+	private int groupCommitMaxBatchSize;
+
+	@Value("${messagestore.groupcommit.maxlinger:2}")
+	private long groupCommitMaxLinger;
+
+	@Value("${messagestore.cache.maxentries:0}")
+	private int cacheMaxEntries;
+
+	@Value("${messagestore.cache.maxbytes:67108864}")
+	private long cacheMaxBytes;
+
+	@Value("${messagestore.codec:json}")
+	private String codec;
+
+	@Value("${filesystemlocation:store}")
+	private String fileSystemLocation;
+
+	@Value("${segmentedlog.location:store-log}")
+	private String segmentedLogLocation;
+
+	@Value("${segmentedlog.segmentsize:16777216}")
+	private long segmentSize;
+
+	@Value("${segmentedlog.segmentduration:0}")
+	private long segmentDuration;
+
+	@Value("${segmentedlog.retention.maxage:0}")
+	private long retentionMaxAge;
+
+	@Value("${segmentedlog.retention.maxcount:0}")
+	private long retentionMaxCount;
+
+	@Value("${segmentedlog.retention.maxbytes:0}")
+	private long retentionMaxBytes;
+
+	@Value("${segmentedlog.compaction.interval:60000}")
+	private long compactionInterval;
+
+	@Value("${segmentedlog.compaction.minliveratio:0.5}")
+	private double compactionMinLiveRatio;
+
+	/**
+	 * Returns the message store. With more than one partition, messages are
+	 * partitioned by conversation id, the backing message store being the
+	 * first partition and the others located next to it with the partition
+	 * number appended.
+	 */
+	@Bean(destroyMethod = "close")
+	@Primary
+	@Singleton
+	public ObjectStore<Message, String, String> messageStore(
+			LockingObjectStore<Message, String, String> backingMessageStore,
+			SequenceKeyGenerator sequenceKeyGenerator) {
+		if (partitions <= 1) {
+			return wrap(backingMessageStore);
+		}
+		List<ObjectStore<Message, String, String>> shards = new ArrayList<>(partitions);
+		shards.add(wrap(backingMessageStore));
+		for (int i = 1; i < partitions; i++) {
+			shards.add(wrap(partitionStore(i)));
+		}
+		PartitionedObjectStore<Message, String> store = new PartitionedObjectStore<>(shards,
+				Message::getConversationId);
+		// Also sets the generator of the shards.
+		store.setSequenceKeyGenerator(sequenceKeyGenerator);
+		return store;
+	}
+
+	private ObjectStore<Message, String, String> wrap(LockingObjectStore<Message, String, String> backingStore) {
+		IndexedObjectStore<Message, String, String> store = new IndexedObjectStore<>(backingStore);
+		if (groupCommitMaxBatchSize > 0) {
+			store.enableGroupCommit(groupCommitMaxBatchSize, groupCommitMaxLinger, TimeUnit.MILLISECONDS);
+		}
+		// Clustered nodes rebalance the mailboxes of moved recipients by the
+		// recipient index.
+		return indexed || !clusterConfig.isEmpty() ? withMessageIndexes(store) : store;
+	}
+
+	@Bean(destroyMethod = "close")
+	@Singleton
+	public LockingObjectStore<Message, String, String> backingMessageStore(
+			SequenceKeyGenerator sequenceKeyGenerator) {
+		LockingObjectStore<Message, String, String> store;
+		switch (messageStoreType) {
+		case "filesystem":
+			store = configure(new FileSystemBackedObjectStore<>());
+			break;
+		case "segmentedlog":
+			store = configure(new SegmentedLogObjectStore<>());
+			break;
+		case "transient":
+			store = new TransientInMemoryObjectStore<>();
+			break;
+		default:
+			throw new IllegalArgumentException(format("unknown message store type [%s]", messageStoreType));
+		}
+		// Observes the stored sequences on initialization.
+		store.setSequenceKeyGenerator(sequenceKeyGenerator);
+		return store;
+	}
+
+	private LockingObjectStore<Message, String, String> partitionStore(int partition) {
+		switch (messageStoreType) {
+		case "filesystem":
+			return configure(FileSystemBackedObjectStore.getInstance(fileSystemLocation + "-" + partition));
+		case "segmentedlog":
+			return configure(
+					SegmentedLogObjectStore.getInstance(segmentedLogLocation + "-" + partition, segmentSize));
+		case "transient":
+			return new TransientInMemoryObjectStore<>();
+		default:
+			throw new IllegalArgumentException(format("unknown message store type [%s]", messageStoreType));
+		}
+	}
+
+	private FileSystemBackedObjectStore<Message, String> configure(FileSystemBackedObjectStore<Message, String> store) {
+		store.setCodec(ObjectCodec.forName(codec));
+		if (cacheMaxEntries > 0) {
+			store.enableCache(cacheMaxEntries, cacheMaxBytes);
+		}
+		return store;
+	}
+
+	private SegmentedLogObjectStore<Message, String> configure(SegmentedLogObjectStore<Message, String> store) {
+		store.setCodec(ObjectCodec.forName(codec));
+		if (cacheMaxEntries > 0) {
+			store.enableCache(cacheMaxEntries, cacheMaxBytes);
+		}
+		store.setSegmentDuration(segmentDuration, TimeUnit.MILLISECONDS);
+		if (compactionInterval > 0) {
+			store.enableCompaction(new RetentionPolicy(retentionMaxAge, TimeUnit.MILLISECONDS, retentionMaxCount,
+					retentionMaxBytes), compactionMinLiveRatio, compactionInterval, TimeUnit.MILLISECONDS);
+		}
+		return store;
 	}
 
 }
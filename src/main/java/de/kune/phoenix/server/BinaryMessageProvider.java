@@ -0,0 +1,145 @@
+package de.kune.phoenix.server;
+
+import static java.lang.String.format;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Reads and writes messages and collections of messages in the binary format
+ * of {@link BinaryObjectCodec}. An entity starts with the format version. A
+ * collection is written as the number of messages followed by the messages.
+ * Malformed entities are rejected with 400 Bad Request.
+ */
+@Provider
+@Consumes(BinaryMessageProvider.MEDIA_TYPE)
+@Produces(BinaryMessageProvider.MEDIA_TYPE)
+public class BinaryMessageProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+
+	public static final String MEDIA_TYPE = "application/x-phoenix-binary";
+
+	/**
+	 * The version of the format written.
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * Returns an entity of the messages in the binary format, keeping their
+	 * element type.
+	 *
+	 * @param messages
+	 *            the messages
+	 * @return the entity
+	 */
+	public static Entity<?> entity(List<Message> messages) {
+		return Entity.entity(new GenericEntity<List<Message>>(messages) {
+		}, MEDIA_TYPE);
+	}
+
+	/**
+	 * Writes a collection of messages including the format version.
+	 *
+	 * @param messages
+	 *            the messages
+	 * @param entityStream
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public static void writeMessages(Collection<Message> messages, OutputStream entityStream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(entityStream));
+		List<Message> elements = new ArrayList<>(messages);
+		out.writeByte(VERSION);
+		out.writeInt(elements.size());
+		for (Message message : elements) {
+			BinaryObjectCodec.writeMessage(message, out);
+		}
+		out.flush();
+	}
+
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return type == Message.class
+				|| (type.isAssignableFrom(ArrayList.class) || type.isAssignableFrom(LinkedHashSet.class))
+						&& hasMessageElements(genericType);
+	}
+
+	@Override
+	public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(entityStream));
+		try {
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException(format("unsupported binary format version [%d]", version));
+			}
+			if (Message.class.equals(type)) {
+				return BinaryObjectCodec.readMessage(in);
+			}
+			int count = BinaryObjectCodec.readLength(in);
+			Collection<Message> result = type.isAssignableFrom(ArrayList.class) ? new ArrayList<>()
+					: new LinkedHashSet<>();
+			for (int i = 0; i < count; i++) {
+				result.add(BinaryObjectCodec.readMessage(in));
+			}
+			return result;
+		} catch (IOException e) {
+			throw new BadRequestException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return type == Message.class || Collection.class.isAssignableFrom(type) && hasMessageElements(genericType);
+	}
+
+	@Override
+	public long getSize(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return -1;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void writeTo(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+		if (t instanceof Message) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(entityStream));
+			out.writeByte(VERSION);
+			BinaryObjectCodec.writeMessage((Message) t, out);
+			out.flush();
+		} else {
+			writeMessages((Collection<Message>) t, entityStream);
+		}
+	}
+
+	private static boolean hasMessageElements(Type genericType) {
+		return genericType instanceof ParameterizedType
+				&& ((ParameterizedType) genericType).getActualTypeArguments()[0] == Message.class;
+	}
+
+}
@@ -0,0 +1,226 @@
+package de.kune.phoenix.server;
+
+import static java.lang.String.format;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Encodes messages in a compact binary format: a bit set of the present
+ * fields followed by the present fields, strings in modified UTF-8, byte
+ * arrays raw with a length prefix, the message type as its ordinal and the
+ * time stamp as epoch milliseconds. Other objects are encoded as JSON. The
+ * leading format marker doubles as the version of the encoding.
+ * <p>
+ * Decoding trusts no length read: lengths beyond {@value #MAX_LENGTH} are
+ * rejected and arrays grow with the bytes actually read, so malformed input
+ * fails with an {@link IOException}.
+ */
+public class BinaryObjectCodec implements ObjectCodec {
+
+	public static final String NAME = "bin";
+
+	/**
+	 * The maximum length of byte arrays and of the recipient ids.
+	 */
+	public static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	private static final int CHUNK_LENGTH = 8192;
+
+	private static final byte JSON = 0;
+	private static final byte MESSAGE = 1;
+
+	private static final int ID = 1;
+	private static final int SENDER_ID = 1 << 1;
+	private static final int RECIPIENT_IDS = 1 << 2;
+	private static final int CONVERSATION_ID = 1 << 3;
+	private static final int KEY_ID = 1 << 4;
+	private static final int MESSAGE_TYPE = 1 << 5;
+	private static final int CONTENT = 1 << 6;
+	private static final int TIMESTAMP = 1 << 7;
+	private static final int SIGNATURE = 1 << 8;
+	private static final int SEQUENCE_KEY = 1 << 9;
+
+	private final JsonObjectCodec json = new JsonObjectCodec();
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void encode(Object object, OutputStream out) throws IOException {
+		if (object instanceof Message) {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeByte(MESSAGE);
+			writeMessage((Message) object, data);
+			data.flush();
+		} else {
+			out.write(JSON);
+			json.encode(object, out);
+		}
+	}
+
+	@Override
+	public <T> T decode(InputStream in, Class<T> type) throws IOException {
+		int format = in.read();
+		if (format == MESSAGE) {
+			return type.cast(readMessage(new DataInputStream(in)));
+		} else if (format == JSON) {
+			return json.decode(in, type);
+		} else {
+			throw new IOException("unknown binary format [" + format + "]");
+		}
+	}
+
+	/**
+	 * Writes a message without a format marker.
+	 *
+	 * @param message
+	 *            the message
+	 * @param out
+	 *            the output to write to
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public static void writeMessage(Message message, DataOutput out) throws IOException {
+		int present = (message.getId() != null ? ID : 0) | (message.getSenderId() != null ? SENDER_ID : 0)
+				| (message.getRecipientIds() != null ? RECIPIENT_IDS : 0)
+				| (message.getConversationId() != null ? CONVERSATION_ID : 0)
+				| (message.getKeyId() != null ? KEY_ID : 0) | (message.getMessageType() != null ? MESSAGE_TYPE : 0)
+				| (message.getContent() != null ? CONTENT : 0) | (message.getTimestamp() != null ? TIMESTAMP : 0)
+				| (message.getSignature() != null ? SIGNATURE : 0)
+				| (message.getSequenceKey() != null ? SEQUENCE_KEY : 0);
+		out.writeShort(present);
+		if ((present & ID) != 0) {
+			out.writeUTF(message.getId());
+		}
+		if ((present & SENDER_ID) != 0) {
+			out.writeUTF(message.getSenderId());
+		}
+		if ((present & RECIPIENT_IDS) != 0) {
+			out.writeInt(message.getRecipientIds().length);
+			for (String recipientId : message.getRecipientIds()) {
+				out.writeBoolean(recipientId != null);
+				if (recipientId != null) {
+					out.writeUTF(recipientId);
+				}
+			}
+		}
+		if ((present & CONVERSATION_ID) != 0) {
+			out.writeUTF(message.getConversationId());
+		}
+		if ((present & KEY_ID) != 0) {
+			out.writeUTF(message.getKeyId());
+		}
+		if ((present & MESSAGE_TYPE) != 0) {
+			out.writeByte(message.getMessageType().ordinal());
+		}
+		if ((present & CONTENT) != 0) {
+			writeBytes(message.getContent(), out);
+		}
+		if ((present & TIMESTAMP) != 0) {
+			out.writeLong(message.getTimestamp().getTime());
+		}
+		if ((present & SIGNATURE) != 0) {
+			writeBytes(message.getSignature(), out);
+		}
+		if ((present & SEQUENCE_KEY) != 0) {
+			out.writeUTF(message.getSequenceKey());
+		}
+	}
+
+	/**
+	 * Reads a message written by {@link #writeMessage(Message, DataOutput)}.
+	 *
+	 * @param in
+	 *            the input to read from
+	 * @return the message
+	 * @throws IOException
+	 *             if reading fails or the input is malformed
+	 */
+	public static Message readMessage(DataInput in) throws IOException {
+		Message message = new Message();
+		int present = in.readUnsignedShort();
+		if ((present & ID) != 0) {
+			message.setId(in.readUTF());
+		}
+		if ((present & SENDER_ID) != 0) {
+			message.setSenderId(in.readUTF());
+		}
+		if ((present & RECIPIENT_IDS) != 0) {
+			int count = readLength(in);
+			List<String> recipientIds = new ArrayList<>(Math.min(count, CHUNK_LENGTH));
+			for (int i = 0; i < count; i++) {
+				recipientIds.add(in.readBoolean() ? in.readUTF() : null);
+			}
+			message.setRecipientIds(recipientIds.toArray(new String[count]));
+		}
+		if ((present & CONVERSATION_ID) != 0) {
+			message.setConversationId(in.readUTF());
+		}
+		if ((present & KEY_ID) != 0) {
+			message.setKeyId(in.readUTF());
+		}
+		if ((present & MESSAGE_TYPE) != 0) {
+			int type = in.readUnsignedByte();
+			if (type >= Message.Type.values().length) {
+				throw new IOException(format("unknown message type [%d]", type));
+			}
+			message.setMessageType(Message.Type.values()[type]);
+		}
+		if ((present & CONTENT) != 0) {
+			message.setContent(readBytes(in));
+		}
+		if ((present & TIMESTAMP) != 0) {
+			message.setTimestamp(new Date(in.readLong()));
+		}
+		if ((present & SIGNATURE) != 0) {
+			message.setSignature(readBytes(in));
+		}
+		if ((present & SEQUENCE_KEY) != 0) {
+			message.setSequenceKey(in.readUTF());
+		}
+		return message;
+	}
+
+	private static void writeBytes(byte[] bytes, DataOutput out) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInput in) throws IOException {
+		int length = readLength(in);
+		byte[] result = new byte[Math.min(length, CHUNK_LENGTH)];
+		in.readFully(result);
+		while (result.length < length) {
+			int read = result.length;
+			result = Arrays.copyOf(result, (int) Math.min(length, 2L * read));
+			in.readFully(result, read, result.length - read);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads a length and checks it against {@link #MAX_LENGTH}.
+	 */
+	static int readLength(DataInput in) throws IOException {
+		int result = in.readInt();
+		if (result < 0 || result > MAX_LENGTH) {
+			throw new IOException(format("invalid length [%d]", result));
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,507 @@
+package de.kune.phoenix.server;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+
+import org.glassfish.jersey.client.ClientProperties;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Routes messages to the nodes owning their recipients. Recipient ids are
+ * assigned to nodes by a {@link ConsistentHashRing} loaded from a static
+ * configuration file, so no external coordination is needed. A posted message
+ * is stored by the owners of its recipients, the requests of a recipient are
+ * proxied to its owner. Requests routed by another node carry the
+ * {@value #ROUTED_HEADER} header and are served locally, so nodes with
+ * different views of the ring do not route requests in circles. They are only
+ * accepted with the secret shared by the nodes in the {@value #SECRET_HEADER}
+ * header, as they bypass routing and advance the clock of this node.
+ * <p>
+ * The configuration file is checked for changes periodically. When the ring
+ * changes, the messages of the recipients that moved to other nodes and have
+ * not been delivered to them are posted to their new owners together with the
+ * delivery cursors of these recipients, then messages left without a local
+ * recipient are removed. Recipients that stay with their node are not touched:
+ * the moved recipients are found in the recipient index of the message store,
+ * which clustered nodes must maintain, and only their messages are read.
+ * The new ring routes requests at once; if moving the messages fails, it is
+ * retried on every check until it succeeds. The new owners assign the moved
+ * messages sequence keys above those they had, so clients continue where they
+ * left off. This requires the sequence keys of all nodes to be ordered, so
+ * clustered nodes must generate them with a {@link HybridLogicalClock}.
+ * <p>
+ * Without a configuration file, every recipient is local.
+ */
+public class ClusterRouter {
+
+	/**
+	 * The header carrying the id of the node a request has been routed by.
+	 */
+	public static final String ROUTED_HEADER = "X-Phoenix-Routed-By";
+
+	/**
+	 * The header carrying the secret shared by the nodes of the cluster.
+	 */
+	public static final String SECRET_HEADER = "X-Phoenix-Cluster-Secret";
+
+	private static final Logger logger = Logger.getLogger(ClusterRouter.class.getName());
+
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private static final int PAGE_SIZE = 1000;
+
+	private final ObjectStore<Message, String, String> messageStore;
+	private final DeliveryCursors deliveryCursors;
+	private final Path config;
+	private final String nodeId;
+	private final byte[] secret;
+	private final HybridLogicalClock clock;
+	private final long maxSkew;
+	private final Client client;
+	private volatile ConsistentHashRing ring;
+	private long configModified;
+	/**
+	 * The previous rings whose messages have not been moved yet.
+	 */
+	private final List<ConsistentHashRing> unbalanced = new ArrayList<>();
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Creates a router.
+	 *
+	 * @param messageStore
+	 *            the local message store
+	 * @param deliveryCursors
+	 *            the local delivery cursors
+	 * @param config
+	 *            the ring configuration file, null if this node is not
+	 *            clustered
+	 * @param nodeId
+	 *            the id of this node in the ring
+	 * @param secret
+	 *            the secret shared by the nodes of the cluster
+	 * @param clock
+	 *            the clock generating the sequences of this node
+	 * @param maxSkew
+	 *            the maximum time in milliseconds the sequence keys of
+	 *            messages routed here may be ahead of the clock
+	 * @param timeout
+	 *            the read timeout of routed requests in milliseconds, must
+	 *            exceed the maximum wait of long polling requests
+	 */
+	public ClusterRouter(ObjectStore<Message, String, String> messageStore, DeliveryCursors deliveryCursors,
+			Path config, String nodeId, String secret, HybridLogicalClock clock, long maxSkew, long timeout) {
+		this.messageStore = messageStore;
+		this.deliveryCursors = deliveryCursors;
+		this.config = config;
+		this.nodeId = nodeId;
+		this.secret = secret == null ? null : secret.getBytes(StandardCharsets.UTF_8);
+		this.clock = clock;
+		this.maxSkew = maxSkew;
+		if (config == null) {
+			this.client = null;
+		} else {
+			if (messageStore.getIndexKeys(MessagePredicates.RECIPIENT_INDEX) == null) {
+				throw new IllegalArgumentException("the message store must maintain the recipient index");
+			}
+			this.client = ClientBuilder.newClient().register(BinaryMessageProvider.class)
+					.property(ClientProperties.CONNECT_TIMEOUT, CONNECT_TIMEOUT)
+					.property(ClientProperties.READ_TIMEOUT, (int) timeout);
+			reload();
+		}
+	}
+
+	/**
+	 * Returns whether this node is part of a cluster.
+	 *
+	 * @return true if a ring is configured
+	 */
+	public boolean isClustered() {
+		return ring != null;
+	}
+
+	/**
+	 * Returns the current ring.
+	 *
+	 * @return the ring or null if this node is not clustered
+	 */
+	public ConsistentHashRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Returns the id of the node owning the specified recipient.
+	 *
+	 * @param recipientId
+	 *            the recipient id
+	 * @return the node id, the id of this node if it is not clustered
+	 */
+	public String ownerOf(String recipientId) {
+		ConsistentHashRing current = ring;
+		return current == null || recipientId == null ? nodeId : current.ownerOf(recipientId);
+	}
+
+	/**
+	 * Checks whether this node owns the specified recipient.
+	 *
+	 * @param recipientId
+	 *            the recipient id
+	 * @return true if this node owns the recipient
+	 */
+	public boolean isLocal(String recipientId) {
+		return nodeId.equals(ownerOf(recipientId));
+	}
+
+	/**
+	 * Checks whether a request has been routed here by another node, i.e.
+	 * carries a node id and the cluster secret. The id is not checked against
+	 * the current ring, as a node removed from the ring hands off its
+	 * mailboxes.
+	 *
+	 * @param routedBy
+	 *            the {@value #ROUTED_HEADER} header, may be null
+	 * @param secret
+	 *            the {@value #SECRET_HEADER} header, may be null
+	 * @return true if the request has been routed by a node of the cluster,
+	 *         always false if this node is not clustered
+	 */
+	public boolean isRouted(String routedBy, String secret) {
+		return ring != null && routedBy != null && secret != null
+				&& MessageDigest.isEqual(this.secret, secret.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Makes the clock of this node observe the sequence keys of messages
+	 * routed here, so the keys assigned to them here order after those.
+	 *
+	 * @param messages
+	 *            the messages routed here
+	 * @throws IllegalArgumentException
+	 *             if the sequence key of any message is ahead of the clock by
+	 *             more than the maximum skew, none is observed then
+	 */
+	public void observe(List<Message> messages) {
+		for (Message message : messages) {
+			if (clock.isAhead(message.sequence(), maxSkew)) {
+				throw new IllegalArgumentException(
+						format("sequence key [%s] is too far ahead", message.getSequenceKey()));
+			}
+		}
+		for (Message message : messages) {
+			clock.observe(message.sequence());
+		}
+	}
+
+	/**
+	 * Posts the messages to the other nodes owning any of their recipients.
+	 * Messages without recipients stay with this node, as do all messages if
+	 * it is not clustered.
+	 *
+	 * @param messages
+	 *            the messages
+	 * @return the messages with a recipient owned by this node
+	 * @throws IllegalStateException
+	 *             if another node does not accept the messages
+	 */
+	public List<Message> route(List<Message> messages) {
+		ConsistentHashRing current = ring;
+		if (current == null) {
+			return messages;
+		}
+		List<Message> result = new ArrayList<>();
+		Map<String, List<Message>> remote = new LinkedHashMap<>();
+		for (Message message : messages) {
+			Set<String> owners = owners(current, message);
+			if (owners.isEmpty() || owners.remove(nodeId)) {
+				result.add(message);
+			}
+			for (String owner : owners) {
+				remote.computeIfAbsent(owner, o -> new ArrayList<>()).add(message);
+			}
+		}
+		for (Map.Entry<String, List<Message>> owned : remote.entrySet()) {
+			post(current.getUri(owned.getKey()), owned.getValue());
+		}
+		return result;
+	}
+
+	private static Set<String> owners(ConsistentHashRing ring, Message message) {
+		Set<String> result = new LinkedHashSet<>();
+		if (message.getRecipientIds() != null) {
+			for (String recipientId : message.getRecipientIds()) {
+				if (recipientId != null) {
+					result.add(ring.ownerOf(recipientId));
+				}
+			}
+		}
+		return result;
+	}
+
+	private void post(URI node, List<Message> messages) {
+		expectOk(node, () -> routed(client.target(node).path("message").request())
+				.post(BinaryMessageProvider.entity(messages)));
+	}
+
+	private void acknowledge(URI node, String recipientId, String sequenceKey) {
+		expectOk(node, () -> routed(client.target(node).path("message").path("ack")
+				.queryParam("recipient-id", recipientId).queryParam("sequence-key", sequenceKey).request()).post(null));
+	}
+
+	private Invocation.Builder routed(Invocation.Builder request) {
+		return request.header(ROUTED_HEADER, nodeId).header(SECRET_HEADER, new String(secret, StandardCharsets.UTF_8));
+	}
+
+	private static void expectOk(URI node, Supplier<Response> request) {
+		int status;
+		try {
+			Response response = request.get();
+			response.close();
+			status = response.getStatus();
+		} catch (ProcessingException e) {
+			throw new IllegalStateException(format("node [%s] cannot be reached", node), e);
+		}
+		if (status != Response.Status.OK.getStatusCode()) {
+			throw new IllegalStateException(format("node [%s] responded with status [%d]", node, status));
+		}
+	}
+
+	/**
+	 * Proxies the request to the owner of the specified recipient without
+	 * holding a container thread, resuming the response with the response
+	 * of the owner.
+	 *
+	 * @param recipientId
+	 *            the recipient id
+	 * @param method
+	 *            the HTTP method
+	 * @param uriInfo
+	 *            the request URI
+	 * @param mediaType
+	 *            the accepted media type
+	 * @param asyncResponse
+	 *            the response to resume
+	 */
+	public void proxy(String recipientId, String method, UriInfo uriInfo, MediaType mediaType,
+			AsyncResponse asyncResponse) {
+		URI owner = ring.getUri(ownerOf(recipientId));
+		URI uri = UriBuilder.fromUri(owner).path(uriInfo.getPath()).replaceQuery(uriInfo.getRequestUri().getRawQuery())
+				.build();
+		routed(client.target(uri).request(mediaType)).async().method(method,
+				new InvocationCallback<Response>() {
+					@Override
+					public void completed(Response response) {
+						try {
+							ResponseBuilder result = Response.status(response.getStatus());
+							if (response.hasEntity()) {
+								result.entity(response.readEntity(byte[].class)).type(response.getMediaType());
+							}
+							String continuationKey = response.getHeaderString(MessageResource.CONTINUATION_KEY_HEADER);
+							if (continuationKey != null) {
+								result.header(MessageResource.CONTINUATION_KEY_HEADER, continuationKey);
+							}
+							asyncResponse.resume(result.build());
+						} finally {
+							response.close();
+						}
+					}
+
+					@Override
+					public void failed(Throwable throwable) {
+						asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+					}
+				});
+	}
+
+	/**
+	 * Checks the configuration file for changes periodically on a background
+	 * thread.
+	 *
+	 * @param interval
+	 *            the delay between checks
+	 * @param unit
+	 *            the time unit of the interval argument
+	 */
+	public synchronized void start(long interval, TimeUnit unit) {
+		if (config == null) {
+			throw new IllegalStateException("no cluster configured");
+		}
+		stop();
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, getClass().getSimpleName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				reload();
+			} catch (RuntimeException e) {
+				// Keep the current ring, the next check may succeed.
+				logger.log(Level.WARNING, "reloading the cluster configuration failed", e);
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Stops checking the configuration file.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Reloads the ring if the configuration file has changed and moves the
+	 * mailboxes of the recipients assigned to other nodes. A move that failed
+	 * before is retried. On the first load, this node must be part of the
+	 * ring.
+	 *
+	 * @return the number of messages moved
+	 */
+	public synchronized int reload() {
+		long modified;
+		try {
+			modified = Files.getLastModifiedTime(config).toMillis();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		if (ring == null || modified != configModified) {
+			ConsistentHashRing loaded = ConsistentHashRing.load(config);
+			// A node removed from a running cluster hands off all of its
+			// mailboxes.
+			if (ring == null && !loaded.getNodeIds().contains(nodeId)) {
+				throw new IllegalStateException(
+						format("node [%s] is not part of the ring in [%s]", nodeId, config));
+			}
+			configModified = modified;
+			if (!loaded.equals(ring)) {
+				if (ring != null) {
+					unbalanced.add(ring);
+				}
+				ring = loaded;
+			}
+		}
+		if (unbalanced.isEmpty()) {
+			return 0;
+		}
+		int result = rebalance(unbalanced, ring);
+		unbalanced.clear();
+		return result;
+	}
+
+	/**
+	 * Posts the undelivered messages of the recipients this node owned in any
+	 * of the previous rings and another node owns in the current one to their
+	 * new owners, followed by the delivery cursors of these recipients. The
+	 * new owners have observed the sequence keys of the messages then, so
+	 * they accept the cursors. Finally removes the messages of these
+	 * recipients without a recipient owned by this node. Only the messages of
+	 * moved recipients are read, by the recipient index; those moving to one
+	 * node are held in memory to post them in sequence order. Posting a
+	 * message again is harmless, so a failed rebalance can be repeated.
+	 */
+	private int rebalance(List<ConsistentHashRing> previous, ConsistentHashRing current) {
+		Map<String, Set<String>> moved = new LinkedHashMap<>();
+		for (Object key : messageStore.getIndexKeys(MessagePredicates.RECIPIENT_INDEX)) {
+			String recipientId = (String) key;
+			String owner = current.ownerOf(recipientId);
+			if (!owner.equals(nodeId) && ownedBefore(previous, recipientId)) {
+				moved.computeIfAbsent(owner, o -> new LinkedHashSet<>()).add(recipientId);
+			}
+		}
+		int result = 0;
+		Map<String, Message> orphaned = new LinkedHashMap<>();
+		for (Map.Entry<String, Set<String>> owned : moved.entrySet()) {
+			NavigableMap<Long, Message> undelivered = new TreeMap<>();
+			Set<String> movedRecipients = new LinkedHashSet<>();
+			for (String recipientId : owned.getValue()) {
+				String lastSequenceKey = null;
+				Page<Message, String> page;
+				do {
+					page = messageStore.getAfter(lastSequenceKey, MessagePredicates.hasRecipient(recipientId),
+							PAGE_SIZE);
+					for (Message message : page.getElements()) {
+						if (!deliveryCursors.isDelivered(message, recipientId)) {
+							undelivered.put(message.sequence(), message);
+							movedRecipients.add(recipientId);
+						}
+						if (!owners(current, message).contains(nodeId)) {
+							orphaned.put(message.getId(), message);
+						}
+					}
+					lastSequenceKey = page.getContinuationKey();
+				} while (lastSequenceKey != null);
+			}
+			URI owner = current.getUri(owned.getKey());
+			List<Message> messages = new ArrayList<>(undelivered.values());
+			for (int i = 0; i < messages.size(); i += PAGE_SIZE) {
+				post(owner, messages.subList(i, Math.min(i + PAGE_SIZE, messages.size())));
+			}
+			result += messages.size();
+			for (String recipientId : movedRecipients) {
+				String cursor = deliveryCursors.get(recipientId);
+				if (cursor != null) {
+					acknowledge(owner, recipientId, cursor);
+				}
+			}
+		}
+		for (Message message : orphaned.values()) {
+			messageStore.remove(message);
+		}
+		return result;
+	}
+
+	private boolean ownedBefore(List<ConsistentHashRing> previous, String recipientId) {
+		for (ConsistentHashRing ring : previous) {
+			if (nodeId.equals(ring.ownerOf(recipientId))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops checking the configuration file and releases the client.
+	 */
+	public synchronized void close() {
+		stop();
+		if (client != null) {
+			client.close();
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+package de.kune.phoenix.server;
+
+/**
+ * The outcome of a compaction run.
+ */
+public class CompactionStats {
+
+	private final int segmentsDropped;
+	private final int segmentsRewritten;
+	private final int elementsExpired;
+	private final long bytesReclaimed;
+	private final long durationNanos;
+
+	CompactionStats(int segmentsDropped, int segmentsRewritten, int elementsExpired, long bytesReclaimed,
+			long durationNanos) {
+		this.segmentsDropped = segmentsDropped;
+		this.segmentsRewritten = segmentsRewritten;
+		this.elementsExpired = elementsExpired;
+		this.bytesReclaimed = bytesReclaimed;
+		this.durationNanos = durationNanos;
+	}
+
+	/**
+	 * Returns the number of segments dropped as a whole by retention.
+	 */
+	public int getSegmentsDropped() {
+		return segmentsDropped;
+	}
+
+	/**
+	 * Returns the number of partially dead segments rewritten.
+	 */
+	public int getSegmentsRewritten() {
+		return segmentsRewritten;
+	}
+
+	/**
+	 * Returns the number of live elements dropped by retention.
+	 */
+	public int getElementsExpired() {
+		return elementsExpired;
+	}
+
+	/**
+	 * Returns the number of bytes freed on disk.
+	 */
+	public long getBytesReclaimed() {
+		return bytesReclaimed;
+	}
+
+	/**
+	 * Returns the duration of the run in milliseconds.
+	 */
+	public long getDurationMillis() {
+		return durationNanos / 1_000_000L;
+	}
+
+	@Override
+	public String toString() {
+		return "CompactionStats [segmentsDropped=" + segmentsDropped + ", segmentsRewritten=" + segmentsRewritten
+				+ ", elementsExpired=" + elementsExpired + ", bytesReclaimed=" + bytesReclaimed + ", durationMillis="
+				+ getDurationMillis() + "]";
+	}
+
+}
@@ -0,0 +1,176 @@
+package de.kune.phoenix.server;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys to the nodes of a cluster by consistent hashing. Each node is
+ * placed on a ring of 64-bit hashes at a number of virtual positions, a key
+ * belongs to the node at the first position at or after the hash of the key.
+ * Adding or removing a node thus only moves the keys between it and its
+ * neighbours, about one in the number of nodes.
+ * <p>
+ * Rings are immutable.
+ */
+public class ConsistentHashRing {
+
+	/**
+	 * The prefix of the node properties of a ring configuration.
+	 */
+	public static final String NODE_PREFIX = "node.";
+
+	/**
+	 * The property of a ring configuration holding the number of virtual
+	 * positions per node.
+	 */
+	public static final String VIRTUAL_NODES = "virtualnodes";
+
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private final Map<String, URI> nodes;
+	private final int virtualNodes;
+	private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+	/**
+	 * Creates a ring.
+	 *
+	 * @param nodes
+	 *            the URIs of the REST APIs of the nodes by node id
+	 * @param virtualNodes
+	 *            the number of positions of each node on the ring
+	 */
+	public ConsistentHashRing(Map<String, URI> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("at least one node is required");
+		}
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("at least one virtual node is required");
+		}
+		this.nodes = Collections.unmodifiableMap(new LinkedHashMap<>(nodes));
+		this.virtualNodes = virtualNodes;
+		for (String nodeId : nodes.keySet()) {
+			for (int i = 0; i < virtualNodes; i++) {
+				// Colliding positions are resolved in favour of the lower node
+				// id, so the ring does not depend on the order of the nodes.
+				ring.merge(hash(nodeId + "#" + i), nodeId, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+			}
+		}
+	}
+
+	/**
+	 * Loads a ring from a properties file. Each node is configured as
+	 * <code>node.&lt;id&gt;=&lt;uri&gt;</code>, the number of virtual nodes as
+	 * <code>virtualnodes=&lt;count&gt;</code>.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the ring
+	 */
+	public static ConsistentHashRing load(Path file) {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		Map<String, URI> nodes = new TreeMap<>();
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith(NODE_PREFIX)) {
+				nodes.put(name.substring(NODE_PREFIX.length()), URI.create(properties.getProperty(name).trim()));
+			}
+		}
+		if (nodes.isEmpty()) {
+			throw new IllegalStateException(format("no nodes configured in [%s]", file));
+		}
+		String virtualNodes = properties.getProperty(VIRTUAL_NODES);
+		return new ConsistentHashRing(nodes,
+				virtualNodes == null ? DEFAULT_VIRTUAL_NODES : Integer.parseInt(virtualNodes.trim()));
+	}
+
+	/**
+	 * Returns a 64-bit hash of the key: FNV-1a over its characters followed by
+	 * the finalizer of MurmurHash3 to spread similar keys over the ring.
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Returns the id of the node owning the specified key.
+	 *
+	 * @param key
+	 *            the key, e.g. a recipient id
+	 * @return the node id
+	 */
+	public String ownerOf(String key) {
+		Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+		return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * Returns the ids of the nodes of this ring.
+	 *
+	 * @return the node ids
+	 */
+	public Set<String> getNodeIds() {
+		return nodes.keySet();
+	}
+
+	/**
+	 * Returns the URI of the REST API of the specified node.
+	 *
+	 * @param nodeId
+	 *            the node id
+	 * @return the URI or null if the node is not part of this ring
+	 */
+	public URI getUri(String nodeId) {
+		return nodes.get(nodeId);
+	}
+
+	public int getVirtualNodes() {
+		return virtualNodes;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ConsistentHashRing)) {
+			return false;
+		}
+		ConsistentHashRing other = (ConsistentHashRing) obj;
+		return nodes.equals(other.nodes) && virtualNodes == other.virtualNodes;
+	}
+
+	@Override
+	public int hashCode() {
+		return nodes.hashCode() * 31 + virtualNodes;
+	}
+
+	@Override
+	public String toString() {
+		return "ConsistentHashRing [nodes=" + nodes + ", virtualNodes=" + virtualNodes + "]";
+	}
+
+}
@@ -0,0 +1,38 @@
+package de.kune.phoenix.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates consecutive sequences from a counter. Only unique within one
+ * process.
+ */
+public class CounterSequenceKeyGenerator implements SequenceKeyGenerator {
+
+	private final AtomicLong counter = new AtomicLong(0L);
+
+	@Override
+	public long next() {
+		return counter.getAndIncrement();
+	}
+
+	@Override
+	public long[] next(int count) {
+		long first = counter.getAndAdd(count);
+		long[] result = new long[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = first + i;
+		}
+		return result;
+	}
+
+	@Override
+	public void observe(long sequence) {
+		counter.accumulateAndGet(sequence + 1, Math::max);
+	}
+
+	@Override
+	public long highest() {
+		return counter.get() - 1;
+	}
+
+}
@@ -0,0 +1,98 @@
+package de.kune.phoenix.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.Sequenced;
+
+/**
+ * Removes messages from the message store once they have been delivered to
+ * all of their recipients. Only messages up to the highest delivery cursor
+ * are scanned, in pages, and each removal locks the store on its own, so
+ * adds are not held up by a collection run.
+ */
+public class DeliveredMessageCollector {
+
+	private static final Logger logger = Logger.getLogger(DeliveredMessageCollector.class.getName());
+
+	private static final int PAGE_SIZE = 1000;
+
+	private final ObjectStore<Message, String, String> messageStore;
+	private final DeliveryCursors deliveryCursors;
+	private ScheduledExecutorService executor;
+
+	public DeliveredMessageCollector(ObjectStore<Message, String, String> messageStore,
+			DeliveryCursors deliveryCursors) {
+		this.messageStore = messageStore;
+		this.deliveryCursors = deliveryCursors;
+	}
+
+	/**
+	 * Runs a collection on a background thread with the specified delay
+	 * between runs.
+	 * 
+	 * @param interval
+	 *            the delay between runs
+	 * @param unit
+	 *            the time unit of the interval argument
+	 */
+	public synchronized void start(long interval, TimeUnit unit) {
+		stop();
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, getClass().getSimpleName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				collect();
+			} catch (RuntimeException e) {
+				// Keep collecting, the next run may succeed.
+				logger.log(Level.WARNING, "collecting delivered messages failed", e);
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Stops collecting in the background.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Removes all messages delivered to all of their recipients.
+	 * 
+	 * @return the number of removed messages
+	 */
+	public int collect() {
+		long highest = deliveryCursors.getHighestSequence();
+		if (highest == Sequenced.NO_SEQUENCE) {
+			return 0;
+		}
+		int result = 0;
+		String lastSequenceKey = null;
+		do {
+			Page<Message, String> page = messageStore.getAfter(lastSequenceKey, PAGE_SIZE);
+			for (Message message : page.getElements()) {
+				if (message.sequence() > highest) {
+					return result;
+				}
+				if (deliveryCursors.isDelivered(message)) {
+					messageStore.remove(message);
+					result++;
+				}
+			}
+			lastSequenceKey = page.getContinuationKey();
+		} while (lastSequenceKey != null);
+		return result;
+	}
+
+}
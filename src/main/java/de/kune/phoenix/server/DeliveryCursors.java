@@ -0,0 +1,120 @@
+package de.kune.phoenix.server;
+
+import static java.lang.String.format;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.SequenceKeys;
+import de.kune.phoenix.shared.Sequenced;
+
+/**
+ * Tracks per recipient the sequence key up to which all messages sent to the
+ * recipient have been delivered. Cursors only move forward. They are held in
+ * memory, after a restart each recipient's cursor is unknown, i.e. nothing
+ * counts as delivered, until the recipient requests or acknowledges messages
+ * again. Cursors never pass the highest sequence issued, so a client cannot
+ * mark messages not yet stored as delivered.
+ */
+public class DeliveryCursors {
+
+	private final Map<String, Long> cursors = new ConcurrentHashMap<>();
+	private final LongSupplier highestSequence;
+
+	/**
+	 * Creates the cursors.
+	 * 
+	 * @param highestSequence
+	 *            supplies the highest sequence issued, e.g.
+	 *            {@link SequenceKeyGenerator#highest()}
+	 */
+	public DeliveryCursors(LongSupplier highestSequence) {
+		this.highestSequence = highestSequence;
+	}
+
+	/**
+	 * Advances the cursor of the specified recipient to the specified
+	 * sequence key unless it is already further.
+	 * 
+	 * @param recipientId
+	 *            the recipient id
+	 * @param sequenceKey
+	 *            the sequence key of the last delivered message
+	 * @throws IllegalArgumentException
+	 *             if the sequence key is malformed or above the highest
+	 *             sequence issued
+	 */
+	public void advance(String recipientId, String sequenceKey) {
+		long sequence = SequenceKeys.parse(sequenceKey);
+		if (sequence > highestSequence.getAsLong()) {
+			throw new IllegalArgumentException(format("sequence key [%s] has not been issued", sequenceKey));
+		}
+		cursors.merge(recipientId, sequence, Math::max);
+	}
+
+	/**
+	 * Returns the cursor of the specified recipient.
+	 * 
+	 * @param recipientId
+	 *            the recipient id
+	 * @return the sequence key of the last delivered message or null if
+	 *         unknown
+	 */
+	public String get(String recipientId) {
+		Long cursor = cursors.get(recipientId);
+		return cursor == null ? null : SequenceKeys.format(cursor);
+	}
+
+	/**
+	 * Returns the highest cursor of all recipients.
+	 * 
+	 * @return the highest sequence or {@link Sequenced#NO_SEQUENCE} if no
+	 *         cursor is known
+	 */
+	public long getHighestSequence() {
+		long result = Sequenced.NO_SEQUENCE;
+		for (long cursor : cursors.values()) {
+			result = Math.max(result, cursor);
+		}
+		return result;
+	}
+
+	/**
+	 * Checks whether the specified message has been delivered to all of its
+	 * recipients. Messages without recipients are never considered delivered.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return true if every recipient's cursor has reached the message
+	 */
+	public boolean isDelivered(Message message) {
+		String[] recipientIds = message.getRecipientIds();
+		if (recipientIds == null || recipientIds.length == 0 || message.sequence() == Sequenced.NO_SEQUENCE) {
+			return false;
+		}
+		for (String recipientId : recipientIds) {
+			if (!isDelivered(message, recipientId)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether the specified message has been delivered to the
+	 * specified recipient.
+	 * 
+	 * @param message
+	 *            the message
+	 * @param recipientId
+	 *            the recipient id
+	 * @return true if the recipient's cursor has reached the message
+	 */
+	public boolean isDelivered(Message message, String recipientId) {
+		Long cursor = recipientId == null ? null : cursors.get(recipientId);
+		return cursor != null && message.sequence() != Sequenced.NO_SEQUENCE && cursor >= message.sequence();
+	}
+
+}
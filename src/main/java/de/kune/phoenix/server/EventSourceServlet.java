@@ -1,16 +1,32 @@
 package de.kune.phoenix.server;
 
-import static de.kune.phoenix.shared.util.ArrayUtils.contains;
+import static de.kune.phoenix.server.MessagePredicates.matching;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
-import java.util.function.Predicate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -19,92 +35,326 @@ import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 
-import com.fasterxml.jackson.core.JsonGenerationException;
-import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.SequenceKeys;
 
+/**
+ * Streams the messages of a recipient as server-sent events. Streams do not
+ * hold a container thread while idle: each is an {@link AsyncContext} with a
+ * pending subscription at the {@link SubscriptionHub}, and a small shared
+ * dispatcher pool queues the events once matching messages arrive. Events are
+ * written without blocking as the connection accepts them, and a stream only
+ * waits for further messages once its queue has been written, so a slow
+ * client holds back its own stream only. A single thread sends keep-alive
+ * comments to all open streams, detecting closed connections and closing
+ * streams that have not accepted any data within the write timeout.
+ * <p>
+ * Streams are not proxied in a cluster. A request for a recipient owned by
+ * another node is answered with 421 Misdirected Request, which makes an event
+ * source fail instead of reconnecting, so a client can fall back to long
+ * polling, which is proxied. Streams of recipients that move to other nodes
+ * are closed on the next keep-alive.
+ * <p>
+ * The number of dispatcher threads is set by the
+ * <code>dispatcher-threads</code> init parameter, the write timeout in
+ * seconds by the <code>write-timeout</code> init parameter.
+ */
 public class EventSourceServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final Logger logger = Logger.getLogger(EventSourceServlet.class.getName());
+
+	private static final long KEEP_ALIVE_INTERVAL = 30L;
+
+	private static final long DEFAULT_WRITE_TIMEOUT = 60L;
+
+	private static final int DEFAULT_DISPATCHER_THREADS = 2;
+
+	private static final int PAGE_SIZE = 1000;
+
+	private static final int SC_MISDIRECTED_REQUEST = 421;
+
+	private static final byte[] KEEP_ALIVE = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
 	@Inject
 	private ObjectStore<Message, String, String> messageStore;
 
+	@Inject
+	private DeliveryCursors deliveryCursors;
+
+	@Inject
+	private SubscriptionHub subscriptionHub;
+
+	@Inject
+	private ClusterRouter clusterRouter;
+
+	private transient ExecutorService dispatcher;
+
+	private transient ScheduledExecutorService keepAlive;
+
+	private long writeTimeoutMillis;
+
+	private final Set<MessageStream> streams = ConcurrentHashMap.newKeySet();
+
 	@Override
 	public void init() throws ServletException {
 		super.init();
 		WebApplicationContext context = WebApplicationContextUtils.getWebApplicationContext(getServletContext());
 		AutowireCapableBeanFactory ctx = context.getAutowireCapableBeanFactory();
 		ctx.autowireBean(this);
+		String threads = getInitParameter("dispatcher-threads");
+		dispatcher = Executors.newFixedThreadPool(
+				threads == null ? DEFAULT_DISPATCHER_THREADS : Integer.parseInt(threads),
+				daemonThreads("event-source-dispatcher"));
+		String writeTimeout = getInitParameter("write-timeout");
+		writeTimeoutMillis = TimeUnit.SECONDS
+				.toMillis(writeTimeout == null ? DEFAULT_WRITE_TIMEOUT : Long.parseLong(writeTimeout));
+		keepAlive = Executors.newSingleThreadScheduledExecutor(daemonThreads("event-source-keep-alive"));
+		keepAlive.scheduleWithFixedDelay(() -> streams.forEach(MessageStream::keepAlive), KEEP_ALIVE_INTERVAL,
+				KEEP_ALIVE_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		return r -> {
+			Thread thread = new Thread(r, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	@Override
+	public void destroy() {
+		keepAlive.shutdownNow();
+		dispatcher.shutdownNow();
+		streams.forEach(MessageStream::close);
+		super.destroy();
 	}
 
-	private static class MessageTransmitter implements Runnable {
-		private ObjectMapper objectMapper = new ObjectMapper();
-		private ObjectStore<Message, String, String> messageStore;
-		private String recipientId;
+	/**
+	 * An open event stream of a recipient. Waits for the messages after the
+	 * last queued one and queues them on a dispatcher thread. The queue is
+	 * written whenever the connection is ready, then the stream waits again.
+	 */
+	private class MessageStream implements AsyncListener, WriteListener {
+		private final AsyncContext context;
+		private final ServletOutputStream out;
+		private final String recipientId;
+		private final Queue<byte[]> queue = new ArrayDeque<>();
 		private String lastTransmission;
-		private PrintWriter out;
+		private CompletableFuture<Set<Message>> wait;
+		private boolean flushed;
+		private long stalledSince;
+		private boolean closed;
 
-		public MessageTransmitter(ObjectStore<Message, String, String> messageStore, String recipientId, String lastTransmission,
-				PrintWriter out) {
-			this.messageStore = messageStore;
+		private MessageStream(AsyncContext context, ServletOutputStream out, String recipientId,
+				String lastTransmission) {
+			this.context = context;
+			this.out = out;
 			this.recipientId = recipientId;
 			this.lastTransmission = lastTransmission;
-			this.out = out;
 		}
 
-		@Override
-		public void run() {
-			while (!out.checkError()) {
-				Set<Message> messages = messageStore.await(new Predicate<Message>() {
-					@Override
-					public boolean test(Message message) {
-						return (message.getRecipientIds() == null
-//								|| contains(subscribedConversations, message.getConversationId()) 
-								|| contains(message.getRecipientIds(), recipientId))
-								&& (lastTransmission == null
-										|| lastTransmission.compareTo(message.getSequenceKey()) < 0);
-					}
-				});
-				for (Message message : messages) {
-					if (lastTransmission == null || lastTransmission.compareTo(message.getSequenceKey()) < 0) {
-						lastTransmission = message.getSequenceKey();
-					}
+		private synchronized void await() {
+			if (closed || wait != null) {
+				return;
+			}
+			CompletableFuture<Set<Message>> result = subscriptionHub.subscribe(recipientId, null, lastTransmission);
+			wait = result;
+			result.thenRunAsync(() -> transmit(result), dispatcher).exceptionally(e -> {
+				// Cancelled on close or rejected on shutdown otherwise.
+				if (!isClosed() && !dispatcher.isShutdown()) {
+					logger.log(Level.WARNING, "transmitting messages failed", e);
 				}
+				close();
+				return null;
+			});
+		}
+
+		/**
+		 * Queues the messages after the last queued one as one event of up to
+		 * a page. Re-queries the store instead of queueing the woken messages,
+		 * so they are queued in sequence order and only once visible. Further
+		 * pages are queued by the next wait once this one has been written.
+		 */
+		private synchronized void transmit(CompletableFuture<Set<Message>> woken) {
+			if (closed || woken != wait) {
+				return;
+			}
+			wait = null;
+			List<Message> messages = messageStore
+					.getAfter(lastTransmission, matching(recipientId, null, null), PAGE_SIZE).getElements();
+			if (!messages.isEmpty()) {
+				String json;
 				try {
-					String json = objectMapper.writeValueAsString(messages);
-					json = "data: " + json.replace("\n", "\ndata: ");
-					// out.write("event: " + message.getConversationId());
-					out.write("data: " + json + "\n\n");
-				} catch (JsonGenerationException e) {
-					e.printStackTrace();
-				} catch (JsonMappingException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
+					json = objectMapper.writeValueAsString(messages);
+				} catch (JsonProcessingException e) {
+					throw new IllegalStateException(e);
 				}
-				out.flush();
+				lastTransmission = messages.get(messages.size() - 1).getSequenceKey();
+				queue.add(("id: " + lastTransmission + "\ndata: " + json.replace("\n", "\ndata: ") + "\n\n")
+						.getBytes(StandardCharsets.UTF_8));
 			}
+			write();
+		}
+
+		/**
+		 * Writes the queue as far as the connection accepts it without
+		 * blocking. Waits for further messages once all has been written,
+		 * else the container calls {@link #onWritePossible()} when the
+		 * connection is ready again.
+		 */
+		private synchronized void write() {
+			if (closed) {
+				return;
+			}
+			try {
+				while (out.isReady()) {
+					byte[] next = queue.poll();
+					if (next != null) {
+						out.write(next);
+						flushed = false;
+					} else if (!flushed) {
+						out.flush();
+						flushed = true;
+					} else {
+						stalledSince = 0L;
+						await();
+						return;
+					}
+				}
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			if (stalledSince == 0L) {
+				stalledSince = System.currentTimeMillis();
+			}
+		}
+
+		private synchronized boolean isClosed() {
+			return closed;
+		}
+
+		private void keepAlive() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				// The reconnection of a recipient moved to another node is
+				// misdirected.
+				boolean moved = !clusterRouter.isLocal(recipientId);
+				if (!moved && stalledSince == 0L) {
+					// Detects closed connections and keeps proxies from timing
+					// out.
+					queue.add(KEEP_ALIVE);
+					write();
+					return;
+				}
+				if (!moved && System.currentTimeMillis() - stalledSince < writeTimeoutMillis) {
+					return;
+				}
+			}
+			close();
+		}
+
+		private void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				queue.clear();
+				if (wait != null) {
+					wait.cancel(false);
+				}
+			}
+			streams.remove(this);
+			try {
+				context.complete();
+			} catch (IllegalStateException e) {
+				// Already completed by the container.
+			}
+		}
+
+		@Override
+		public void onWritePossible() {
+			write();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			close();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) throws IOException {
+			// Do nothing.
 		}
 	}
 
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-		System.out.println("---> request: " + req);
-		resp.setContentType("text/event-stream");
-		resp.setCharacterEncoding("UTF-8");
-
 		final String recipientId = getRecipientId(req);
-		System.out.println("---> recipient: " + recipientId);
+		if (!clusterRouter.isLocal(recipientId)) {
+			resp.sendError(SC_MISDIRECTED_REQUEST,
+					"recipient is owned by node " + clusterRouter.ownerOf(recipientId));
+			return;
+		}
 		final String lastTransmission = getLastTransmission(req);
-		System.out.println("---> lastTransmission: " + lastTransmission);
-		new MessageTransmitter(messageStore, recipientId, lastTransmission, resp.getWriter()).run();
+		if (!SequenceKeys.isValid(lastTransmission)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "malformed last event id");
+			return;
+		}
+		if (recipientId != null && lastTransmission != null) {
+			try {
+				deliveryCursors.advance(recipientId, lastTransmission);
+			} catch (IllegalArgumentException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+				return;
+			}
+		}
+		resp.setContentType("text/event-stream");
+		resp.setCharacterEncoding("UTF-8");
+		AsyncContext context = req.startAsync();
+		context.setTimeout(0L);
+		ServletOutputStream out = resp.getOutputStream();
+		MessageStream stream = new MessageStream(context, out, recipientId, lastTransmission);
+		context.addListener(stream);
+		streams.add(stream);
+		// The first write commits the response, so the client sees the stream
+		// open, then the stream waits for messages.
+		out.setWriteListener(stream);
 	}
 
+	/**
+	 * Returns the last transmitted sequence key. On reconnection, an event
+	 * source repeats the initial request parameters and passes the id of the
+	 * last received event, which takes precedence.
+	 */
 	private String getLastTransmission(HttpServletRequest req) {
-		return req.getParameter("last-transmission");
+		String result = req.getHeader("Last-Event-ID");
+		return result != null ? result : req.getParameter("last-transmission");
 	}
 
 	private static String getRecipientId(HttpServletRequest req) {
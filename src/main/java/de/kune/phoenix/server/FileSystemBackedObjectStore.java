@@ -1,20 +1,37 @@
 package de.kune.phoenix.server;
 
+import static de.kune.phoenix.shared.Sequenced.NO_SEQUENCE;
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,9 +39,8 @@ import javax.annotation.PostConstruct;
 
 import org.springframework.beans.factory.annotation.Value;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import de.kune.phoenix.shared.Identifiable;
+import de.kune.phoenix.shared.SequenceKeys;
 import de.kune.phoenix.shared.Sequenced;
 
 public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<String>, I>
@@ -38,10 +54,16 @@ public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<S
 		return store;
 	}
 
-	private static final Pattern filenamePattern = Pattern.compile("(?<id>.*?)\\[(?<type>.*?)\\]\\.json");
-	private static final AtomicLong sequence = new AtomicLong(0L);
+	private static final Pattern filenamePattern = Pattern.compile("(?<id>.*?)\\[(?<type>.*?)\\]\\.(?<codec>\\w+)");
+	private static final SequenceKeyGenerator defaultSequenceKeyGenerator = new CounterSequenceKeyGenerator();
+
+	/**
+	 * The number of the most recent manifest entries checked against their
+	 * files on start-up.
+	 */
+	private static final int VERIFIED_MANIFEST_TAIL = 64;
 
-	private ObjectMapper mapper = new ObjectMapper();
+	private ObjectCodec codec = new JsonObjectCodec();
 
 	@Value("${filesystemlocation:store}")
 	private String fileSystemLocation;
@@ -50,6 +72,73 @@ public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<S
 
 	private File file;
 
+	private final NavigableMap<Long, File> sequenceIndex = new TreeMap<>();
+
+	/**
+	 * The files of all present objects by the id part of their name, so ids
+	 * are resolved without listing the directory.
+	 */
+	private final Map<String, File> filesById = new HashMap<>();
+
+	/**
+	 * The files put since the last sync. Only tracked with group commit, as
+	 * nothing syncs them otherwise.
+	 */
+	private final List<File> unsynced = new ArrayList<>();
+
+	private StoreManifest manifest;
+
+	private volatile ObjectCache<File, byte[]> cache;
+
+	/**
+	 * Sets the codec to encode added objects with. Present objects are decoded
+	 * with the codec they were written with, named by their file extension.
+	 * 
+	 * @param codec
+	 *            the codec
+	 */
+	public void setCodec(ObjectCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Enables caching of the file contents of objects. Cached objects are
+	 * decoded on each read, so callers never share an instance.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of cached objects
+	 * @param maxBytes
+	 *            the maximum accumulated file size of cached objects
+	 */
+	public void enableCache(int maxEntries, long maxBytes) {
+		cache = new ObjectCache<>(maxEntries, maxBytes);
+	}
+
+	/**
+	 * Returns the cache of file contents.
+	 * 
+	 * @return the cache or null if caching is disabled
+	 */
+	public ObjectCache<File, byte[]> getCache() {
+		return cache;
+	}
+
+	private static String fileIdOf(Object id) {
+		return id.toString().replace("/", "_");
+	}
+
+	private static String fileIdOf(File f) {
+		Matcher m = filenamePattern.matcher(f.getName());
+		m.matches();
+		return m.group("id");
+	}
+
+	private void uncache(File f) {
+		if (cache != null) {
+			cache.remove(f);
+		}
+	}
+
 	@PostConstruct
 	protected void init() {
 		file = new File(fileSystemLocation);
@@ -59,24 +148,104 @@ public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<S
 		if (!file.isDirectory()) {
 			throw new IllegalStateException(format("file [%s] exists and is not a directory"));
 		}
-		updateSequence(findHighestSequenceKey());
+		buildSequenceIndex();
+		updateSequence(sequenceIndex.isEmpty() ? NO_SEQUENCE : sequenceIndex.lastKey());
 		path = file.toPath();
 	}
 
-	private String findHighestSequenceKey() {
-		String cand = null;
-		for (File f : file.listFiles(new FilenameFilter() {
+	/**
+	 * Builds the sequence index from the manifest, reading only the files not
+	 * covered by it. Falls back to reading all files in parallel if the
+	 * manifest is missing, unreadable or its most recent entries do not match
+	 * the sequence keys of their files. Writes a fresh manifest snapshot.
+	 */
+	private void buildSequenceIndex() {
+		sequenceIndex.clear();
+		filesById.clear();
+		manifest = new StoreManifest(new File(file, "manifest"));
+		File[] files = file.listFiles(new FilenameFilter() {
 			@Override
 			public boolean accept(File dir, String name) {
 				return filenamePattern.matcher(name).matches();
 			}
-		})) {
-			T o = read(f);
-			if (cand == null || cand.compareTo(o.getSequenceKey()) < 0) {
-				cand = o.getSequenceKey();
+		});
+		for (File f : files) {
+			filesById.put(fileIdOf(f), f);
+		}
+		Map<String, String> checkpoint = manifest.load();
+		if (checkpoint == null || !matchesTail(checkpoint)) {
+			Arrays.stream(files).parallel().map(f -> new SimpleEntry<>(read(f).sequence(), f))
+					.filter(e -> e.getKey() != NO_SEQUENCE).sequential()
+					.forEach(e -> sequenceIndex.put(e.getKey(), e.getValue()));
+		} else {
+			Map<String, File> unchecked = new HashMap<>();
+			for (File f : files) {
+				unchecked.put(f.getName(), f);
 			}
+			for (Map.Entry<String, String> e : checkpoint.entrySet()) {
+				File f = unchecked.remove(e.getValue());
+				if (f != null) {
+					sequenceIndex.put(SequenceKeys.parse(e.getKey()), f);
+				}
+			}
+			// Files written after the checkpoint or without a sequence key.
+			for (File f : unchecked.values()) {
+				T object = read(f);
+				if (object.sequence() != NO_SEQUENCE) {
+					sequenceIndex.put(object.sequence(), f);
+				}
+			}
+		}
+		manifest.checkpoint(checkpointEntries());
+	}
+
+	/**
+	 * Checks the most recent manifest entries against the sequence keys of
+	 * their files. Entries of missing files are ignored.
+	 */
+	private boolean matchesTail(Map<String, String> checkpoint) {
+		return checkpoint.entrySet().stream().skip(Math.max(0, checkpoint.size() - VERIFIED_MANIFEST_TAIL))
+				.allMatch(e -> matches(e.getKey(), new File(file, e.getValue())));
+	}
+
+	private boolean matches(String sequenceKey, File f) {
+		if (!filenamePattern.matcher(f.getName()).matches() || !f.isFile()) {
+			return true;
+		}
+		try {
+			return read(f).sequence() == SequenceKeys.parse(sequenceKey);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private Map<String, String> checkpointEntries() {
+		Map<String, String> result = new LinkedHashMap<>();
+		for (Map.Entry<Long, File> e : sequenceIndex.entrySet()) {
+			result.put(SequenceKeys.format(e.getKey()), e.getValue().getName());
+		}
+		return result;
+	}
+
+	private void index(T object, File file) {
+		if (object.sequence() != NO_SEQUENCE) {
+			sequenceIndex.put(object.sequence(), file);
+			manifest.put(object.getSequenceKey(), file.getName());
+			compactManifest();
+		}
+	}
+
+	private void unindex(T object) {
+		if (object.sequence() != NO_SEQUENCE && sequenceIndex.remove(object.sequence()) != null) {
+			manifest.remove(object.getSequenceKey());
+			compactManifest();
+		}
+	}
+
+	private void compactManifest() {
+		if (manifest.needsCompaction(sequenceIndex.size())) {
+			manifest.checkpoint(checkpointEntries());
 		}
-		return cand;
 	}
 
 	@Override
@@ -89,21 +258,44 @@ public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<S
 		})) {
 			try {
 				Files.delete(f.toPath());
+				uncache(f);
 			} catch (IOException e) {
 				throw new IllegalStateException(e);
 			}
 		}
+		sequenceIndex.clear();
+		filesById.clear();
+		manifest.checkpoint(checkpointEntries());
+		unsynced.clear();
 	}
 
 	@Override
-	protected boolean doesContain(I id) {
-		return file.listFiles(new FilenameFilter() {
-			@Override
-			public boolean accept(File dir, String name) {
-				Matcher m = filenamePattern.matcher(name);
-				return m.matches() && m.group("id").equals(id.toString().replace("/", "_"));
+	protected void doSync() {
+		if (unsynced.isEmpty()) {
+			return;
+		}
+		for (File f : unsynced) {
+			try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+				channel.force(true);
+			} catch (NoSuchFileException e) {
+				// Removed in the meantime.
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
 			}
-		}).length > 0;
+		}
+		try {
+			// Makes the names of the created files durable.
+			syncDirectory(file);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		manifest.sync();
+		unsynced.clear();
+	}
+
+	@Override
+	protected boolean doesContain(I id) {
+		return filesById.containsKey(fileIdOf(id));
 	}
 
 	@Override
@@ -111,10 +303,21 @@ public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<S
 		requireNonNull(object);
 		requireNonNull(object.getId());
 		try {
-			OutputStream os = new FileOutputStream(
-					path.resolve(object.getId().toString().replace("/", "_") + "[" + object.getClass().getName() + "].json").toFile());
-			mapper.writeValue(os, object);
-			os.close();
+			String fileId = fileIdOf(object.getId());
+			File f = path.resolve(fileId + "[" + object.getClass().getName() + "]." + codec.getName()).toFile();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			codec.encode(object, bytes);
+			try (OutputStream os = new FileOutputStream(f)) {
+				bytes.writeTo(os);
+			}
+			filesById.put(fileId, f);
+			index(object, f);
+			if (isGroupCommitEnabled()) {
+				unsynced.add(f);
+			}
+			if (cache != null) {
+				cache.put(f, bytes.toByteArray(), bytes.size());
+			}
 		} catch (IOException e) {
 			throw new IllegalStateException(e);
 		}
@@ -122,46 +325,68 @@ public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<S
 
 	@Override
 	protected Set<T> doGetAll() {
-		Set<T> result = new TreeSet<T>((a, b) -> a.getSequenceKey().compareTo(b.getSequenceKey()));
-		for (File f : file.listFiles(new FilenameFilter() {
-			@Override
-			public boolean accept(File dir, String name) {
-				return filenamePattern.matcher(name).matches();
-			}
-		})) {
+		Set<T> result = new TreeSet<T>(SEQUENCE_ORDER);
+		for (File f : filesById.values()) {
 			result.add(read(f));
 		}
 		return result;
 	}
 
+	@Override
+	protected T doGet(I id) {
+		File f = filesById.get(fileIdOf(id));
+		return f == null ? null : read(f);
+	}
+
 	private T read(File file) {
+		ObjectCache<File, byte[]> cache = this.cache;
+		try {
+			if (cache == null) {
+				try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+					return deserialize(file, inputStream);
+				}
+			}
+			byte[] bytes = cache.get(file);
+			if (bytes == null) {
+				bytes = Files.readAllBytes(file.toPath());
+				cache.put(file, bytes, bytes.length);
+			}
+			return deserialize(file, new ByteArrayInputStream(bytes));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private T deserialize(File file, InputStream inputStream) throws IOException {
 		Matcher m = filenamePattern.matcher(file.getName());
 		m.find();
 		String valueTypeName = m.group("type");
+		ObjectCodec fileCodec = codec.getName().equals(m.group("codec")) ? codec : ObjectCodec.forName(m.group("codec"));
 		try {
 			@SuppressWarnings("unchecked")
 			Class<T> valueType = (Class<T>) Class.forName(valueTypeName);
-			FileInputStream inputStream = new FileInputStream(file);
-			return mapper.readValue(inputStream, valueType);
-		} catch (IOException | ClassNotFoundException e) {
+			return fileCodec.decode(inputStream, valueType);
+		} catch (ClassNotFoundException e) {
 			throw new IllegalStateException(e);
 		}
+	}
 
+	@Override
+	protected Page<T, String> doGetAfter(String sequenceKey, Predicate<T> predicate, int limit) {
+		NavigableMap<Long, File> range = sequenceKey == null ? sequenceIndex
+				: sequenceIndex.tailMap(sequenceOf(sequenceKey), false);
+		return page(range.values().stream().map(this::read).iterator(), predicate, limit);
 	}
 
 	@Override
 	protected Iterator<T> doIterate() {
 		return new Iterator<T>() {
 			private File[] files;
+			private T current;
 			int index = -1;
 
 			{
-				files = file.listFiles(new FilenameFilter() {
-					@Override
-					public boolean accept(File dir, String name) {
-						return filenamePattern.matcher(name).matches();
-					}
-				});
+				files = filesById.values().toArray(new File[filesById.size()]);
 			}
 
 			@Override
@@ -171,13 +396,17 @@ public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<S
 
 			@Override
 			public T next() {
-				return read(files[++index]);
+				current = read(files[++index]);
+				return current;
 			}
 
 			@Override
 			public void remove() {
 				try {
 					Files.delete(files[index].toPath());
+					filesById.remove(fileIdOf(files[index]));
+					uncache(files[index]);
+					unindex(current);
 				} catch (IOException e) {
 					throw new IllegalStateException(e);
 				}
@@ -196,15 +425,13 @@ public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<S
 
 	@Override
 	protected void doRemove(I id) {
-		for (File f : file.listFiles(new FilenameFilter() {
-			@Override
-			public boolean accept(File dir, String name) {
-				Matcher m = filenamePattern.matcher(name);
-				return m.matches() && m.group("id").equals(id.toString());
-			}
-		})) {
+		File f = filesById.get(fileIdOf(id));
+		if (f != null) {
 			try {
+				unindex(read(f));
 				Files.delete(f.toPath());
+				filesById.remove(fileIdOf(id));
+				uncache(f);
 			} catch (IOException e) {
 				throw new IllegalStateException(e);
 			}
@@ -212,15 +439,20 @@ public class FileSystemBackedObjectStore<T extends Identifiable<I> & Sequenced<S
 	}
 
 	@Override
-	protected String doGenerateSequenceKey() {
-		return format("%025d", sequence.getAndIncrement());
+	protected SequenceKeyGenerator getDefaultSequenceKeyGenerator() {
+		return defaultSequenceKeyGenerator;
 	}
 
-	protected void updateSequence(String sequenceKey) {
-		long value = sequenceKey == null ? 0L : Long.parseLong(sequenceKey);
-		if (sequence.get() < value) {
-			sequence.set(value);
-		}
+	@Override
+	protected long doGetHighestSequence() {
+		return sequenceIndex.isEmpty() ? NO_SEQUENCE : sequenceIndex.lastKey();
+	}
+
+	/**
+	 * Makes the sequence continue after the highest present one.
+	 */
+	protected void updateSequence(long highestSequence) {
+		getSequenceKeyGenerator().observe(highestSequence);
 	}
 
 }
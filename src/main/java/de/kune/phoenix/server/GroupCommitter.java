@@ -0,0 +1,166 @@
+package de.kune.phoenix.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects objects submitted by concurrent callers into batches and hands
+ * each batch to a committer on a single background thread. A batch is closed
+ * as soon as it holds the maximum batch size or the maximum linger time since
+ * its first object has elapsed. The committer completes the future of every
+ * pending object of the batch.
+ *
+ * @param <T>
+ *            the object type
+ */
+class GroupCommitter<T> {
+
+	/**
+	 * An object waiting to be committed.
+	 */
+	static class Pending<T> {
+		private final T object;
+		private final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+		private Pending(T object) {
+			this.object = object;
+		}
+
+		T getObject() {
+			return object;
+		}
+
+		CompletableFuture<Void> getCommitted() {
+			return committed;
+		}
+	}
+
+	private final BlockingQueue<Pending<T>> queue = new LinkedBlockingQueue<>();
+
+	/**
+	 * Queued by {@link #close()} after the last object submitted.
+	 */
+	private final Pending<T> end = new Pending<>(null);
+
+	private final int maxBatchSize;
+	private final long maxLingerNanos;
+	private final Consumer<List<Pending<T>>> committer;
+	private final Thread thread;
+	private boolean closed;
+
+	GroupCommitter(String name, int maxBatchSize, long maxLinger, TimeUnit unit,
+			Consumer<List<Pending<T>>> committer) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("max batch size must be positive");
+		}
+		this.maxBatchSize = maxBatchSize;
+		this.maxLingerNanos = unit.toNanos(maxLinger);
+		this.committer = committer;
+		this.thread = new Thread(this::run, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Submits an object to be committed with the next batch.
+	 *
+	 * @param object
+	 *            the object
+	 * @return a future completed when the batch has been committed, or
+	 *         completed exceptionally at once if this committer has been
+	 *         closed
+	 */
+	CompletableFuture<Void> submit(T object) {
+		Pending<T> pending = new Pending<>(object);
+		synchronized (queue) {
+			if (closed) {
+				pending.committed.completeExceptionally(new IllegalStateException("group committer has been closed"));
+			} else {
+				queue.add(pending);
+			}
+		}
+		return pending.committed;
+	}
+
+	/**
+	 * Stops committing. Objects submitted before are still committed, this
+	 * method returns after their batches. Later submits fail at once. The
+	 * committer thread is not interrupted, so a commit in progress is not
+	 * aborted, e.g. in the middle of forcing a file.
+	 */
+	void close() {
+		synchronized (queue) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			queue.add(end);
+		}
+		boolean interrupted = false;
+		while (thread.isAlive() && thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		boolean ended = false;
+		try {
+			while (!ended) {
+				List<Pending<T>> batch = new ArrayList<>(maxBatchSize);
+				Pending<T> first = queue.take();
+				if (first == end) {
+					break;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + maxLingerNanos;
+				while (batch.size() < maxBatchSize) {
+					Pending<T> next = queue.poll();
+					if (next == null) {
+						next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (next == null) {
+							break;
+						}
+					}
+					if (next == end) {
+						ended = true;
+						break;
+					}
+					batch.add(next);
+				}
+				commit(batch);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			synchronized (queue) {
+				closed = true;
+			}
+			for (Pending<T> pending : queue) {
+				pending.committed.completeExceptionally(new IllegalStateException("group committer has been closed"));
+			}
+		}
+	}
+
+	private void commit(List<Pending<T>> batch) {
+		try {
+			committer.accept(batch);
+		} catch (RuntimeException e) {
+			for (Pending<T> pending : batch) {
+				pending.committed.completeExceptionally(e);
+			}
+		}
+	}
+
+}
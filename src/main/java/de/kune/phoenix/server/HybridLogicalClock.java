@@ -0,0 +1,169 @@
+package de.kune.phoenix.server;
+
+import static java.lang.String.format;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import de.kune.phoenix.shared.Sequenced;
+
+/**
+ * Generates sequences from a hybrid logical clock, so nodes sharing storage
+ * generate distinct sequences ordered roughly by wall-clock time. A sequence
+ * holds, from the most to the least significant bits, the milliseconds since
+ * the {@link #EPOCH} (41 bits, lasting until 2085), a logical counter (12
+ * bits) and the node id (10 bits).
+ * <p>
+ * The clock never runs backwards: it advances the counter while the wall
+ * clock stands still or lags behind the last sequence, generated here or
+ * observed from another node. The counter overflows into the time bits, so
+ * the clock runs ahead under sustained bursts of more than 4096 sequences per
+ * millisecond until the wall clock catches up. Sequences of one node are
+ * strictly increasing, sequences of different nodes never collide, and all of
+ * them are totally ordered. Generation is lock-free.
+ * <p>
+ * Nodes only observe each other's sequences through the messages they
+ * exchange, so the order across nodes is only as good as their clock
+ * synchronization. A node whose clock lags behind keeps generating sequences
+ * below those already written by the others. On shared storage, a reader
+ * paging with a cursor that has passed them skips these later writes of the
+ * lagging node. Keep node clocks synchronized, e.g. by NTP, well within the
+ * cursor readers' tolerance.
+ */
+public class HybridLogicalClock implements SequenceKeyGenerator {
+
+	/**
+	 * The epoch of the time bits, 2016-01-01T00:00:00Z, in milliseconds.
+	 */
+	public static final long EPOCH = 1451606400000L;
+
+	private static final int COUNTER_BITS = 12;
+	private static final int NODE_BITS = 10;
+
+	/**
+	 * The number of distinct node ids.
+	 */
+	public static final int MAX_NODES = 1 << NODE_BITS;
+
+	private final int nodeId;
+	private final LongSupplier clock;
+
+	/**
+	 * The time and counter bits of the last sequence, without the node id.
+	 */
+	private final AtomicLong last = new AtomicLong();
+
+	/**
+	 * Creates a clock reading the system time.
+	 * 
+	 * @param nodeId
+	 *            the node id, from 0 to {@link #MAX_NODES} - 1
+	 */
+	public HybridLogicalClock(int nodeId) {
+		this(nodeId, System::currentTimeMillis);
+	}
+
+	/**
+	 * Creates a clock.
+	 * 
+	 * @param nodeId
+	 *            the node id, from 0 to {@link #MAX_NODES} - 1
+	 * @param clock
+	 *            supplies the wall-clock time in milliseconds
+	 */
+	public HybridLogicalClock(int nodeId, LongSupplier clock) {
+		if (nodeId < 0 || nodeId >= MAX_NODES) {
+			throw new IllegalArgumentException(format("node id must be in [0, %d)", MAX_NODES));
+		}
+		this.nodeId = nodeId;
+		this.clock = clock;
+	}
+
+	public int getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Returns the node id of the specified sequence.
+	 * 
+	 * @param sequence
+	 *            a sequence generated by a hybrid logical clock
+	 * @return the node id
+	 */
+	public static int nodeOf(long sequence) {
+		return (int) (sequence & (MAX_NODES - 1));
+	}
+
+	/**
+	 * Returns the time of the specified sequence.
+	 * 
+	 * @param sequence
+	 *            a sequence generated by a hybrid logical clock
+	 * @return the time in milliseconds since 1970-01-01T00:00:00Z
+	 */
+	public static long timeOf(long sequence) {
+		return (sequence >>> (NODE_BITS + COUNTER_BITS)) + EPOCH;
+	}
+
+	private long physical() {
+		return Math.max(0L, clock.getAsLong() - EPOCH) << COUNTER_BITS;
+	}
+
+	private long sequence(long timestamp) {
+		return timestamp << NODE_BITS | nodeId;
+	}
+
+	@Override
+	public long next() {
+		return sequence(last.accumulateAndGet(physical(), (previous, now) -> Math.max(now, previous + 1)));
+	}
+
+	@Override
+	public long[] next(int count) {
+		long end = last.accumulateAndGet(physical(), (previous, now) -> Math.max(now, previous + 1) + count - 1);
+		long[] result = new long[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = sequence(end - count + 1 + i);
+		}
+		return result;
+	}
+
+	@Override
+	public void observe(long sequence) {
+		if (sequence >= 0) {
+			last.accumulateAndGet(sequence >>> NODE_BITS, Math::max);
+		}
+	}
+
+	/**
+	 * Checks whether the specified sequence is ahead of this clock by more
+	 * than the specified skew, i.e. its time exceeds both the wall-clock time
+	 * and the time of the highest sequence by more than the skew. Observing it
+	 * would run this clock ahead of the wall clock for that long.
+	 * 
+	 * @param sequence
+	 *            the sequence, never ahead if negative
+	 * @param maxSkew
+	 *            the skew in milliseconds
+	 * @return true if the sequence is too far ahead
+	 */
+	public boolean isAhead(long sequence, long maxSkew) {
+		if (sequence < 0) {
+			return false;
+		}
+		long highest = highest();
+		long now = highest == Sequenced.NO_SEQUENCE ? clock.getAsLong() : Math.max(clock.getAsLong(), timeOf(highest));
+		return timeOf(sequence) > now + maxSkew;
+	}
+
+	/**
+	 * Returns the last time and counter with the highest node id, as observed
+	 * sequences of other nodes may have a higher node id than this one.
+	 */
+	@Override
+	public long highest() {
+		long result = last.get();
+		return result == 0L ? Sequenced.NO_SEQUENCE : result << NODE_BITS | (MAX_NODES - 1);
+	}
+
+}
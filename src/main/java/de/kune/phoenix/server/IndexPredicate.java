@@ -0,0 +1,68 @@
+package de.kune.phoenix.server;
+
+import java.util.function.Predicate;
+
+/**
+ * A predicate that only matches elements filed under a certain key of a named
+ * index. Stores maintaining that index may use the key to look up candidates
+ * instead of testing the predicate against all elements.
+ *
+ * @param <T>
+ *            the element type
+ */
+public interface IndexPredicate<T> extends Predicate<T> {
+
+	/**
+	 * Creates an index predicate.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param key
+	 *            the key all matching elements are filed under
+	 * @param predicate
+	 *            the predicate
+	 * @return an index predicate
+	 */
+	static <T> IndexPredicate<T> of(String indexName, Object key, Predicate<T> predicate) {
+		return new IndexPredicate<T>() {
+			@Override
+			public boolean test(T t) {
+				return predicate.test(t);
+			}
+
+			@Override
+			public String getIndexName() {
+				return indexName;
+			}
+
+			@Override
+			public Object getKey() {
+				return key;
+			}
+		};
+	}
+
+	/**
+	 * Returns the name of the index.
+	 *
+	 * @return the index name
+	 */
+	String getIndexName();
+
+	/**
+	 * Returns the key all matching elements are filed under.
+	 *
+	 * @return the key
+	 */
+	Object getKey();
+
+	/**
+	 * Returns a composed index predicate retaining the index name and key of
+	 * this predicate.
+	 */
+	@Override
+	default IndexPredicate<T> and(Predicate<? super T> other) {
+		return of(getIndexName(), getKey(), Predicate.super.and(other));
+	}
+
+}
@@ -0,0 +1,303 @@
+package de.kune.phoenix.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import de.kune.phoenix.shared.Identifiable;
+import de.kune.phoenix.shared.Sequenced;
+
+/**
+ * An object store maintaining in-memory inverted indexes on top of a backing
+ * store. Each index maps the keys extracted from an element to a posting list
+ * of element ids. Queries with an {@link IndexPredicate} on a maintained index
+ * only touch the elements in the posting list of the predicate's key. Posting
+ * lists are ordered by sequence, so a page of a range query only reads the
+ * elements it returns and those failing the rest of the predicate.
+ * <p>
+ * The backing store is accessed under the lock of this store, which it shares,
+ * and must not be used directly. Elements evicted by the backing store itself
+ * are unfiled.
+ *
+ * @param <T>
+ *            the identifiable, sequenced element type
+ * @param <I>
+ *            the id type
+ * @param <S>
+ *            the sequence type
+ */
+public class IndexedObjectStore<T extends Identifiable<I> & Sequenced<S>, I, S extends Comparable<S>>
+		extends LockingObjectStore<T, I, S> {
+
+	private final LockingObjectStore<T, I, S> backingStore;
+	private final Map<String, Function<T, Collection<?>>> keyExtractors = new LinkedHashMap<>();
+	private final Map<String, Map<Object, PostingList>> postingLists = new HashMap<>();
+
+	/**
+	 * The ids of the elements filed under a key, by sequence.
+	 */
+	private class PostingList {
+		private final NavigableMap<Long, I> sequenced = new TreeMap<>();
+		private final Set<I> unsequenced = new LinkedHashSet<>();
+
+		private void add(T object) {
+			if (object.sequence() == Sequenced.NO_SEQUENCE) {
+				unsequenced.add(object.getId());
+			} else {
+				sequenced.put(object.sequence(), object.getId());
+			}
+		}
+
+		private void remove(T object) {
+			if (object.sequence() == Sequenced.NO_SEQUENCE) {
+				unsequenced.remove(object.getId());
+			} else {
+				sequenced.remove(object.sequence(), object.getId());
+			}
+		}
+
+		private void removeIf(Predicate<I> filter) {
+			sequenced.values().removeIf(filter);
+			unsequenced.removeIf(filter);
+		}
+
+		private boolean isEmpty() {
+			return sequenced.isEmpty() && unsequenced.isEmpty();
+		}
+
+		private Iterable<I> ids() {
+			List<I> result = new ArrayList<>(unsequenced);
+			result.addAll(sequenced.values());
+			return result;
+		}
+	}
+
+	public IndexedObjectStore(LockingObjectStore<T, I, S> backingStore) {
+		super(backingStore);
+		this.backingStore = backingStore;
+		backingStore.setEvictionListener(this::unfile);
+	}
+
+	/**
+	 * Adds an index to this store and files all present elements.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param keyExtractor
+	 *            extracts the keys an element is filed under, may return null
+	 * @return this store
+	 */
+	public IndexedObjectStore<T, I, S> withIndex(String indexName, Function<T, Collection<?>> keyExtractor) {
+		keyExtractors.put(indexName, keyExtractor);
+		postingLists.put(indexName, new HashMap<>());
+		for (T object : backingStore.doGetAll()) {
+			file(indexName, object);
+		}
+		return this;
+	}
+
+	private void file(String indexName, T object) {
+		Collection<?> keys = keyExtractors.get(indexName).apply(object);
+		if (keys != null) {
+			for (Object key : keys) {
+				postingLists.get(indexName).computeIfAbsent(key, k -> new PostingList()).add(object);
+			}
+		}
+	}
+
+	private void unfile(T object) {
+		for (String indexName : keyExtractors.keySet()) {
+			Collection<?> keys = keyExtractors.get(indexName).apply(object);
+			if (keys != null) {
+				Map<Object, PostingList> postingList = postingLists.get(indexName);
+				for (Object key : keys) {
+					PostingList ids = postingList.get(key);
+					if (ids != null) {
+						ids.remove(object);
+						if (ids.isEmpty()) {
+							postingList.remove(key);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unfiles evicted elements. As they cannot be read any more, all posting
+	 * lists are scanned for their ids.
+	 */
+	private void unfile(Set<String> evictedIds) {
+		for (Map<Object, PostingList> postingList : postingLists.values()) {
+			postingList.values().removeIf(ids -> {
+				ids.removeIf(id -> evictedIds.contains(id.toString()));
+				return ids.isEmpty();
+			});
+		}
+	}
+
+	@Override
+	protected Set<T> doGet(Predicate<T> predicate) {
+		if (predicate instanceof IndexPredicate) {
+			IndexPredicate<T> indexPredicate = (IndexPredicate<T>) predicate;
+			Map<Object, PostingList> postingList = postingLists.get(indexPredicate.getIndexName());
+			if (postingList != null) {
+				Set<T> result = new LinkedHashSet<>();
+				PostingList ids = postingList.get(indexPredicate.getKey());
+				for (I id : ids == null ? Collections.<I> emptyList() : ids.ids()) {
+					T object = backingStore.doGet(id);
+					if (object != null && predicate.test(object)) {
+						result.add(object);
+					}
+				}
+				return result;
+			}
+		}
+		return super.doGet(predicate);
+	}
+
+	/**
+	 * Pages through the posting list of an index predicate from the sequence
+	 * key on. Elements without a sequence key are never after one.
+	 */
+	@Override
+	protected Page<T, S> doGetAfter(S sequenceKey, Predicate<T> predicate, int limit) {
+		if (predicate instanceof IndexPredicate) {
+			IndexPredicate<T> indexPredicate = (IndexPredicate<T>) predicate;
+			Map<Object, PostingList> postingList = postingLists.get(indexPredicate.getIndexName());
+			if (postingList != null) {
+				PostingList ids = postingList.get(indexPredicate.getKey());
+				if (ids == null) {
+					return new Page<>(Collections.emptyList(), null);
+				}
+				NavigableMap<Long, I> range = ids.sequenced.tailMap(sequenceOf(sequenceKey), false);
+				return page(range.values().stream().map(backingStore::doGet).iterator(), predicate, limit);
+			}
+		}
+		return backingStore.doGetAfter(sequenceKey, predicate, limit);
+	}
+
+	@Override
+	protected Set<Object> doGetIndexKeys(String indexName) {
+		Map<Object, PostingList> postingList = postingLists.get(indexName);
+		return postingList == null ? null : new LinkedHashSet<>(postingList.keySet());
+	}
+
+	@Override
+	protected void doRemove(I id) {
+		T object = backingStore.doGet(id);
+		if (object != null) {
+			unfile(object);
+		}
+		backingStore.doRemove(id);
+	}
+
+	@Override
+	protected void doClear() {
+		backingStore.doClear();
+		for (Map<Object, PostingList> postingList : postingLists.values()) {
+			postingList.clear();
+		}
+	}
+
+	@Override
+	protected void doSync() {
+		backingStore.doSync();
+	}
+
+	@Override
+	protected boolean doesContain(I id) {
+		return backingStore.doesContain(id);
+	}
+
+	@Override
+	protected void doPut(T object) {
+		backingStore.doPut(object);
+		for (String indexName : keyExtractors.keySet()) {
+			file(indexName, object);
+		}
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		backingStore.close();
+	}
+
+	@Override
+	protected Set<T> doGetAll() {
+		return backingStore.doGetAll();
+	}
+
+	@Override
+	protected T doGet(I id) {
+		return backingStore.doGet(id);
+	}
+
+	@Override
+	protected Iterator<T> doIterate() {
+		Iterator<T> iterator = backingStore.doIterate();
+		return new Iterator<T>() {
+			private T current;
+
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public T next() {
+				current = iterator.next();
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				unfile(current);
+				iterator.remove();
+			}
+		};
+	}
+
+	@Override
+	protected T doGetAny() {
+		return backingStore.doGetAny();
+	}
+
+	@Override
+	protected S doGenerateSequenceKey() {
+		return backingStore.doGenerateSequenceKey();
+	}
+
+	@Override
+	public void setSequenceKeyGenerator(SequenceKeyGenerator generator) {
+		backingStore.setSequenceKeyGenerator(generator);
+	}
+
+	@Override
+	protected long doGetHighestSequence() {
+		return backingStore.doGetHighestSequence();
+	}
+
+	@Override
+	protected void observeSequence(long sequence) {
+		backingStore.observeSequence(sequence);
+	}
+
+	@Override
+	protected List<S> doGenerateSequenceKeys(int count) {
+		return backingStore.doGenerateSequenceKeys(count);
+	}
+
+}
@@ -0,0 +1,36 @@
+package de.kune.phoenix.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Encodes objects as JSON.
+ */
+public class JsonObjectCodec implements ObjectCodec {
+
+	public static final String NAME = "json";
+
+	private final ObjectMapper mapper = new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+			.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void encode(Object object, OutputStream out) throws IOException {
+		mapper.writeValue(out, object);
+	}
+
+	@Override
+	public <T> T decode(InputStream in, Class<T> type) throws IOException {
+		return mapper.readValue(in, type);
+	}
+
+}
@@ -1,35 +1,410 @@
 package de.kune.phoenix.server;
 
 import static java.lang.String.format;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 import de.kune.phoenix.shared.Identifiable;
+import de.kune.phoenix.shared.SequenceKeys;
 import de.kune.phoenix.shared.Sequenced;
 
 public abstract class LockingObjectStore<T extends Identifiable<I> & Sequenced<S>, I, S extends Comparable<S>>
 		implements ObjectStore<T, I, S> {
 
-	private ReadWriteLock objectsLock = new ReentrantReadWriteLock();
-	private Condition objectAdded = objectsLock.writeLock().newCondition();
+	/**
+	 * A registered await call. Completed with the matching objects of the
+	 * first add containing any.
+	 */
+	private class Waiter {
+		private final Predicate<T> predicate;
+		private final CompletableFuture<Set<T>> result = new CompletableFuture<>();
+
+		private Waiter(Predicate<T> predicate) {
+			this.predicate = predicate;
+		}
+
+		private void offer(Collection<T> objects) {
+			try {
+				Set<T> matches = new LinkedHashSet<>();
+				for (T object : objects) {
+					if (predicate.test(object)) {
+						matches.add(object);
+					}
+				}
+				if (!matches.isEmpty()) {
+					result.complete(matches);
+				}
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Orders elements by their sequence number.
+	 */
+	protected static final Comparator<Sequenced<?>> SEQUENCE_ORDER = (a, b) -> Long.compare(a.sequence(),
+			b.sequence());
+
+	private final ReadWriteLock objectsLock;
+	private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+	private final List<Consumer<Collection<T>>> listeners = new CopyOnWriteArrayList<>();
+	private final Object syncMonitor = new Object();
+	private volatile GroupCommitter<Write> groupCommitter;
+	private volatile Consumer<Set<String>> evictionListener;
+	private volatile SequenceKeyGenerator sequenceKeyGenerator;
+
+	protected LockingObjectStore() {
+		this.objectsLock = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Creates a store sharing the objects lock of the specified store, e.g. the
+	 * store it delegates to. Maintenance work of that store, locking on its
+	 * own, then excludes the operations of this store.
+	 * 
+	 * @param lockOwner
+	 *            the store to share the objects lock with
+	 */
+	protected LockingObjectStore(LockingObjectStore<?, ?, ?> lockOwner) {
+		this.objectsLock = lockOwner.objectsLock;
+	}
+
+	/**
+	 * Returns the read lock guarding the objects, for maintenance work of
+	 * subclasses running outside of the store operations.
+	 */
+	protected Lock readLock() {
+		return objectsLock.readLock();
+	}
+
+	/**
+	 * Returns the write lock guarding the objects, for maintenance work of
+	 * subclasses running outside of the store operations.
+	 */
+	protected Lock writeLock() {
+		return objectsLock.writeLock();
+	}
+
+	/**
+	 * Sets the listener notified of the ids, in their string form, of elements
+	 * evicted by this store itself rather than removed through its interface.
+	 * It is called holding the objects write lock.
+	 * 
+	 * @param listener
+	 *            the listener or null
+	 */
+	protected void setEvictionListener(Consumer<Set<String>> listener) {
+		this.evictionListener = listener;
+	}
+
+	/**
+	 * Notifies the eviction listener. Must be called holding the objects write
+	 * lock.
+	 * 
+	 * @param ids
+	 *            the ids of the evicted elements in their string form
+	 */
+	protected void evicted(Set<String> ids) {
+		Consumer<Set<String>> listener = evictionListener;
+		if (listener != null && !ids.isEmpty()) {
+			listener.accept(ids);
+		}
+	}
+
+	/**
+	 * Enables group commit. Adds from concurrent callers are then queued and
+	 * written as one batch under a single lock acquisition, followed by one
+	 * {@link #doSync()} per batch. Each add returns only after its batch has
+	 * been synced. Without group commit, objects are not synced.
+	 * 
+	 * @param maxBatchSize
+	 *            the maximum number of add calls per batch
+	 * @param maxLinger
+	 *            the maximum time to wait for further objects of a batch
+	 * @param unit
+	 *            the time unit of the linger argument
+	 */
+	public synchronized void enableGroupCommit(int maxBatchSize, long maxLinger, TimeUnit unit) {
+		if (groupCommitter != null) {
+			groupCommitter.close();
+		}
+		groupCommitter = new GroupCommitter<>(getClass().getSimpleName() + "-group-commit", maxBatchSize, maxLinger,
+				unit, this::commit);
+	}
+
+	/**
+	 * Returns whether group commit is enabled, i.e. whether objects put are
+	 * synced by a later {@link #doSync()}.
+	 * 
+	 * @return whether group commit is enabled
+	 */
+	protected boolean isGroupCommitEnabled() {
+		return groupCommitter != null;
+	}
+
+	/**
+	 * Stops group commit once the adds queued so far are committed. Adds
+	 * racing with this call may fail, later adds are no longer synced.
+	 */
+	@Override
+	public synchronized void close() {
+		if (groupCommitter != null) {
+			groupCommitter.close();
+			groupCommitter = null;
+		}
+	}
+
+	/**
+	 * The objects of one add call, written as a whole.
+	 */
+	private class Write {
+		private final Collection<T> objects;
+		private final BiConsumer<T, S> sequenceKeyAssigner;
+		private final boolean failIfPresent;
+		private final Map<I, S> added = new LinkedHashMap<>();
+
+		/**
+		 * @param objects
+		 *            the objects
+		 * @param sequenceKeyAssigner
+		 *            assigns generated sequence keys or null to keep the
+		 *            sequence keys of the objects
+		 * @param failIfPresent
+		 *            whether to fail instead of skipping present objects
+		 */
+		private Write(Collection<T> objects, BiConsumer<T, S> sequenceKeyAssigner, boolean failIfPresent) {
+			this.objects = objects;
+			this.sequenceKeyAssigner = sequenceKeyAssigner;
+			this.failIfPresent = failIfPresent;
+		}
+	}
 
 	@Override
 	public void add(T object) {
+		apply(new Write(singleton(object), null, true));
+	}
+
+	/**
+	 * Adds all objects with an id not yet present under a single acquisition
+	 * of the write lock. Duplicate ids within the collection are added once.
+	 * The added objects are assigned contiguous sequence keys in collection
+	 * order, synced once if group commit is enabled and handed to the waiters
+	 * once. With group commit, the objects join a batch as a whole.
+	 */
+	@Override
+	public Map<I, S> addAllIfAbsent(Collection<T> objects, BiConsumer<T, S> sequenceKeyAssigner) {
+		return apply(new Write(objects, sequenceKeyAssigner, false)).added;
+	}
+
+	/**
+	 * Adds all objects with an id not yet present under a single acquisition
+	 * of the write lock, keeping their sequence keys. The added objects are
+	 * synced once if group commit is enabled and handed to the waiters once.
+	 * With group commit, the objects join a batch as a whole.
+	 */
+	@Override
+	public int putAllIfAbsent(Collection<T> objects) {
+		return apply(new Write(objects, null, false)).added.size();
+	}
+
+	private Write apply(Write write) {
+		if (write.objects.isEmpty()) {
+			return write;
+		}
+		GroupCommitter<Write> committer = groupCommitter;
+		if (committer != null) {
+			try {
+				committer.submit(write).join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+			return write;
+		}
+		List<T> added;
 		objectsLock.writeLock().lock();
 		try {
-			if (doesContain(object.getId())) {
+			added = write(write);
+		} finally {
+			objectsLock.writeLock().unlock();
+		}
+		if (!added.isEmpty()) {
+			notifyWaiters(added);
+		}
+		return write;
+	}
+
+	/**
+	 * Puts the absent objects of a write. Must be called holding the objects
+	 * write lock.
+	 * 
+	 * @return the objects put
+	 */
+	private List<T> write(Write write) {
+		Map<I, T> absent = new LinkedHashMap<>();
+		for (T object : write.objects) {
+			if (!doesContain(object.getId())) {
+				absent.putIfAbsent(object.getId(), object);
+			} else if (write.failIfPresent) {
 				throw new IllegalStateException(format("object with id [%s] already exists", object.getId()));
 			}
+		}
+		Iterator<S> sequenceKeys = write.sequenceKeyAssigner == null ? null
+				: doGenerateSequenceKeys(absent.size()).iterator();
+		long highestSequence = Sequenced.NO_SEQUENCE;
+		for (T object : absent.values()) {
+			if (sequenceKeys != null) {
+				write.sequenceKeyAssigner.accept(object, sequenceKeys.next());
+			}
 			doPut(object);
-			objectAdded.signalAll();
+			write.added.put(object.getId(), object.getSequenceKey());
+			highestSequence = Math.max(highestSequence, object.sequence());
+		}
+		observeSequence(highestSequence);
+		return new ArrayList<>(absent.values());
+	}
+
+	/**
+	 * Makes the sequence key generator, if any, observe the specified
+	 * sequence.
+	 * 
+	 * @param sequence
+	 *            the sequence, ignored if negative
+	 */
+	protected void observeSequence(long sequence) {
+		SequenceKeyGenerator generator = getSequenceKeyGenerator();
+		if (generator != null) {
+			generator.observe(sequence);
+		}
+	}
+
+	/**
+	 * Syncs the objects put so far. If that fails, removes the specified
+	 * objects again, so they are never reported as added. Readers may have
+	 * seen them in between.
+	 * 
+	 * @param objects
+	 *            the objects put since the last sync
+	 */
+	private void syncOrRollBack(Collection<T> objects) {
+		synchronized (syncMonitor) {
+			RuntimeException failure;
+			objectsLock.readLock().lock();
+			try {
+				doSync();
+				return;
+			} catch (RuntimeException e) {
+				failure = e;
+			} finally {
+				objectsLock.readLock().unlock();
+			}
+			objectsLock.writeLock().lock();
+			try {
+				for (T object : objects) {
+					doRemove(object.getId());
+				}
+			} catch (RuntimeException e) {
+				failure.addSuppressed(e);
+			} finally {
+				objectsLock.writeLock().unlock();
+			}
+			throw failure;
+		}
+	}
+
+	/**
+	 * Forces the entries of a directory, e.g. of files created in it, to
+	 * durable storage. Platforms not able to open directories are ignored.
+	 * 
+	 * @param directory
+	 *            the directory
+	 * @throws IOException
+	 *             if forcing fails
+	 */
+	protected static void syncDirectory(File directory) throws IOException {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (AccessDeniedException e) {
+			// Directories cannot be opened on this platform.
+		}
+	}
+
+	private void commit(List<GroupCommitter.Pending<Write>> batch) {
+		List<GroupCommitter.Pending<Write>> written = new ArrayList<>(batch.size());
+		List<T> objects = new ArrayList<>();
+		objectsLock.writeLock().lock();
+		try {
+			for (GroupCommitter.Pending<Write> pending : batch) {
+				try {
+					objects.addAll(write(pending.getObject()));
+					written.add(pending);
+				} catch (RuntimeException e) {
+					pending.getCommitted().completeExceptionally(e);
+				}
+			}
 		} finally {
 			objectsLock.writeLock().unlock();
 		}
+		// Fails the whole batch if syncing fails.
+		syncOrRollBack(objects);
+		for (GroupCommitter.Pending<Write> pending : written) {
+			pending.getCommitted().complete(null);
+		}
+		if (!objects.isEmpty()) {
+			notifyWaiters(objects);
+		}
+	}
+
+	/**
+	 * Hands added objects to all registered waiters and listeners. Must be
+	 * called without holding the objects lock.
+	 * 
+	 * @param objects
+	 *            the added objects
+	 */
+	protected void notifyWaiters(Collection<T> objects) {
+		for (Waiter waiter : waiters) {
+			waiter.offer(objects);
+		}
+		for (Consumer<Collection<T>> listener : listeners) {
+			listener.accept(objects);
+		}
+	}
+
+	@Override
+	public void addListener(Consumer<Collection<T>> listener) {
+		listeners.add(listener);
 	}
 
 	@Override
@@ -42,40 +417,60 @@ public abstract class LockingObjectStore<T extends Identifiable<I> & Sequenced<S
 		}
 	}
 
-	private boolean anyMessage(Predicate<T> predicate) {
-		for (T m : get()) {
-			if (predicate.test(m)) {
-				return true;
-			}
-		}
-		return false;
+	@Override
+	public Set<T> await(Predicate<T> predicate) {
+		return awaitAsync(predicate).join();
 	}
 
 	@Override
-	public Set<T> await(Predicate<T> predicate) {
-		objectsLock.writeLock().lock();
+	public Set<T> await(Predicate<T> predicate, long timeout, TimeUnit unit) {
+		CompletableFuture<Set<T>> result = awaitAsync(predicate);
 		try {
-			while (!anyMessage(predicate)) {
-				objectAdded.awaitUninterruptibly();
-			}
-			return get(predicate);
-		} finally {
-			objectsLock.writeLock().unlock();
+			return result.get(timeout, unit);
+		} catch (TimeoutException e) {
+			return result.cancel(false) ? emptySet() : result.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return result.cancel(false) ? emptySet() : result.join();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
 		}
+	}
 
+	/**
+	 * Returns a future of all matching elements or, if there are none, of the
+	 * first matching element to be added. The waiter is registered before the
+	 * present elements are queried, so no element added in between is missed.
+	 * It is deregistered as soon as the future completes or is cancelled.
+	 * Waiting does not hold any lock.
+	 */
+	@Override
+	public CompletableFuture<Set<T>> awaitAsync(Predicate<T> predicate) {
+		Waiter waiter = new Waiter(predicate);
+		waiters.add(waiter);
+		waiter.result.whenComplete((r, e) -> waiters.remove(waiter));
+		Set<T> present = get(predicate);
+		if (!present.isEmpty()) {
+			waiter.result.complete(present);
+		}
+		return waiter.result;
 	}
 
 	@Override
 	public Set<T> get(Predicate<T> predicate) {
 		objectsLock.readLock().lock();
 		try {
-			Set<T> result = get();
-			for (Iterator<T> it = result.iterator(); it.hasNext();) {
-				if (!predicate.test(it.next())) {
-					it.remove();
-				}
-			}
-			return result;
+			return doGet(predicate);
+		} finally {
+			objectsLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Page<T, S> getAfter(S sequenceKey, Predicate<T> predicate, int limit) {
+		objectsLock.readLock().lock();
+		try {
+			return doGetAfter(sequenceKey, predicate, limit);
 		} finally {
 			objectsLock.readLock().unlock();
 		}
@@ -119,8 +514,135 @@ public abstract class LockingObjectStore<T extends Identifiable<I> & Sequenced<S
 	public S generateSequenceKey() {
 		return doGenerateSequenceKey();
 	}
+
+	@Override
+	public S getHighestSequenceKey() {
+		objectsLock.readLock().lock();
+		try {
+			long sequence = doGetHighestSequence();
+			return sequence == Sequenced.NO_SEQUENCE ? null : sequenceKey(sequence);
+		} finally {
+			objectsLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<Object> getIndexKeys(String indexName) {
+		objectsLock.readLock().lock();
+		try {
+			return doGetIndexKeys(indexName);
+		} finally {
+			objectsLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the keys filed in the specified index. This store maintains no
+	 * index.
+	 */
+	protected Set<Object> doGetIndexKeys(String indexName) {
+		return null;
+	}
+
+	/**
+	 * Sets the generator of the sequences of this store, replacing the
+	 * default one. It observes the highest sequence present.
+	 * 
+	 * @param generator
+	 *            the generator
+	 */
+	@Override
+	public void setSequenceKeyGenerator(SequenceKeyGenerator generator) {
+		objectsLock.readLock().lock();
+		try {
+			generator.observe(doGetHighestSequence());
+			this.sequenceKeyGenerator = generator;
+		} finally {
+			objectsLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the generator of the sequences of this store.
+	 * 
+	 * @return the generator set or else the default one
+	 */
+	protected SequenceKeyGenerator getSequenceKeyGenerator() {
+		SequenceKeyGenerator result = sequenceKeyGenerator;
+		return result != null ? result : getDefaultSequenceKeyGenerator();
+	}
+
+	/**
+	 * Returns the generator used unless another one is set. The default
+	 * implementation returns null, implementations generating sequence keys
+	 * from sequences must override this method.
+	 * 
+	 * @return the default generator
+	 */
+	protected SequenceKeyGenerator getDefaultSequenceKeyGenerator() {
+		return null;
+	}
+
+	/**
+	 * Returns the highest sequence present. Implementations maintaining a
+	 * sequence index should override this method, the default implementation
+	 * reads all elements.
+	 * 
+	 * @return the highest sequence or {@link Sequenced#NO_SEQUENCE}
+	 */
+	protected long doGetHighestSequence() {
+		long result = Sequenced.NO_SEQUENCE;
+		for (T object : doGetAll()) {
+			result = Math.max(result, object.sequence());
+		}
+		return result;
+	}
 	
-	protected abstract S doGenerateSequenceKey();
+	/**
+	 * Generates a sequence key from the sequence key generator.
+	 * 
+	 * @return the sequence key
+	 */
+	protected S doGenerateSequenceKey() {
+		return sequenceKey(sequenceKeyGenerator().next());
+	}
+
+	/**
+	 * Generates the specified number of sequence keys, reserving their
+	 * sequences from the sequence key generator at once.
+	 * 
+	 * @param count
+	 *            the number of sequence keys
+	 * @return a list of sequence keys in ascending order
+	 */
+	protected List<S> doGenerateSequenceKeys(int count) {
+		List<S> result = new ArrayList<>(count);
+		for (long sequence : sequenceKeyGenerator().next(count)) {
+			result.add(sequenceKey(sequence));
+		}
+		return result;
+	}
+
+	private SequenceKeyGenerator sequenceKeyGenerator() {
+		SequenceKeyGenerator result = getSequenceKeyGenerator();
+		if (result == null) {
+			throw new IllegalStateException("no sequence key generator");
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the sequence key of the specified sequence, the inverse of
+	 * {@link #sequenceOf(Object)}.
+	 * 
+	 * @param sequence
+	 *            the non-negative sequence
+	 * @return the sequence key
+	 */
+	@SuppressWarnings("unchecked")
+	protected S sequenceKey(long sequence) {
+		return (S) SequenceKeys.format(sequence);
+	}
 	
 	@Override
 	public T any() {
@@ -146,6 +668,94 @@ public abstract class LockingObjectStore<T extends Identifiable<I> & Sequenced<S
 		}
 	}
 
+	/**
+	 * Returns all matching elements. Implementations able to narrow down the
+	 * candidates of certain predicates may override this method, the default
+	 * implementation tests the predicate against all elements.
+	 * 
+	 * @param predicate
+	 *            the predicate
+	 * @return a set of matching elements
+	 */
+	protected Set<T> doGet(Predicate<T> predicate) {
+		Set<T> result = doGetAll();
+		for (Iterator<T> it = result.iterator(); it.hasNext();) {
+			if (!predicate.test(it.next())) {
+				it.remove();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns up to limit matching elements with a sequence key greater than
+	 * the specified one in sequence order. Implementations maintaining a
+	 * sequence index should override this method, the default implementation
+	 * sorts all matching elements.
+	 * 
+	 * @param sequenceKey
+	 *            the exclusive lower bound or null
+	 * @param predicate
+	 *            the predicate
+	 * @param limit
+	 *            the maximum number of elements
+	 * @return a page of matching elements
+	 */
+	protected Page<T, S> doGetAfter(S sequenceKey, Predicate<T> predicate, int limit) {
+		long sequence = sequenceOf(sequenceKey);
+		List<T> candidates = new ArrayList<>(doGet(predicate));
+		candidates.sort(SEQUENCE_ORDER);
+		return page(candidates.stream().filter(t -> sequence < t.sequence()).iterator(), predicate, limit);
+	}
+
+	/**
+	 * Returns the sequence number of the specified sequence key.
+	 * 
+	 * @param sequenceKey
+	 *            the sequence key or null
+	 * @return the sequence number or {@link Sequenced#NO_SEQUENCE} if the
+	 *         key is null
+	 */
+	protected static long sequenceOf(Object sequenceKey) {
+		return sequenceKey == null ? Sequenced.NO_SEQUENCE : SequenceKeys.parse(sequenceKey.toString());
+	}
+
+	/**
+	 * Collects up to limit matching elements from candidates in sequence
+	 * order.
+	 * 
+	 * @param candidates
+	 *            the candidates in sequence order
+	 * @param predicate
+	 *            the predicate
+	 * @param limit
+	 *            the maximum number of elements
+	 * @return a page of matching elements
+	 */
+	protected static <T extends Sequenced<S>, S extends Comparable<S>> Page<T, S> page(Iterator<T> candidates,
+			Predicate<T> predicate, int limit) {
+		List<T> result = new ArrayList<>();
+		while (result.size() < limit && candidates.hasNext()) {
+			T candidate = candidates.next();
+			if (candidate != null && predicate.test(candidate)) {
+				result.add(candidate);
+			}
+		}
+		S continuationKey = result.size() == limit && limit > 0 ? result.get(result.size() - 1).getSequenceKey()
+				: null;
+		return new Page<>(result, continuationKey);
+	}
+
+	/**
+	 * Forces all objects put so far to durable storage, including the
+	 * directory entries of created files. Called under the read lock once per
+	 * batch if group commit is enabled. The default implementation does
+	 * nothing.
+	 */
+	protected void doSync() {
+		// Nothing to sync.
+	}
+
 	protected abstract void doRemove(I id);
 
 	protected abstract void doClear();
@@ -156,6 +766,8 @@ public abstract class LockingObjectStore<T extends Identifiable<I> & Sequenced<S
 
 	protected abstract Set<T> doGetAll();
 
+	protected abstract T doGet(I id);
+
 	protected abstract Iterator<T> doIterate();
 
 	protected abstract T doGetAny();
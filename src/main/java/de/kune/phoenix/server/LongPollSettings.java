@@ -0,0 +1,37 @@
+package de.kune.phoenix.server;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Holds the server-side settings of long polling requests.
+ */
+public class LongPollSettings {
+
+	@Value("${longpoll.maxwait:30000}")
+	private long maxWait;
+
+	/**
+	 * Returns the maximum time a long polling request waits for messages.
+	 * 
+	 * @return the maximum wait in milliseconds
+	 */
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * Returns the time to wait for the specified requested timeout, i.e. the
+	 * requested timeout capped by the maximum wait.
+	 * 
+	 * @param requestedTimeout
+	 *            the requested timeout in milliseconds or null
+	 * @return the wait in milliseconds, 0 if the request must not wait
+	 */
+	public long getWait(Long requestedTimeout) {
+		if (requestedTimeout == null) {
+			return maxWait;
+		}
+		return Math.max(0L, Math.min(requestedTimeout, maxWait));
+	}
+
+}
@@ -0,0 +1,125 @@
+package de.kune.phoenix.server;
+
+import static de.kune.phoenix.shared.util.ArrayUtils.contains;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+
+import java.util.Collection;
+import java.util.function.Predicate;
+
+import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.SequenceKeys;
+
+/**
+ * Provides the message predicates and message indexes used by the server.
+ */
+public final class MessagePredicates {
+
+	/**
+	 * The name of the index filing messages under their recipient ids.
+	 */
+	public static final String RECIPIENT_INDEX = "recipient";
+
+	/**
+	 * The name of the index filing messages under their conversation id.
+	 */
+	public static final String CONVERSATION_INDEX = "conversation";
+
+	private MessagePredicates() {
+		// Do nothing.
+	}
+
+	/**
+	 * Adds the recipient and conversation indexes to the specified store.
+	 *
+	 * @param store
+	 *            the store
+	 * @return the store
+	 */
+	public static IndexedObjectStore<Message, String, String> withMessageIndexes(
+			IndexedObjectStore<Message, String, String> store) {
+		return store.withIndex(RECIPIENT_INDEX, MessagePredicates::recipientKeys).withIndex(CONVERSATION_INDEX,
+				MessagePredicates::conversationKeys);
+	}
+
+	private static Collection<?> recipientKeys(Message message) {
+		return message.getRecipientIds() == null ? null : asList(message.getRecipientIds());
+	}
+
+	private static Collection<?> conversationKeys(Message message) {
+		return message.getConversationId() == null ? null : singleton(message.getConversationId());
+	}
+
+	/**
+	 * Creates a message predicate matching messages sent to the specified
+	 * recipient and conversation after the specified sequence key. Any of the
+	 * arguments may be null to not restrict the result. The predicate makes
+	 * use of the recipient or conversation index if available.
+	 *
+	 * @param recipientId
+	 *            the recipient id
+	 * @param conversationId
+	 *            the conversation id
+	 * @param lastSequenceKey
+	 *            the exclusive lower sequence key bound
+	 * @return a message predicate
+	 */
+	public static Predicate<Message> matching(String recipientId, String conversationId, String lastSequenceKey) {
+		if (recipientId != null) {
+			return hasRecipient(recipientId).and(hasConversationId(conversationId))
+					.and(wasReceivedAfter(lastSequenceKey));
+		} else if (conversationId != null) {
+			return hasConversationId(conversationId).and(wasReceivedAfter(lastSequenceKey));
+		} else {
+			return wasReceivedAfter(lastSequenceKey);
+		}
+	}
+
+	/**
+	 * Creates a message predicate that checks if the message was received
+	 * after the specified sequence key.
+	 *
+	 * @param lastSequenceKey
+	 *            the sequence key, null to match any message
+	 * @return a message predicate
+	 */
+	public static Predicate<Message> wasReceivedAfter(String lastSequenceKey) {
+		if (lastSequenceKey == null) {
+			return m -> true;
+		}
+		long lastSequence = SequenceKeys.parse(lastSequenceKey);
+		return m -> lastSequence < m.sequence();
+	}
+
+	/**
+	 * Creates a message predicate that checks if the message has the specified
+	 * conversation id.
+	 *
+	 * @param conversationId
+	 *            the conversation id, null to match any message
+	 * @return a message predicate
+	 */
+	public static Predicate<Message> hasConversationId(String conversationId) {
+		if (conversationId == null) {
+			return m -> true;
+		}
+		return IndexPredicate.of(CONVERSATION_INDEX, conversationId, m -> conversationId.equals(m.getConversationId()));
+	}
+
+	/**
+	 * Creates a message predicate that checks if the message is addressed to
+	 * the specified recipient.
+	 *
+	 * @param recipientId
+	 *            the recipient id, null to match any message
+	 * @return a message predicate
+	 */
+	public static Predicate<Message> hasRecipient(String recipientId) {
+		if (recipientId == null) {
+			return m -> true;
+		}
+		return IndexPredicate.of(RECIPIENT_INDEX, recipientId,
+				m -> m.getRecipientIds() != null && contains(m.getRecipientIds(), recipientId));
+	}
+
+}
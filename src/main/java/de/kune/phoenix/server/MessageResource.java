@@ -1,64 +1,238 @@
 package de.kune.phoenix.server;
 
-import static de.kune.phoenix.shared.util.ArrayUtils.contains;
+import static de.kune.phoenix.server.MessagePredicates.matching;
+import static java.lang.String.format;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
-import java.util.function.Predicate;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.SequenceKeys;
 
 @Path("message")
 public class MessageResource {
 
+	public static final String CONTINUATION_KEY_HEADER = "X-Continuation-Key";
+
+	private static final MediaType BINARY_TYPE = MediaType.valueOf(BinaryMessageProvider.MEDIA_TYPE);
+
+	private static final List<Variant> VARIANTS = Variant.mediaTypes(MediaType.APPLICATION_JSON_TYPE, BINARY_TYPE)
+			.build();
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
 	@Inject
 	private ObjectStore<Message, String, String> messageStore;
 
+	@Inject
+	private LongPollSettings longPollSettings;
+
+	@Inject
+	private PagingSettings pagingSettings;
+
+	@Inject
+	private DeliveryCursors deliveryCursors;
+
+	@Inject
+	private SubscriptionHub subscriptionHub;
+
+	@Inject
+	private Replicator replicator;
+
+	@Inject
+	private ClusterRouter clusterRouter;
+
+	/**
+	 * Adds the messages, forwarding them to the leader on a follower. In a
+	 * cluster, the messages are posted to the owners of their recipients
+	 * unless routed here by another node. Messages routed here keep their
+	 * order after the sequence keys they had on the other node, e.g. when
+	 * their recipients have moved here, unless these are too far ahead of the
+	 * clock of this node.
+	 */
 	@POST
-	@Consumes(MediaType.APPLICATION_JSON)
-	public Response post(List<Message> messages) {
-		for (Message message : messages) {
-			if (!messageStore.contains(message.getId())) {
-				message.setSequenceKey(messageStore.generateSequenceKey());
-				messageStore.add(message);
+	@Consumes({ MediaType.APPLICATION_JSON, BinaryMessageProvider.MEDIA_TYPE })
+	public Response post(List<Message> messages, @HeaderParam(ClusterRouter.ROUTED_HEADER) String routedBy,
+			@HeaderParam(ClusterRouter.SECRET_HEADER) String secret) {
+		if (isForged(routedBy, secret)) {
+			return Response.status(Response.Status.FORBIDDEN).build();
+		}
+		if (replicator.isFollower()) {
+			return Response.status(replicator.forward(messages)).build();
+		}
+		List<Message> local = messages;
+		if (routedBy == null) {
+			try {
+				local = clusterRouter.route(messages);
+			} catch (IllegalStateException e) {
+				return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+			}
+		} else {
+			try {
+				clusterRouter.observe(messages);
+			} catch (IllegalArgumentException e) {
+				return Response.status(Response.Status.BAD_REQUEST).build();
 			}
 		}
+		messageStore.addAllIfAbsent(local, Message::setSequenceKey);
 		return Response.status(200).build();
 	}
 
+	/**
+	 * Checks whether a request claims to be routed here by another node
+	 * without being so.
+	 */
+	private boolean isForged(String routedBy, String secret) {
+		return routedBy != null && !clusterRouter.isRouted(routedBy, secret);
+	}
+
+	/**
+	 * Returns up to limit matching messages after the last sequence key in
+	 * sequence order, streamed as JSON or in the binary format. If the page is
+	 * full, its last sequence key is returned in the
+	 * {@value #CONTINUATION_KEY_HEADER} header to be passed as the last
+	 * sequence key of the next request. If no message matches and wait is set,
+	 * waits for matching messages up to the timeout, a timeout of 0 or less
+	 * returns the empty page at once.
+	 * <p>
+	 * A request for all conversations of a recipient acknowledges the
+	 * delivery of the messages up to the last sequence key.
+	 * <p>
+	 * In a cluster, the requests of a recipient owned by another node are
+	 * proxied to it. Requests claiming to be routed here by another node
+	 * without the cluster secret are forbidden.
+	 */
 	@GET
-	@Produces(MediaType.APPLICATION_JSON)
-	public Response get(@QueryParam("wait") boolean wait, @QueryParam("last-sequence-key") String lastSequenceKey,
-			@QueryParam("recipient-id") String recipientId, @QueryParam("conversation-id") String conversationId) {
-		if (wait) {
-			return Response.status(200).entity(messageStore.await(hasRecipient(recipientId)
-					.and(hasConversationId(conversationId)).and(wasReceivedAfter(lastSequenceKey)))).build();
+	@Produces({ MediaType.APPLICATION_JSON, BinaryMessageProvider.MEDIA_TYPE })
+	public void get(@Suspended AsyncResponse asyncResponse, @Context Request request, @Context UriInfo uriInfo,
+			@HeaderParam(ClusterRouter.ROUTED_HEADER) String routedBy,
+			@HeaderParam(ClusterRouter.SECRET_HEADER) String secret, @QueryParam("wait") boolean wait,
+			@QueryParam("last-sequence-key") String lastSequenceKey, @QueryParam("recipient-id") String recipientId,
+			@QueryParam("conversation-id") String conversationId, @QueryParam("timeout") Long timeout,
+			@QueryParam("limit") Integer limit) {
+		if (isForged(routedBy, secret)) {
+			asyncResponse.resume(Response.status(Response.Status.FORBIDDEN).build());
+			return;
+		}
+		if (!SequenceKeys.isValid(lastSequenceKey)) {
+			asyncResponse.resume(new BadRequestException(format("malformed sequence key [%s]", lastSequenceKey)));
+			return;
+		}
+		Variant variant = request.selectVariant(VARIANTS);
+		MediaType mediaType = variant == null ? MediaType.APPLICATION_JSON_TYPE : variant.getMediaType();
+		if (routedBy == null && !clusterRouter.isLocal(recipientId)) {
+			clusterRouter.proxy(recipientId, HttpMethod.GET, uriInfo, mediaType, asyncResponse);
+			return;
+		}
+		int pageLimit = pagingSettings.getLimit(limit);
+		if (recipientId != null && conversationId == null && lastSequenceKey != null) {
+			try {
+				deliveryCursors.advance(recipientId, lastSequenceKey);
+			} catch (IllegalArgumentException e) {
+				asyncResponse.resume(new BadRequestException(e.getMessage(), e));
+				return;
+			}
+		}
+		Page<Message, String> page = messageStore.getAfter(lastSequenceKey, matching(recipientId, conversationId, null),
+				pageLimit);
+		long waitMillis = wait ? longPollSettings.getWait(timeout) : 0L;
+		// A timeout of 0 would suspend the response forever.
+		if (waitMillis > 0L && page.getElements().isEmpty()) {
+			CompletableFuture<Set<Message>> result = subscriptionHub.subscribe(recipientId, conversationId,
+					lastSequenceKey);
+			asyncResponse.setTimeoutHandler(r -> r.resume(response(page, mediaType)));
+			asyncResponse.setTimeout(waitMillis, TimeUnit.MILLISECONDS);
+			asyncResponse.register((CompletionCallback) t -> result.cancel(false));
+			result.whenComplete((messages, failure) -> {
+				if (failure != null) {
+					asyncResponse.resume(failure);
+				} else {
+					// Re-query to return the woken messages in sequence order and
+					// only those a partitioned store has made visible.
+					asyncResponse.resume(response(messageStore.getAfter(lastSequenceKey,
+							matching(recipientId, conversationId, null), pageLimit), mediaType));
+				}
+			});
 		} else {
-			return Response.status(200).entity(messageStore.get(hasRecipient(recipientId)
-					.and(hasConversationId(conversationId)).and(wasReceivedAfter(lastSequenceKey)))).build();
+			asyncResponse.resume(response(page, mediaType));
 		}
 	}
 
-	private Predicate<? super Message> wasReceivedAfter(String lastSequenceKey) {
-		return m -> lastSequenceKey == null || lastSequenceKey.compareTo(m.getSequenceKey()) < 0;
+	private static Response response(Page<Message, String> page, MediaType mediaType) {
+		StreamingOutput entity = BINARY_TYPE.equals(mediaType)
+				? out -> BinaryMessageProvider.writeMessages(page.getElements(), out)
+				: out -> writeJson(page.getElements(), out);
+		ResponseBuilder response = Response.status(200).entity(entity).type(mediaType);
+		if (page.getContinuationKey() != null) {
+			response.header(CONTINUATION_KEY_HEADER, page.getContinuationKey());
+		}
+		return response.build();
 	}
 
-	private Predicate<Message> hasConversationId(String conversationId) {
-		return m -> (conversationId == null || conversationId.equals(m.getConversationId()));
+	private static void writeJson(List<Message> messages, OutputStream out) throws IOException {
+		JsonGenerator generator = mapper.getFactory().createGenerator(out);
+		generator.writeStartArray();
+		for (Message message : messages) {
+			mapper.writeValue(generator, message);
+		}
+		generator.writeEndArray();
+		generator.flush();
 	}
 
-	private Predicate<Message> hasRecipient(String recipientId) {
-		return m -> (recipientId == null || contains(m.getRecipientIds(), recipientId));
+	/**
+	 * Acknowledges the delivery of all messages sent to the recipient up to
+	 * the sequence key.
+	 */
+	@POST
+	@Path("ack")
+	public void ack(@Suspended AsyncResponse asyncResponse, @Context UriInfo uriInfo,
+			@HeaderParam(ClusterRouter.ROUTED_HEADER) String routedBy,
+			@HeaderParam(ClusterRouter.SECRET_HEADER) String secret, @QueryParam("recipient-id") String recipientId,
+			@QueryParam("sequence-key") String sequenceKey) {
+		if (isForged(routedBy, secret)) {
+			asyncResponse.resume(Response.status(Response.Status.FORBIDDEN).build());
+		} else if (recipientId == null || sequenceKey == null || !SequenceKeys.isValid(sequenceKey)) {
+			asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).build());
+		} else if (routedBy == null && !clusterRouter.isLocal(recipientId)) {
+			clusterRouter.proxy(recipientId, HttpMethod.POST, uriInfo, MediaType.WILDCARD_TYPE, asyncResponse);
+		} else {
+			try {
+				deliveryCursors.advance(recipientId, sequenceKey);
+				asyncResponse.resume(Response.status(200).build());
+			} catch (IllegalArgumentException e) {
+				asyncResponse.resume(new BadRequestException(e.getMessage(), e));
+			}
+		}
 	}
 
 	@DELETE
@@ -0,0 +1,328 @@
+package de.kune.phoenix.server;
+
+import static de.kune.phoenix.server.MessagePredicates.matching;
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.inject.Inject;
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.MessageFrame;
+import de.kune.phoenix.shared.SequenceKeys;
+
+/**
+ * Pushes the messages of a recipient and accepts posted messages over one
+ * WebSocket connection, exchanging {@link MessageFrame}s as JSON text. A
+ * connection waits on the message store without holding a thread; a small
+ * dispatcher pool shared by all connections queues the messages once they
+ * arrive. Frames are sent asynchronously with at most one send outstanding
+ * per connection, and a connection only waits for further messages once the
+ * last page has been sent, so a slow client holds back its own connection
+ * only. A connection failing to push messages is closed with an error.
+ * <p>
+ * Subscriptions are not proxied in a cluster. A SUBSCRIBE for a recipient
+ * owned by another node is answered with an ERROR frame, and a subscription
+ * whose recipient moves to another node receives no further messages. In a
+ * cluster, clients must connect to the node owning their recipient, e.g.
+ * through a load balancer assigning recipients with the same ring, or use
+ * long polling, which is proxied. POST frames are routed like posted
+ * messages.
+ */
+@ServerEndpoint(value = "/ws/message", configurator = SpringEndpointConfigurator.class)
+public class MessageSocket {
+
+	private static final Logger logger = Logger.getLogger(MessageSocket.class.getName());
+
+	private static final int PAGE_SIZE = 1000;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@Inject
+	private ObjectStore<Message, String, String> messageStore;
+
+	@Inject
+	private DeliveryCursors deliveryCursors;
+
+	@Inject
+	private SubscriptionHub subscriptionHub;
+
+	@Inject
+	private Replicator replicator;
+
+	@Inject
+	private ClusterRouter clusterRouter;
+
+	@Inject
+	private ExecutorService messageSocketDispatcher;
+
+	private Session session;
+	private String recipientId;
+	private String lastSequenceKey;
+	private CompletableFuture<Set<Message>> wait;
+	private boolean closed;
+
+	private final Queue<Outgoing> outbox = new ArrayDeque<>();
+	private boolean sending;
+
+	/**
+	 * A queued frame and what to do once it has been sent.
+	 */
+	private static class Outgoing {
+		private final String text;
+		private final Runnable sent;
+
+		private Outgoing(String text, Runnable sent) {
+			this.text = text;
+			this.sent = sent;
+		}
+	}
+
+	@OnOpen
+	public void open(Session session) {
+		this.session = session;
+	}
+
+	@OnMessage
+	public void receive(String text) {
+		MessageFrame frame;
+		try {
+			frame = mapper.readValue(text, MessageFrame.class);
+		} catch (IOException e) {
+			send(error(null, "malformed frame"));
+			return;
+		}
+		if (frame.getType() == null) {
+			send(error(frame.getRequestId(), "missing frame type"));
+			return;
+		}
+		if (!SequenceKeys.isValid(frame.getSequenceKey())) {
+			send(error(frame.getRequestId(), format("malformed sequence key [%s]", frame.getSequenceKey())));
+			return;
+		}
+		switch (frame.getType()) {
+		case SUBSCRIBE:
+			if (!clusterRouter.isLocal(frame.getRecipientId())) {
+				send(error(frame.getRequestId(), format("recipient [%s] is owned by node [%s]",
+						frame.getRecipientId(), clusterRouter.ownerOf(frame.getRecipientId()))));
+				break;
+			}
+			try {
+				subscribe(frame.getRecipientId(), frame.getSequenceKey());
+			} catch (IllegalArgumentException e) {
+				send(error(frame.getRequestId(), e.getMessage()));
+			}
+			break;
+		case POST:
+			post(frame);
+			break;
+		case ACK:
+			if (recipientId != null && frame.getSequenceKey() != null) {
+				try {
+					deliveryCursors.advance(recipientId, frame.getSequenceKey());
+				} catch (IllegalArgumentException e) {
+					send(error(frame.getRequestId(), e.getMessage()));
+				}
+			}
+			break;
+		default:
+			send(error(frame.getRequestId(), "unexpected frame type " + frame.getType()));
+		}
+	}
+
+	private void post(MessageFrame frame) {
+		if (frame.getMessages() == null) {
+			send(error(frame.getRequestId(), "missing messages"));
+			return;
+		}
+		try {
+			if (replicator.isFollower()) {
+				int status = replicator.forward(frame.getMessages());
+				if (status != 200) {
+					send(error(frame.getRequestId(), "leader responded with status " + status));
+					return;
+				}
+			} else {
+				messageStore.addAllIfAbsent(clusterRouter.route(frame.getMessages()), Message::setSequenceKey);
+			}
+			MessageFrame posted = MessageFrame.of(MessageFrame.Type.POSTED);
+			posted.setRequestId(frame.getRequestId());
+			send(posted);
+		} catch (RuntimeException e) {
+			send(error(frame.getRequestId(), String.valueOf(e.getMessage())));
+		}
+	}
+
+	private static MessageFrame error(String requestId, String error) {
+		MessageFrame result = MessageFrame.of(MessageFrame.Type.ERROR);
+		result.setRequestId(requestId);
+		result.setError(error);
+		return result;
+	}
+
+	/**
+	 * Replaces the subscription of this connection. Advances the delivery
+	 * cursor of the recipient to the last received sequence key.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the cursor cannot be advanced to the sequence key, the
+	 *             subscription is kept then
+	 */
+	private synchronized void subscribe(String recipientId, String lastSequenceKey) {
+		if (recipientId != null && lastSequenceKey != null) {
+			deliveryCursors.advance(recipientId, lastSequenceKey);
+		}
+		if (wait != null) {
+			wait.cancel(false);
+			wait = null;
+		}
+		this.recipientId = recipientId;
+		this.lastSequenceKey = lastSequenceKey;
+		await();
+	}
+
+	private synchronized void await() {
+		if (closed || recipientId == null || wait != null) {
+			return;
+		}
+		CompletableFuture<Set<Message>> result = subscriptionHub.subscribe(recipientId, null, lastSequenceKey);
+		wait = result;
+		result.thenRunAsync(() -> push(result), messageSocketDispatcher).exceptionally(e -> {
+			if (result.isCancelled()) {
+				// Replaced by another subscription or closed.
+				return null;
+			}
+			// Rejected on shutdown otherwise.
+			if (!messageSocketDispatcher.isShutdown()) {
+				logger.log(Level.WARNING, "pushing messages failed", e);
+			}
+			close(session, new CloseReason(CloseCodes.UNEXPECTED_CONDITION, "pushing messages failed"));
+			return null;
+		});
+	}
+
+	/**
+	 * Queues the messages after the last sequence key as one page, then waits
+	 * for further ones once it has been sent. Re-queries the store instead of
+	 * sending the woken messages, so they are sent in sequence order and only
+	 * once visible.
+	 */
+	private synchronized void push(CompletableFuture<Set<Message>> woken) {
+		if (closed || woken != wait) {
+			return;
+		}
+		wait = null;
+		List<Message> messages = messageStore
+				.getAfter(lastSequenceKey, matching(recipientId, null, null), PAGE_SIZE).getElements();
+		if (messages.isEmpty()) {
+			await();
+			return;
+		}
+		MessageFrame frame = MessageFrame.of(MessageFrame.Type.MESSAGES);
+		frame.setMessages(messages);
+		lastSequenceKey = messages.get(messages.size() - 1).getSequenceKey();
+		send(frame, this::await);
+	}
+
+	private void send(MessageFrame frame) {
+		send(frame, null);
+	}
+
+	/**
+	 * Queues a frame to be sent once the frames queued before have been sent.
+	 * A failed send closes the connection.
+	 *
+	 * @param sent
+	 *            run once the frame has been sent, may be null
+	 */
+	private void send(MessageFrame frame, Runnable sent) {
+		String text;
+		try {
+			text = mapper.writeValueAsString(frame);
+		} catch (JsonProcessingException e) {
+			throw new IllegalStateException(e);
+		}
+		synchronized (outbox) {
+			outbox.add(new Outgoing(text, sent));
+			if (sending) {
+				return;
+			}
+			sending = true;
+		}
+		sendNext();
+	}
+
+	private void sendNext() {
+		Outgoing next;
+		synchronized (outbox) {
+			next = session.isOpen() ? outbox.poll() : null;
+			if (next == null) {
+				outbox.clear();
+				sending = false;
+				return;
+			}
+		}
+		session.getAsyncRemote().sendText(next.text, result -> {
+			if (!result.isOK()) {
+				close(session, null);
+				return;
+			}
+			if (next.sent != null) {
+				next.sent.run();
+			}
+			sendNext();
+		});
+	}
+
+	/**
+	 * Closes the connection, if still open with the specified reason.
+	 *
+	 * @param reason
+	 *            the reason sent to the client, may be null
+	 */
+	@OnClose
+	public void close(Session session, CloseReason reason) {
+		synchronized (this) {
+			closed = true;
+			if (wait != null) {
+				wait.cancel(false);
+			}
+		}
+		if (session.isOpen()) {
+			try {
+				if (reason == null) {
+					session.close();
+				} else {
+					session.close(reason);
+				}
+			} catch (IOException e) {
+				// Closed anyway.
+			}
+		}
+	}
+
+	@OnError
+	public void error(Session session, Throwable error) {
+		close(session, null);
+	}
+
+}
@@ -0,0 +1,122 @@
+package de.kune.phoenix.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache of objects, bounded by entry count and by the
+ * approximate size of the objects in bytes. The stores cache encoded objects,
+ * since handing out one deserialized instance to several callers would let
+ * them modify each other's objects.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the object type
+ */
+public class ObjectCache<K, V> {
+
+	private static class Entry<V> {
+		private final V object;
+		private final long bytes;
+
+		private Entry(V object, long bytes) {
+			this.object = object;
+			this.bytes = bytes;
+		}
+	}
+
+	private final Map<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final int maxEntries;
+	private final long maxBytes;
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ObjectCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cached object.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the object or null if it is not cached
+	 */
+	public synchronized V get(K key) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.object;
+	}
+
+	/**
+	 * Caches an object and evicts the least recently used objects exceeding
+	 * the bounds.
+	 *
+	 * @param key
+	 *            the key
+	 * @param object
+	 *            the object
+	 * @param bytes
+	 *            the approximate size of the object
+	 */
+	public synchronized void put(K key, V object, long bytes) {
+		Entry<V> previous = entries.put(key, new Entry<>(object, bytes));
+		this.bytes += bytes - (previous == null ? 0L : previous.bytes);
+		for (Iterator<Entry<V>> it = entries.values().iterator(); it.hasNext()
+				&& (entries.size() > maxEntries || this.bytes > maxBytes);) {
+			this.bytes -= it.next().bytes;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	public synchronized void remove(K key) {
+		Entry<V> previous = entries.remove(key);
+		if (previous != null) {
+			bytes -= previous.bytes;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0L;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[entries=" + size() + ", bytes=" + getBytes() + ", hits="
+				+ getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+
+}
@@ -0,0 +1,65 @@
+package de.kune.phoenix.server;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Specifies the encoding of stored objects.
+ */
+public interface ObjectCodec {
+
+	/**
+	 * Returns the codec with the specified name.
+	 *
+	 * @param name
+	 *            the name, either <code>json</code> or <code>bin</code>
+	 * @return the codec
+	 */
+	static ObjectCodec forName(String name) {
+		switch (name) {
+		case JsonObjectCodec.NAME:
+			return new JsonObjectCodec();
+		case BinaryObjectCodec.NAME:
+			return new BinaryObjectCodec();
+		default:
+			throw new IllegalArgumentException(format("unknown codec [%s]", name));
+		}
+	}
+
+	/**
+	 * Returns the name of this codec. Stores record the name with each
+	 * encoded object to pick the matching codec when decoding.
+	 *
+	 * @return the name
+	 */
+	String getName();
+
+	/**
+	 * Encodes an object.
+	 *
+	 * @param object
+	 *            the object
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	void encode(Object object, OutputStream out) throws IOException;
+
+	/**
+	 * Decodes an object.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @param type
+	 *            the type of the object
+	 * @return the object
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	<T> T decode(InputStream in, Class<T> type) throws IOException;
+
+}
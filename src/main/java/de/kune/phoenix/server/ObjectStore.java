@@ -1,6 +1,12 @@
 package de.kune.phoenix.server;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 import de.kune.phoenix.shared.Identifiable;
@@ -27,6 +33,33 @@ public interface ObjectStore<T extends Identifiable<I> & Sequenced<S>, I, S exte
 	 */
 	void add(T object);
 
+	/**
+	 * Atomically adds all elements with an id not yet present in this store.
+	 * Elements sharing an id are added once. Each added element is assigned
+	 * the next of a contiguous range of sequence keys, in collection order,
+	 * before it is stored.
+	 * 
+	 * @param objects
+	 *            the elements
+	 * @param sequenceKeyAssigner
+	 *            sets the assigned sequence key on an element
+	 * @return a map of the ids of the added elements to their sequence keys in
+	 *         sequence order
+	 */
+	Map<I, S> addAllIfAbsent(Collection<T> objects, BiConsumer<T, S> sequenceKeyAssigner);
+
+	/**
+	 * Atomically adds all elements with an id not yet present in this store,
+	 * keeping the sequence keys they have been assigned elsewhere, e.g. by the
+	 * store they are replicated from. Sequence keys generated afterwards are
+	 * greater than those of the added elements.
+	 * 
+	 * @param objects
+	 *            the elements
+	 * @return the number of added elements
+	 */
+	int putAllIfAbsent(Collection<T> objects);
+
 	/**
 	 * Returns all elements in this store.
 	 * 
@@ -48,6 +81,36 @@ public interface ObjectStore<T extends Identifiable<I> & Sequenced<S>, I, S exte
 	 */
 	Set<T> get(Predicate<T> predicate);
 
+	/**
+	 * Returns up to limit elements with a sequence key greater than the
+	 * specified one in sequence order.
+	 * 
+	 * @param sequenceKey
+	 *            the exclusive lower bound or null to start with the first
+	 *            element
+	 * @param limit
+	 *            the maximum number of elements
+	 * @return a page of elements
+	 */
+	default Page<T, S> getAfter(S sequenceKey, int limit) {
+		return getAfter(sequenceKey, t -> true, limit);
+	}
+
+	/**
+	 * Returns up to limit matching elements with a sequence key greater than
+	 * the specified one in sequence order.
+	 * 
+	 * @param sequenceKey
+	 *            the exclusive lower bound or null to start with the first
+	 *            element
+	 * @param predicate
+	 *            the predicate
+	 * @param limit
+	 *            the maximum number of elements
+	 * @return a page of matching elements
+	 */
+	Page<T, S> getAfter(S sequenceKey, Predicate<T> predicate, int limit);
+
 	/**
 	 * Returns all matching elements from this store and waits for at least one
 	 * element to be added if no match exists.
@@ -58,6 +121,41 @@ public interface ObjectStore<T extends Identifiable<I> & Sequenced<S>, I, S exte
 	 */
 	Set<T> await(Predicate<T> predicate);
 
+	/**
+	 * Returns a future of all matching elements from this store. If no match
+	 * exists, the future completes as soon as at least one matching element
+	 * has been added. Cancelling the future stops waiting.
+	 * 
+	 * @param predicate
+	 *            the predicate
+	 * @return a future of a set of at least one matching element
+	 */
+	CompletableFuture<Set<T>> awaitAsync(Predicate<T> predicate);
+
+	/**
+	 * Registers a listener called with the elements of each add once range
+	 * queries return them. It is called without holding any lock of this
+	 * store and must not block.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	void addListener(Consumer<Collection<T>> listener);
+
+	/**
+	 * Returns all matching elements from this store and waits at most the
+	 * specified time for at least one element to be added if no match exists.
+	 * 
+	 * @param predicate
+	 *            the predicate
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the time unit of the timeout argument
+	 * @return a set of matching elements, empty if the timeout elapsed
+	 */
+	Set<T> await(Predicate<T> predicate, long timeout, TimeUnit unit);
+
 	/**
 	 * Removes all matching elements from this store.
 	 * 
@@ -88,6 +186,33 @@ public interface ObjectStore<T extends Identifiable<I> & Sequenced<S>, I, S exte
 	 */
 	S generateSequenceKey();
 
+	/**
+	 * Returns the highest sequence key present, without reading the elements
+	 * if the store maintains a sequence index.
+	 * 
+	 * @return the sequence key or null if the store is empty
+	 */
+	S getHighestSequenceKey();
+
+	/**
+	 * Sets the generator of the sequences of this store. It observes the
+	 * highest sequence present.
+	 * 
+	 * @param generator
+	 *            the generator
+	 */
+	void setSequenceKeyGenerator(SequenceKeyGenerator generator);
+
+	/**
+	 * Returns the keys the elements of this store are filed under in the
+	 * specified index.
+	 * 
+	 * @param indexName
+	 *            the name of the index
+	 * @return the keys or null if this store does not maintain the index
+	 */
+	Set<Object> getIndexKeys(String indexName);
+
 	/**
 	 * Checks if this store contains a message with the specified id.
 	 * 
@@ -97,4 +222,10 @@ public interface ObjectStore<T extends Identifiable<I> & Sequenced<S>, I, S exte
 	 */
 	boolean contains(I id);
 
+	/**
+	 * Stops the background work of this store, such as group commit and
+	 * compaction. Closing a store twice has no effect.
+	 */
+	void close();
+
 }
@@ -0,0 +1,45 @@
+package de.kune.phoenix.server;
+
+import java.util.Collections;
+import java.util.List;
+
+import de.kune.phoenix.shared.Sequenced;
+
+/**
+ * A page of elements in sequence order as returned by a range query.
+ *
+ * @param <T>
+ *            the sequenced element type
+ * @param <S>
+ *            the sequence type
+ */
+public class Page<T extends Sequenced<S>, S extends Comparable<S>> {
+
+	private final List<T> elements;
+	private final S continuationKey;
+
+	public Page(List<T> elements, S continuationKey) {
+		this.elements = Collections.unmodifiableList(elements);
+		this.continuationKey = continuationKey;
+	}
+
+	/**
+	 * Returns the elements of this page in sequence order.
+	 *
+	 * @return a list of elements
+	 */
+	public List<T> getElements() {
+		return elements;
+	}
+
+	/**
+	 * Returns the sequence key to continue the range query with, i.e. the
+	 * sequence key of the last element if this page is full.
+	 *
+	 * @return the continuation key or null if there are no more elements
+	 */
+	public S getContinuationKey() {
+		return continuationKey;
+	}
+
+}
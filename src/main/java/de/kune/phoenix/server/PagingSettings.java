@@ -0,0 +1,37 @@
+package de.kune.phoenix.server;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Holds the server-side settings of paginated requests.
+ */
+public class PagingSettings {
+
+	@Value("${paging.maxlimit:1000}")
+	private int maxLimit;
+
+	/**
+	 * Returns the maximum number of elements per page.
+	 * 
+	 * @return the maximum limit
+	 */
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	/**
+	 * Returns the number of elements per page for the specified requested
+	 * limit, i.e. the requested limit capped by the maximum limit.
+	 * 
+	 * @param requestedLimit
+	 *            the requested limit or null
+	 * @return the limit
+	 */
+	public int getLimit(Integer requestedLimit) {
+		if (requestedLimit == null) {
+			return maxLimit;
+		}
+		return Math.max(1, Math.min(requestedLimit, maxLimit));
+	}
+
+}
@@ -0,0 +1,434 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import de.kune.phoenix.shared.Identifiable;
+import de.kune.phoenix.shared.SequenceKeys;
+import de.kune.phoenix.shared.Sequenced;
+
+/**
+ * An object store hashing elements by a partition key into independent
+ * shards, each with its own lock and storage. Adds to different shards do not
+ * contend with each other. Queries spanning shards merge the shard results by
+ * sequence key.
+ * <p>
+ * The shards share the {@link SequenceKeyGenerator} of this store, so
+ * sequence keys are assigned once, by the shards. The keys assigned by one
+ * call of {@link #addAllIfAbsent(Collection, BiConsumer)} are ascending and
+ * follow the collection order within each shard. Until an add has completed,
+ * its keys are pending. Range queries only return elements with a sequence
+ * key below the lowest pending key and not above the highest sequence issued
+ * when they start. A reader continuing after the last sequence key it has
+ * seen thus never skips an element added concurrently to another shard. Keys
+ * obtained from {@link #generateSequenceKey()} for {@link #add(Identifiable)}
+ * are not tracked this way. Pending keys are tracked without a lock, so adds
+ * to different shards do not contend.
+ * <p>
+ * The partition key of an element must not change, ids are only deduplicated
+ * within a shard.
+ *
+ * @param <T>
+ *            the identifiable, sequenced element type
+ * @param <I>
+ *            the id type
+ */
+public class PartitionedObjectStore<T extends Identifiable<I> & Sequenced<String>, I>
+		implements ObjectStore<T, I, String> {
+
+	private static final Comparator<Sequenced<?>> SEQUENCE_ORDER = (a, b) -> Long.compare(a.sequence(),
+			b.sequence());
+
+	private final List<ObjectStore<T, I, String>> shards;
+	private final Function<T, ?> partitionKey;
+
+	/**
+	 * The lower bound of the sequence keys of each add in progress, with the
+	 * number of adds sharing it.
+	 */
+	private final ConcurrentNavigableMap<Long, Integer> pending = new ConcurrentSkipListMap<>();
+
+	private volatile SequenceKeyGenerator generator;
+
+	/**
+	 * Completions of waits woken while keys were pending.
+	 */
+	private final Queue<Deferred> deferred = new ConcurrentLinkedQueue<>();
+
+	private static class Deferred {
+		/**
+		 * The highest sequence issued before, completes once no key up to it
+		 * is pending.
+		 */
+		private final long bound;
+		private final Runnable completion;
+
+		private Deferred(long bound, Runnable completion) {
+			this.bound = bound;
+			this.completion = completion;
+		}
+	}
+
+	/**
+	 * Creates a partitioned store.
+	 *
+	 * @param shards
+	 *            the shards, none of them must be used directly
+	 * @param partitionKey
+	 *            extracts the key an element is partitioned by, may return
+	 *            null
+	 */
+	public PartitionedObjectStore(List<? extends ObjectStore<T, I, String>> shards, Function<T, ?> partitionKey) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("at least one shard is required");
+		}
+		this.shards = new ArrayList<>(shards);
+		this.partitionKey = partitionKey;
+		setSequenceKeyGenerator(new CounterSequenceKeyGenerator());
+	}
+
+	/**
+	 * Sets the generator of the sequences of this store and its shards,
+	 * replacing the default counter. It observes the highest sequences of the
+	 * shards.
+	 * 
+	 * @param generator
+	 *            the generator
+	 */
+	@Override
+	public void setSequenceKeyGenerator(SequenceKeyGenerator generator) {
+		for (ObjectStore<T, I, String> shard : shards) {
+			shard.setSequenceKeyGenerator(generator);
+		}
+		this.generator = generator;
+	}
+
+	private int shardIndex(T object) {
+		return Math.floorMod(Objects.hashCode(partitionKey.apply(object)), shards.size());
+	}
+
+	private ObjectStore<T, I, String> shard(T object) {
+		return shards.get(shardIndex(object));
+	}
+
+	private static String sequenceKey(long sequence) {
+		return SequenceKeys.format(sequence);
+	}
+
+	/**
+	 * Marks the keys from the specified one on pending.
+	 */
+	private void hold(long first) {
+		pending.merge(first, 1, Integer::sum);
+	}
+
+	/**
+	 * Marks the keys generated from now on pending. They are above the
+	 * highest sequence issued so far.
+	 *
+	 * @return the lower bound of the keys to release
+	 */
+	private long holdNext() {
+		long first = generator.highest() + 1;
+		hold(first);
+		return first;
+	}
+
+	private void release(long first) {
+		pending.computeIfPresent(first, (key, count) -> count == 1 ? null : count - 1);
+		runDeferred();
+	}
+
+	private boolean isPending(long upTo) {
+		return pending.floorKey(upTo) != null;
+	}
+
+	/**
+	 * Returns the exclusive upper bound of the sequences visible to range
+	 * queries, all keys below it have been added or abandoned. The highest
+	 * sequence is read first, so keys held after reading the pending ones are
+	 * above the bound.
+	 */
+	private long visibleBound() {
+		long highest = generator.highest();
+		long bound = highest == Long.MAX_VALUE ? Long.MAX_VALUE : highest + 1;
+		Map.Entry<Long, Integer> first = pending.firstEntry();
+		return first == null ? bound : Math.min(first.getKey(), bound);
+	}
+
+	/**
+	 * Runs the completion as soon as all keys issued so far are visible to
+	 * range queries.
+	 */
+	private void whenVisible(Runnable completion) {
+		Deferred d = new Deferred(generator.highest(), completion);
+		if (!isPending(d.bound)) {
+			completion.run();
+			return;
+		}
+		deferred.add(d);
+		// The keys may have been released before the completion was queued.
+		runDeferred();
+	}
+
+	private void runDeferred() {
+		for (Deferred d : deferred) {
+			if (!isPending(d.bound) && deferred.remove(d)) {
+				d.completion.run();
+			}
+		}
+	}
+
+	@Override
+	public void add(T object) {
+		shard(object).add(object);
+	}
+
+	@Override
+	public Map<I, String> addAllIfAbsent(Collection<T> objects, BiConsumer<T, String> sequenceKeyAssigner) {
+		Map<Integer, List<T>> partitions = new LinkedHashMap<>();
+		for (T object : objects) {
+			partitions.computeIfAbsent(shardIndex(object), i -> new ArrayList<>()).add(object);
+		}
+		Map<I, String> result = new LinkedHashMap<>();
+		if (partitions.isEmpty()) {
+			return result;
+		}
+		long first = holdNext();
+		try {
+			for (Map.Entry<Integer, List<T>> partition : partitions.entrySet()) {
+				result.putAll(shards.get(partition.getKey()).addAllIfAbsent(partition.getValue(), sequenceKeyAssigner));
+			}
+		} finally {
+			release(first);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the elements to their shards, keeping their sequence keys. Their
+	 * keys are pending from the lowest one until all shards have added them,
+	 * so callers adding elements in sequence order do not make readers skip
+	 * any.
+	 */
+	@Override
+	public int putAllIfAbsent(Collection<T> objects) {
+		if (objects.isEmpty()) {
+			return 0;
+		}
+		Map<Integer, List<T>> partitions = new LinkedHashMap<>();
+		long lowestSequence = Long.MAX_VALUE;
+		long highestSequence = Sequenced.NO_SEQUENCE;
+		for (T object : objects) {
+			partitions.computeIfAbsent(shardIndex(object), i -> new ArrayList<>()).add(object);
+			lowestSequence = Math.min(lowestSequence, object.sequence());
+			highestSequence = Math.max(highestSequence, object.sequence());
+		}
+		hold(lowestSequence);
+		generator.observe(highestSequence);
+		int result = 0;
+		try {
+			for (Map.Entry<Integer, List<T>> partition : partitions.entrySet()) {
+				result += shards.get(partition.getKey()).putAllIfAbsent(partition.getValue());
+			}
+		} finally {
+			release(lowestSequence);
+		}
+		return result;
+	}
+
+	@Override
+	public Set<T> get() {
+		return merge(shards.stream().map(ObjectStore::get).collect(Collectors.toList()));
+	}
+
+	@Override
+	public void clear() {
+		for (ObjectStore<T, I, String> shard : shards) {
+			shard.clear();
+		}
+	}
+
+	@Override
+	public Set<T> get(Predicate<T> predicate) {
+		return merge(shards.stream().map(s -> s.get(predicate)).collect(Collectors.toList()));
+	}
+
+	private static <T extends Sequenced<String>> Set<T> merge(List<? extends Collection<T>> results) {
+		List<T> merged = new ArrayList<>();
+		for (Collection<T> result : results) {
+			merged.addAll(result);
+		}
+		merged.sort(SEQUENCE_ORDER);
+		return new LinkedHashSet<>(merged);
+	}
+
+	@Override
+	public Page<T, String> getAfter(String sequenceKey, Predicate<T> predicate, int limit) {
+		long bound = visibleBound();
+		List<T> candidates = new ArrayList<>();
+		for (ObjectStore<T, I, String> shard : shards) {
+			candidates.addAll(shard.getAfter(sequenceKey, predicate, limit).getElements());
+		}
+		candidates.sort(SEQUENCE_ORDER);
+		return LockingObjectStore.page(
+				candidates.stream().filter(t -> t.sequence() < bound).iterator(), t -> true,
+				limit);
+	}
+
+	@Override
+	public Set<T> await(Predicate<T> predicate) {
+		return awaitAsync(predicate).join();
+	}
+
+	/**
+	 * Returns a future of the matching elements of the first shard having any,
+	 * together with those of other shards woken in the meantime. It completes
+	 * once they are visible to range queries, the waits on the other shards
+	 * are cancelled then.
+	 */
+	@Override
+	public CompletableFuture<Set<T>> awaitAsync(Predicate<T> predicate) {
+		CompletableFuture<Set<T>> result = new CompletableFuture<>();
+		List<CompletableFuture<Set<T>>> waits = new ArrayList<>(shards.size());
+		Set<T> woken = new LinkedHashSet<>();
+		for (ObjectStore<T, I, String> shard : shards) {
+			CompletableFuture<Set<T>> wait = shard.awaitAsync(predicate);
+			waits.add(wait);
+			wait.whenComplete((r, e) -> {
+				if (e != null) {
+					result.completeExceptionally(e);
+				} else {
+					synchronized (woken) {
+						woken.addAll(r);
+					}
+					whenVisible(() -> {
+						synchronized (woken) {
+							result.complete(merge(asList(woken)));
+						}
+					});
+				}
+			});
+		}
+		result.whenComplete((r, e) -> waits.forEach(w -> w.cancel(false)));
+		return result;
+	}
+
+	/**
+	 * Registers the listener with all shards. Added elements are handed to it
+	 * once all keys reserved before are visible to range queries.
+	 */
+	@Override
+	public void addListener(Consumer<Collection<T>> listener) {
+		for (ObjectStore<T, I, String> shard : shards) {
+			shard.addListener(objects -> whenVisible(() -> listener.accept(objects)));
+		}
+	}
+
+	@Override
+	public Set<T> await(Predicate<T> predicate, long timeout, TimeUnit unit) {
+		CompletableFuture<Set<T>> result = awaitAsync(predicate);
+		try {
+			return result.get(timeout, unit);
+		} catch (TimeoutException e) {
+			return result.cancel(false) ? emptySet() : result.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return result.cancel(false) ? emptySet() : result.join();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	@Override
+	public void remove(Predicate<T> predicate) {
+		for (ObjectStore<T, I, String> shard : shards) {
+			shard.remove(predicate);
+		}
+	}
+
+	@Override
+	public void remove(T object) {
+		shard(object).remove(object);
+	}
+
+	@Override
+	public T any() {
+		for (ObjectStore<T, I, String> shard : shards) {
+			T result = shard.any();
+			if (result != null) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String generateSequenceKey() {
+		return sequenceKey(generator.next());
+	}
+
+	@Override
+	public String getHighestSequenceKey() {
+		return shards.stream().map(ObjectStore::getHighestSequenceKey).filter(Objects::nonNull)
+				.max(Comparator.naturalOrder()).orElse(null);
+	}
+
+	/**
+	 * Returns the keys of the index of all shards, null if any shard does not
+	 * maintain it.
+	 */
+	@Override
+	public Set<Object> getIndexKeys(String indexName) {
+		Set<Object> result = new LinkedHashSet<>();
+		for (ObjectStore<T, I, String> shard : shards) {
+			Set<Object> keys = shard.getIndexKeys(indexName);
+			if (keys == null) {
+				return null;
+			}
+			result.addAll(keys);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean contains(I id) {
+		for (ObjectStore<T, I, String> shard : shards) {
+			if (shard.contains(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void close() {
+		for (ObjectStore<T, I, String> shard : shards) {
+			shard.close();
+		}
+	}
+
+}
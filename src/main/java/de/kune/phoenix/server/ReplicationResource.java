@@ -0,0 +1,25 @@
+package de.kune.phoenix.server;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Exposes the replication status of this node, including the replication lag
+ * of a follower.
+ */
+@Path("replication")
+public class ReplicationResource {
+
+	@Inject
+	private Replicator replicator;
+
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public ReplicationStatus get() {
+		return replicator.getStatus();
+	}
+
+}
@@ -0,0 +1,84 @@
+package de.kune.phoenix.server;
+
+/**
+ * The replication status of a node.
+ */
+public class ReplicationStatus {
+
+	private final String leader;
+	private final String lastAppliedSequenceKey;
+	private final long lagMillis;
+	private final long appliedCount;
+	private final boolean connected;
+	private final String lastError;
+
+	ReplicationStatus(String leader, String lastAppliedSequenceKey, long lagMillis, long appliedCount,
+			boolean connected, String lastError) {
+		this.leader = leader;
+		this.lastAppliedSequenceKey = lastAppliedSequenceKey;
+		this.lagMillis = lagMillis;
+		this.appliedCount = appliedCount;
+		this.connected = connected;
+		this.lastError = lastError;
+	}
+
+	/**
+	 * Returns the role of the node, <code>leader</code> or
+	 * <code>follower</code>.
+	 */
+	public String getRole() {
+		return leader == null ? "leader" : "follower";
+	}
+
+	/**
+	 * Returns the URI of the leader followed, null for a leader.
+	 */
+	public String getLeader() {
+		return leader;
+	}
+
+	/**
+	 * Returns the sequence key of the last message replicated from the
+	 * leader.
+	 */
+	public String getLastAppliedSequenceKey() {
+		return lastAppliedSequenceKey;
+	}
+
+	/**
+	 * Returns the time in milliseconds since the node last held all messages
+	 * of the leader, -1 if it has not yet.
+	 */
+	public long getLagMillis() {
+		return lagMillis;
+	}
+
+	/**
+	 * Returns the number of messages replicated since the node started.
+	 */
+	public long getAppliedCount() {
+		return appliedCount;
+	}
+
+	/**
+	 * Returns whether the last request to the leader succeeded.
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Returns the error of the last failed request to the leader.
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+
+	@Override
+	public String toString() {
+		return "ReplicationStatus [leader=" + leader + ", lastAppliedSequenceKey=" + lastAppliedSequenceKey
+				+ ", lagMillis=" + lagMillis + ", appliedCount=" + appliedCount + ", connected=" + connected
+				+ ", lastError=" + lastError + "]";
+	}
+
+}
@@ -0,0 +1,236 @@
+package de.kune.phoenix.server;
+
+import static java.lang.String.format;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.client.ClientProperties;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Replicates the messages of a leader node into the message store of a
+ * follower node. The follower tails the ordered message stream of the leader
+ * from its last applied sequence key with long polling requests in the binary
+ * format and adds each page keeping the sequence keys of the leader, so
+ * clients may continue reading at either node. Posts to a follower are
+ * forwarded to the leader, removals are not replicated.
+ * <p>
+ * The replication lag is the time since the follower last held all messages
+ * of the leader. It is zero while the follower waits for further messages.
+ * <p>
+ * Without a leader, the node is a leader itself and nothing is replicated.
+ */
+public class Replicator {
+
+	private static final MediaType BINARY_TYPE = MediaType.valueOf(BinaryMessageProvider.MEDIA_TYPE);
+
+	private static final GenericType<List<Message>> MESSAGE_LIST = new GenericType<List<Message>>() {
+	};
+
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private static final long MAX_BACKOFF = 30000L;
+
+	private final ObjectStore<Message, String, String> messageStore;
+	private final URI leader;
+	private final int pageSize;
+	private final long wait;
+	private final Client client;
+	private final WebTarget messages;
+
+	private final AtomicLong appliedCount = new AtomicLong();
+	private volatile String lastAppliedSequenceKey;
+	private volatile long caughtUpAt;
+	private volatile boolean waiting;
+	private volatile boolean connected;
+	private volatile String lastError;
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * Creates a replicator.
+	 *
+	 * @param messageStore
+	 *            the local message store
+	 * @param leader
+	 *            the URI of the REST API of the leader, null if this node is
+	 *            the leader
+	 * @param pageSize
+	 *            the maximum number of messages requested at once
+	 * @param wait
+	 *            the time in milliseconds a request waits for further
+	 *            messages, capped by the leader
+	 */
+	public Replicator(ObjectStore<Message, String, String> messageStore, URI leader, int pageSize, long wait) {
+		this.messageStore = messageStore;
+		this.leader = leader;
+		this.pageSize = pageSize;
+		this.wait = wait;
+		if (leader == null) {
+			this.client = null;
+			this.messages = null;
+		} else {
+			this.client = ClientBuilder.newClient().register(BinaryMessageProvider.class)
+					.property(ClientProperties.CONNECT_TIMEOUT, CONNECT_TIMEOUT)
+					.property(ClientProperties.READ_TIMEOUT, (int) (wait + CONNECT_TIMEOUT));
+			this.messages = client.target(leader).path("message");
+		}
+	}
+
+	/**
+	 * Returns whether this node follows a leader.
+	 *
+	 * @return true if a leader is configured
+	 */
+	public boolean isFollower() {
+		return leader != null;
+	}
+
+	/**
+	 * Starts tailing the leader on a background thread, continuing after the
+	 * highest sequence key present in the local store.
+	 */
+	public synchronized void start() {
+		if (!isFollower()) {
+			throw new IllegalStateException("no leader configured");
+		}
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this::run, getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops tailing the leader. A pending request is abandoned.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	/**
+	 * Posts the messages to the leader.
+	 *
+	 * @param posted
+	 *            the messages
+	 * @return the HTTP status of the response of the leader, 503 if it
+	 *         cannot be reached
+	 */
+	public int forward(List<Message> posted) {
+		try {
+			Response response = messages.request().post(BinaryMessageProvider.entity(posted));
+			response.close();
+			return response.getStatus();
+		} catch (ProcessingException e) {
+			return Response.Status.SERVICE_UNAVAILABLE.getStatusCode();
+		}
+	}
+
+	private void run() {
+		lastAppliedSequenceKey = messageStore.getHighestSequenceKey();
+		int failures = 0;
+		boolean caughtUp = false;
+		while (running) {
+			try {
+				caughtUp = poll(caughtUp);
+				failures = 0;
+			} catch (RuntimeException e) {
+				connected = false;
+				waiting = false;
+				caughtUp = false;
+				lastError = String.valueOf(e.getMessage());
+				failures++;
+				try {
+					Thread.sleep(Math.min((long) failures * failures * 250L, MAX_BACKOFF));
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Requests and applies the next page of messages, waiting for them if the
+	 * follower has caught up.
+	 *
+	 * @return true if the follower has caught up afterwards
+	 */
+	private boolean poll(boolean caughtUp) {
+		WebTarget target = messages.queryParam("limit", pageSize);
+		if (lastAppliedSequenceKey != null) {
+			target = target.queryParam("last-sequence-key", lastAppliedSequenceKey);
+		}
+		if (caughtUp) {
+			target = target.queryParam("wait", true).queryParam("timeout", wait);
+		}
+		long sentAt = System.currentTimeMillis();
+		waiting = caughtUp;
+		Response response = target.request(BINARY_TYPE).get();
+		try {
+			if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+				throw new IllegalStateException(format("leader responded with status [%d]", response.getStatus()));
+			}
+			List<Message> page = response.readEntity(MESSAGE_LIST);
+			connected = true;
+			// A wait returns once the leader has added messages, the follower
+			// held all others until then.
+			if (caughtUp) {
+				caughtUpAt = System.currentTimeMillis();
+			}
+			waiting = false;
+			if (!page.isEmpty()) {
+				appliedCount.addAndGet(messageStore.putAllIfAbsent(page));
+				lastAppliedSequenceKey = page.get(page.size() - 1).getSequenceKey();
+			}
+			boolean result = response.getHeaderString(MessageResource.CONTINUATION_KEY_HEADER) == null;
+			if (result && !caughtUp) {
+				caughtUpAt = sentAt;
+			}
+			return result;
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Returns the replication status of this node.
+	 *
+	 * @return the status
+	 */
+	public ReplicationStatus getStatus() {
+		if (!isFollower()) {
+			return new ReplicationStatus(null, null, 0L, 0L, true, null);
+		}
+		long lag;
+		if (waiting) {
+			lag = 0L;
+		} else if (caughtUpAt == 0L) {
+			lag = -1L;
+		} else {
+			lag = Math.max(0L, System.currentTimeMillis() - caughtUpAt);
+		}
+		return new ReplicationStatus(leader.toString(), lastAppliedSequenceKey, lag, appliedCount.get(), connected,
+				lastError);
+	}
+
+}
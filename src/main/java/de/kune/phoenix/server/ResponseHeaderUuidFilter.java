@@ -11,7 +11,7 @@ import static java.util.UUID.randomUUID;
 /**
  * Created by alexander on 25.01.2017.
  */
-@WebFilter
+@WebFilter(asyncSupported = true)
 public class ResponseHeaderUuidFilter implements Filter {
 
     private static final UUID UUID = randomUUID();
@@ -16,6 +16,7 @@ public class RestApplication extends Application {
 	public Set<Class<?>> getClasses() {
 		final Set<Class<?>> classes = new HashSet<Class<?>>();
 		classes.add(MessageResource.class);
+		classes.add(ReplicationResource.class);
 		return classes;
 	}
 
@@ -23,6 +24,7 @@ public class RestApplication extends Application {
 	public Set<Object> getSingletons() {
 		final Set<Object> instances = new HashSet<Object>();
 		instances.add(new JacksonFeature());
+		instances.add(new BinaryMessageProvider());
 		instances.add(new LoggingFilter());
 		return instances;
 	}
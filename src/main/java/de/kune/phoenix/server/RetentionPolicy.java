@@ -0,0 +1,60 @@
+package de.kune.phoenix.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the age, the number and the accumulated size of the retained
+ * elements of a store. A limit of zero or less means no limit. Stores apply
+ * the policy at the granularity of their storage units, dropping the oldest
+ * unit as a whole as long as any limit is exceeded, so slightly fewer
+ * elements than allowed may be retained.
+ */
+public class RetentionPolicy {
+
+	public static final RetentionPolicy UNLIMITED = new RetentionPolicy(0L, TimeUnit.MILLISECONDS, 0L, 0L);
+
+	private final long maxAgeMillis;
+	private final long maxCount;
+	private final long maxBytes;
+
+	/**
+	 * Creates a retention policy.
+	 * 
+	 * @param maxAge
+	 *            the maximum age of retained elements
+	 * @param unit
+	 *            the time unit of the age argument
+	 * @param maxCount
+	 *            the maximum number of retained elements
+	 * @param maxBytes
+	 *            the maximum accumulated size of the storage
+	 */
+	public RetentionPolicy(long maxAge, TimeUnit unit, long maxCount, long maxBytes) {
+		this.maxAgeMillis = unit.toMillis(maxAge);
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Checks whether the oldest storage unit is to be dropped.
+	 * 
+	 * @param ageMillis
+	 *            the age of the youngest element of the oldest storage unit
+	 * @param count
+	 *            the number of retained elements
+	 * @param bytes
+	 *            the accumulated size of the storage
+	 * @return true if any limit is exceeded
+	 */
+	public boolean isExceeded(long ageMillis, long count, long bytes) {
+		return maxAgeMillis > 0 && ageMillis > maxAgeMillis || maxCount > 0 && count > maxCount
+				|| maxBytes > 0 && bytes > maxBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "RetentionPolicy [maxAgeMillis=" + maxAgeMillis + ", maxCount=" + maxCount + ", maxBytes=" + maxBytes
+				+ "]";
+	}
+
+}
@@ -0,0 +1,1009 @@
+package de.kune.phoenix.server;
+
+import static de.kune.phoenix.shared.Sequenced.NO_SEQUENCE;
+import static java.lang.String.format;
+import static java.util.Collections.emptyMap;
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+
+import de.kune.phoenix.shared.Identifiable;
+import de.kune.phoenix.shared.SequenceKeys;
+import de.kune.phoenix.shared.Sequenced;
+
+/**
+ * An object store persisting its elements in an append-only, segmented log.
+ * <p>
+ * Each segment consists of a log file holding records, each prefixed with
+ * its length and CRC-32 checksum, and an index file holding one small entry
+ * (kind, log position, id and sequence key) per record. Removals are appended
+ * as tombstone records. A segment is rolled as soon as its log file exceeds
+ * the configured segment size. On start-up only the index files are read to
+ * rebuild the in-memory id to location map, the tail of the active segment
+ * not yet covered by its index is recovered from the log itself.
+ * <p>
+ * Record lengths are checked against the segment size and checksums are
+ * verified on each read. On start-up, the records of the active segment are
+ * verified in full. A segment is truncated at its first invalid record, e.g.
+ * one torn by a crash, dropping the records following it.
+ * <p>
+ * Segments are optionally also rolled after a configured duration, so each
+ * covers a bucket of time. If compaction is enabled, a background thread
+ * periodically drops the oldest segments as a whole while the retention
+ * policy is exceeded, and rewrites segments holding less than the configured
+ * ratio of live bytes. The segments are read and written without holding the
+ * lock, which is only held to swap the in-memory locations.
+ *
+ * @param <T>
+ *            the identifiable, sequenced element type
+ * @param <I>
+ *            the id type
+ */
+public class SegmentedLogObjectStore<T extends Identifiable<I> & Sequenced<String>, I>
+		extends LockingObjectStore<T, I, String> {
+
+	public static <T extends Identifiable<I> & Sequenced<String>, I> SegmentedLogObjectStore<T, I> getInstance(
+			String directory, long segmentSize) {
+		SegmentedLogObjectStore<T, I> store = new SegmentedLogObjectStore<>();
+		store.fileSystemLocation = directory;
+		store.segmentSize = segmentSize;
+		store.init();
+		return store;
+	}
+
+	private static final Logger logger = Logger.getLogger(SegmentedLogObjectStore.class.getName());
+
+	private static final Pattern segmentPattern = Pattern.compile("(?<offset>\\d{20})\\.log");
+	private static final SequenceKeyGenerator defaultSequenceKeyGenerator = new CounterSequenceKeyGenerator();
+	private static final ObjectCodec JSON_CODEC = new JsonObjectCodec();
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte ENCODED_PUT = 3;
+
+	private static final String COMPACTED_SUFFIX = ".compacted";
+
+	/**
+	 * The size of the length and checksum prefixing each record.
+	 */
+	private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+	/**
+	 * Signals a record with a length beyond its segment or a checksum not
+	 * matching its bytes.
+	 */
+	private static class InvalidRecordException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private InvalidRecordException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * The location of a record within the log.
+	 */
+	private static class Location {
+		private final Segment segment;
+		private final long position;
+		private final long sequence;
+		private final int length;
+
+		private Location(Segment segment, long position, long sequence, int length) {
+			this.segment = segment;
+			this.position = position;
+			this.sequence = sequence;
+			this.length = length;
+		}
+
+		/**
+		 * Returns the size of the record including its header.
+		 */
+		private long size() {
+			return RECORD_HEADER_SIZE + length;
+		}
+	}
+
+	/**
+	 * A segment of the log, i.e. a log file and its offset index.
+	 */
+	private static class Segment {
+		private final long baseOffset;
+		private final File logFile;
+		private final File indexFile;
+		private FileChannel log;
+		private FileOutputStream indexOut;
+		private DataOutputStream index;
+		private long size;
+		private long recordCount;
+		private boolean dirty;
+		private long created;
+		private long compactedLiveBytes = Long.MAX_VALUE;
+		private boolean compactedAsFirst;
+
+		private Segment(File directory, long baseOffset) {
+			this.baseOffset = baseOffset;
+			this.logFile = new File(directory, format("%020d.log", baseOffset));
+			this.indexFile = new File(directory, format("%020d.idx", baseOffset));
+		}
+
+		private void open() throws IOException {
+			log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			size = log.size();
+			indexOut = new FileOutputStream(indexFile, true);
+			index = new DataOutputStream(new BufferedOutputStream(indexOut));
+			created = size == 0 ? System.currentTimeMillis()
+					: Files.readAttributes(logFile.toPath(), BasicFileAttributes.class).creationTime().toMillis();
+		}
+
+		/**
+		 * Returns the time of the last write to this segment.
+		 */
+		private long lastModified() {
+			return logFile.lastModified();
+		}
+
+		private File compactedLogFile() {
+			return new File(logFile.getPath() + COMPACTED_SUFFIX);
+		}
+
+		private File compactedIndexFile() {
+			return new File(indexFile.getPath() + COMPACTED_SUFFIX);
+		}
+
+		private long append(byte[] record) throws IOException {
+			long position = size;
+			size = writeRecord(log, position, record);
+			recordCount++;
+			dirty = true;
+			return position;
+		}
+
+		private void index(byte kind, long position, String id, String sequenceKey) throws IOException {
+			index.writeByte(kind);
+			index.writeLong(position);
+			index.writeUTF(id);
+			index.writeUTF(sequenceKey == null ? "" : sequenceKey);
+			index.flush();
+		}
+
+		/**
+		 * Reads the header of the record at the specified position, checking
+		 * its length against the size of this segment.
+		 */
+		private ByteBuffer header(long position) throws IOException {
+			if (position < 0L || position > size - RECORD_HEADER_SIZE) {
+				throw new InvalidRecordException(
+						format("no record header at position [%d] of segment [%s]", position, logFile));
+			}
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			readFully(header, position);
+			int length = header.getInt(0);
+			if (length < 1 || length > size - position - RECORD_HEADER_SIZE) {
+				throw new InvalidRecordException(format("invalid record length [%d] at position [%d] of segment [%s]",
+						length, position, logFile));
+			}
+			return header;
+		}
+
+		private int recordLength(long position) throws IOException {
+			return header(position).getInt(0);
+		}
+
+		private byte[] read(long position) throws IOException {
+			ByteBuffer header = header(position);
+			byte[] record = new byte[header.getInt(0)];
+			readFully(ByteBuffer.wrap(record), position + RECORD_HEADER_SIZE);
+			if (checksum(record) != header.getInt(Integer.BYTES)) {
+				throw new InvalidRecordException(
+						format("checksum mismatch of record at position [%d] of segment [%s]", position, logFile));
+			}
+			return record;
+		}
+
+		private void readFully(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (log.read(buffer, position + buffer.position()) < 0) {
+					throw new EOFException(format("unexpected end of segment [%s]", logFile));
+				}
+			}
+		}
+
+		private void sync() throws IOException {
+			if (dirty) {
+				log.force(false);
+				index.flush();
+				indexOut.getChannel().force(false);
+				dirty = false;
+			}
+		}
+
+		private void close() throws IOException {
+			log.close();
+			index.close();
+		}
+
+		private void delete() throws IOException {
+			close();
+			Files.deleteIfExists(logFile.toPath());
+			Files.deleteIfExists(indexFile.toPath());
+		}
+	}
+
+	private static int checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Writes a record with its header to a log.
+	 *
+	 * @return the position following the record
+	 */
+	private static long writeRecord(FileChannel log, long position, byte[] record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+		buffer.putInt(record.length).putInt(checksum(record)).put(record).flip();
+		long end = position;
+		while (buffer.hasRemaining()) {
+			end += log.write(buffer, end);
+		}
+		return end;
+	}
+
+	private ObjectCodec codec = new JsonObjectCodec();
+
+	@Value("${segmentedlog.location:store-log}")
+	private String fileSystemLocation;
+
+	@Value("${segmentedlog.segmentsize:16777216}")
+	private long segmentSize;
+
+	private File directory;
+
+	private final List<Segment> segments = new ArrayList<>();
+
+	private final Map<String, Location> locations = new LinkedHashMap<>();
+
+	private final NavigableMap<Long, Location> sequenceIndex = new TreeMap<>();
+
+	private long highestSequence = NO_SEQUENCE;
+
+	/**
+	 * Whether segments have been created since the last sync.
+	 */
+	private boolean directoryDirty;
+
+	private volatile ObjectCache<Location, byte[]> cache;
+
+	private long segmentDuration;
+
+	private RetentionPolicy retention = RetentionPolicy.UNLIMITED;
+
+	private double minLiveRatio;
+
+	private ScheduledExecutorService compactor;
+
+	private volatile CompactionStats compactionStats;
+
+	private final Object compactionMonitor = new Object();
+
+	/**
+	 * Sets the codec to encode added objects with. Present records are decoded
+	 * with the codec they were written with.
+	 * 
+	 * @param codec
+	 *            the codec
+	 */
+	public void setCodec(ObjectCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Enables caching of the records of objects. Cached objects are decoded on
+	 * each read, so callers never share an instance.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of cached objects
+	 * @param maxBytes
+	 *            the maximum accumulated record size of cached objects
+	 */
+	public void enableCache(int maxEntries, long maxBytes) {
+		cache = new ObjectCache<>(maxEntries, maxBytes);
+	}
+
+	/**
+	 * Returns the cache of records.
+	 * 
+	 * @return the cache or null if caching is disabled
+	 */
+	public ObjectCache<?, byte[]> getCache() {
+		return cache;
+	}
+
+	/**
+	 * Sets the duration after which the active segment is rolled even if it
+	 * has not reached the segment size yet.
+	 * 
+	 * @param duration
+	 *            the duration, zero or less to roll by size only
+	 * @param unit
+	 *            the time unit of the duration argument
+	 */
+	public void setSegmentDuration(long duration, TimeUnit unit) {
+		this.segmentDuration = unit.toMillis(duration);
+	}
+
+	/**
+	 * Enables background compaction.
+	 * 
+	 * @param retention
+	 *            the retention policy applied to the segments
+	 * @param minLiveRatio
+	 *            the ratio of live bytes below which a segment is rewritten
+	 * @param interval
+	 *            the interval between compaction runs
+	 * @param unit
+	 *            the time unit of the interval argument
+	 */
+	public synchronized void enableCompaction(RetentionPolicy retention, double minLiveRatio, long interval,
+			TimeUnit unit) {
+		synchronized (compactionMonitor) {
+			this.retention = retention;
+			this.minLiveRatio = minLiveRatio;
+		}
+		if (compactor != null) {
+			compactor.shutdownNow();
+		}
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, getClass().getSimpleName() + "-compaction");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactor.scheduleWithFixedDelay(() -> {
+			try {
+				compactionStats = compact();
+			} catch (RuntimeException e) {
+				// Keep compacting, the next run may succeed.
+				logger.log(Level.WARNING, "compaction failed", e);
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Stops group commit and background compaction.
+	 */
+	@Override
+	public synchronized void close() {
+		super.close();
+		if (compactor != null) {
+			compactor.shutdownNow();
+			compactor = null;
+		}
+	}
+
+	/**
+	 * Returns the outcome of the last background compaction run.
+	 * 
+	 * @return the stats or null if no run has completed yet
+	 */
+	public CompactionStats getCompactionStats() {
+		return compactionStats;
+	}
+
+	@PostConstruct
+	protected void init() {
+		directory = new File(fileSystemLocation);
+		if (!directory.exists()) {
+			directory.mkdirs();
+		}
+		if (!directory.isDirectory()) {
+			throw new IllegalStateException(format("file [%s] exists and is not a directory", directory));
+		}
+		try {
+			for (File compacted : directory.listFiles((dir, name) -> name.endsWith(COMPACTED_SUFFIX))) {
+				Files.delete(compacted.toPath());
+			}
+			long[] offsets = findSegmentOffsets();
+			for (int i = 0; i < offsets.length; i++) {
+				Segment segment = new Segment(directory, offsets[i]);
+				segment.open();
+				segments.add(segment);
+				long indexed = loadIndex(segment, i == offsets.length - 1);
+				recover(segment, indexed);
+			}
+			if (segments.isEmpty()) {
+				openSegment(0L);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		updateSequence(highestSequence);
+	}
+
+	private long[] findSegmentOffsets() {
+		File[] files = directory.listFiles((dir, name) -> segmentPattern.matcher(name).matches());
+		long[] result = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			Matcher m = segmentPattern.matcher(files[i].getName());
+			m.matches();
+			result[i] = Long.parseLong(m.group("offset"));
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Reads the index of the specified segment and applies its entries up to
+	 * the first one not pointing to a valid record right after the previous
+	 * one. The remaining entries, e.g. a partially written one, are truncated.
+	 *
+	 * @param verify
+	 *            whether to verify the checksums of the indexed records,
+	 *            otherwise only their lengths are checked
+	 * @return the log position up to which the segment is covered by its index
+	 */
+	private long loadIndex(Segment segment, boolean verify) throws IOException {
+		byte[] bytes = Files.readAllBytes(segment.indexFile.toPath());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		long indexed = 0L;
+		int valid = 0;
+		while (true) {
+			byte kind;
+			long position;
+			String id;
+			String sequenceKey;
+			try {
+				kind = in.readByte();
+				position = in.readLong();
+				id = in.readUTF();
+				sequenceKey = in.readUTF();
+			} catch (EOFException e) {
+				break;
+			}
+			int length;
+			try {
+				if (position != indexed) {
+					throw new InvalidRecordException(format("index entry of segment [%s] points to position [%d]"
+							+ " instead of [%d]", segment.logFile, position, indexed));
+				}
+				length = verify ? segment.read(position).length : segment.recordLength(position);
+			} catch (InvalidRecordException e) {
+				logger.log(Level.WARNING, "dropping the remaining index entries", e);
+				break;
+			}
+			apply(segment, kind, position, length, id, sequenceKey);
+			indexed = position + RECORD_HEADER_SIZE + length;
+			valid = bytes.length - in.available();
+			segment.recordCount++;
+		}
+		if (valid < bytes.length) {
+			try (FileChannel channel = FileChannel.open(segment.indexFile.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(valid);
+			}
+		}
+		return indexed;
+	}
+
+	/**
+	 * Indexes valid records written after the last index entry and truncates
+	 * the segment at the first invalid one, e.g. partially written at the end
+	 * of the segment.
+	 */
+	private void recover(Segment segment, long position) throws IOException {
+		while (position < segment.size) {
+			byte[] record;
+			try {
+				record = segment.read(position);
+				if (!isPut(record[0]) && record[0] != REMOVE) {
+					throw new InvalidRecordException(format("unknown record kind [%d] at position [%d] of segment [%s]",
+							record[0], position, segment.logFile));
+				}
+			} catch (InvalidRecordException e) {
+				logger.log(Level.WARNING, "truncating the segment at an invalid record", e);
+				break;
+			}
+			byte kind = record[0];
+			String id;
+			String sequenceKey = null;
+			if (isPut(kind)) {
+				T object = decode(record);
+				id = object.getId().toString();
+				sequenceKey = object.getSequenceKey();
+			} else {
+				id = new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1)).readUTF();
+			}
+			apply(segment, kind, position, record.length, id, sequenceKey);
+			segment.index(kind, position, id, sequenceKey);
+			segment.recordCount++;
+			position += RECORD_HEADER_SIZE + record.length;
+		}
+		if (position < segment.size) {
+			segment.log.truncate(position);
+			segment.size = position;
+		}
+	}
+
+	private static boolean isPut(byte kind) {
+		return kind == PUT || kind == ENCODED_PUT;
+	}
+
+	private void apply(Segment segment, byte kind, long position, int length, String id, String sequenceKey) {
+		if (isPut(kind)) {
+			Location location = new Location(segment, position, SequenceKeys.parse(sequenceKey), length);
+			put(id, location);
+			highestSequence = Math.max(highestSequence, location.sequence);
+		} else if (kind == REMOVE) {
+			remove(id);
+		}
+	}
+
+	private void put(String id, Location location) {
+		locations.put(id, location);
+		if (location.sequence != NO_SEQUENCE) {
+			sequenceIndex.put(location.sequence, location);
+		}
+	}
+
+	private void remove(String id) {
+		Location location = locations.remove(id);
+		if (location != null && location.sequence != NO_SEQUENCE) {
+			sequenceIndex.remove(location.sequence);
+		}
+		if (location != null && cache != null) {
+			cache.remove(location);
+		}
+	}
+
+	private Segment openSegment(long baseOffset) throws IOException {
+		Segment segment = new Segment(directory, baseOffset);
+		segment.open();
+		segments.add(segment);
+		directoryDirty = true;
+		return segment;
+	}
+
+	private Segment activeSegment() throws IOException {
+		Segment active = segments.get(segments.size() - 1);
+		if (active.size >= segmentSize || segmentDuration > 0 && active.size > 0
+				&& System.currentTimeMillis() - active.created >= segmentDuration) {
+			active = openSegment(active.baseOffset + active.recordCount);
+		}
+		return active;
+	}
+
+	private byte[] encode(T object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ENCODED_PUT);
+		out.writeUTF(codec.getName());
+		out.writeUTF(object.getClass().getName());
+		codec.encode(object, out);
+		return bytes.toByteArray();
+	}
+
+	private byte[] encode(String id) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(REMOVE);
+		out.writeUTF(id);
+		return bytes.toByteArray();
+	}
+
+	private T decode(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1));
+		ObjectCodec recordCodec = JSON_CODEC;
+		if (record[0] == ENCODED_PUT) {
+			String codecName = in.readUTF();
+			recordCodec = codec.getName().equals(codecName) ? codec : ObjectCodec.forName(codecName);
+		}
+		String valueTypeName = in.readUTF();
+		try {
+			@SuppressWarnings("unchecked")
+			Class<T> valueType = (Class<T>) Class.forName(valueTypeName);
+			return recordCodec.decode(in, valueType);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private T read(Location location) {
+		ObjectCache<Location, byte[]> cache = this.cache;
+		try {
+			if (cache == null) {
+				return decode(location.segment.read(location.position));
+			}
+			byte[] record = cache.get(location);
+			if (record == null) {
+				record = location.segment.read(location.position);
+				cache.put(location, record, record.length);
+			}
+			return decode(record);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	protected void doClear() {
+		try {
+			for (Segment segment : segments) {
+				segment.delete();
+			}
+			segments.clear();
+			locations.clear();
+			sequenceIndex.clear();
+			if (cache != null) {
+				cache.clear();
+			}
+			openSegment(0L);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	protected void doSync() {
+		try {
+			for (Segment segment : segments) {
+				segment.sync();
+			}
+			if (directoryDirty) {
+				syncDirectory(directory);
+				directoryDirty = false;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	protected boolean doesContain(I id) {
+		return locations.containsKey(id.toString());
+	}
+
+	@Override
+	protected void doPut(T object) {
+		requireNonNull(object);
+		requireNonNull(object.getId());
+		try {
+			Segment segment = activeSegment();
+			byte[] record = encode(object);
+			long position = segment.append(record);
+			segment.index(ENCODED_PUT, position, object.getId().toString(), object.getSequenceKey());
+			Location location = new Location(segment, position, object.sequence(), record.length);
+			put(object.getId().toString(), location);
+			if (cache != null) {
+				cache.put(location, record, record.length);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	protected Set<T> doGetAll() {
+		Set<T> result = new TreeSet<T>(SEQUENCE_ORDER);
+		for (Location location : locations.values()) {
+			result.add(read(location));
+		}
+		return result;
+	}
+
+	@Override
+	protected T doGet(I id) {
+		Location location = locations.get(id.toString());
+		return location == null ? null : read(location);
+	}
+
+	@Override
+	protected Page<T, String> doGetAfter(String sequenceKey, Predicate<T> predicate, int limit) {
+		NavigableMap<Long, Location> range = sequenceKey == null ? sequenceIndex
+				: sequenceIndex.tailMap(sequenceOf(sequenceKey), false);
+		return page(range.values().stream().map(this::read).iterator(), predicate, limit);
+	}
+
+	@Override
+	protected Iterator<T> doIterate() {
+		return new Iterator<T>() {
+			private Iterator<String> ids = new ArrayList<>(locations.keySet()).iterator();
+			private String current;
+
+			@Override
+			public boolean hasNext() {
+				return ids.hasNext();
+			}
+
+			@Override
+			public T next() {
+				current = ids.next();
+				return read(locations.get(current));
+			}
+
+			@Override
+			public void remove() {
+				appendRemoval(current);
+			}
+		};
+	}
+
+	@Override
+	protected T doGetAny() {
+		Iterator<Location> iterator = locations.values().iterator();
+		if (iterator.hasNext()) {
+			return read(iterator.next());
+		}
+		return null;
+	}
+
+	@Override
+	protected void doRemove(I id) {
+		appendRemoval(id.toString());
+	}
+
+	private void appendRemoval(String id) {
+		if (!locations.containsKey(id)) {
+			return;
+		}
+		try {
+			Segment segment = activeSegment();
+			long position = segment.append(encode(id));
+			segment.index(REMOVE, position, id, null);
+			remove(id);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Drops the oldest segments while the retention policy is exceeded and
+	 * rewrites the remaining sealed segments holding less than the minimum
+	 * ratio of live bytes. The active segment is left alone. The store
+	 * operations are only excluded while the in-memory locations are swapped.
+	 * <p>
+	 * Tombstones are only dropped from the oldest segment, since elements they
+	 * remove may still be present in older ones.
+	 * 
+	 * @return the outcome
+	 */
+	public CompactionStats compact() {
+		synchronized (compactionMonitor) {
+			long start = System.nanoTime();
+			List<Segment> sealed;
+			Map<Segment, Map<String, Location>> live = new HashMap<>();
+			long count;
+			long bytes = 0L;
+			readLock().lock();
+			try {
+				sealed = new ArrayList<>(segments.subList(0, segments.size() - 1));
+				for (Map.Entry<String, Location> entry : locations.entrySet()) {
+					live.computeIfAbsent(entry.getValue().segment, s -> new HashMap<>()).put(entry.getKey(),
+							entry.getValue());
+				}
+				count = locations.size();
+				for (Segment segment : segments) {
+					bytes += diskSize(segment);
+				}
+			} finally {
+				readLock().unlock();
+			}
+			long now = System.currentTimeMillis();
+			int dropped = 0;
+			while (dropped < sealed.size()) {
+				Segment segment = sealed.get(dropped);
+				if (!retention.isExceeded(now - segment.lastModified(), count, bytes)) {
+					break;
+				}
+				count -= live.getOrDefault(segment, emptyMap()).size();
+				bytes -= diskSize(segment);
+				dropped++;
+			}
+			long reclaimed = 0L;
+			Set<String> expired = new HashSet<>();
+			if (dropped > 0) {
+				writeLock().lock();
+				try {
+					for (Segment segment : sealed.subList(0, dropped)) {
+						if (!segments.contains(segment)) {
+							// Cleared meanwhile.
+							continue;
+						}
+						for (Map.Entry<String, Location> entry : live.getOrDefault(segment, emptyMap()).entrySet()) {
+							if (locations.get(entry.getKey()) == entry.getValue()) {
+								remove(entry.getKey());
+								expired.add(entry.getKey());
+							}
+						}
+						reclaimed += diskSize(segment);
+						segments.remove(segment);
+						segment.delete();
+					}
+					evicted(expired);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				} finally {
+					writeLock().unlock();
+				}
+			}
+			int rewritten = 0;
+			for (int i = dropped; i < sealed.size(); i++) {
+				Segment segment = sealed.get(i);
+				Map<String, Location> segmentLive = live.getOrDefault(segment, emptyMap());
+				long liveBytes = segmentLive.values().stream().mapToLong(Location::size).sum();
+				boolean first = i == dropped;
+				if (liveBytes < minLiveRatio * segment.size && (liveBytes < segment.compactedLiveBytes
+						|| first && !segment.compactedAsFirst)) {
+					reclaimed += rewrite(segment, segmentLive, liveBytes, first);
+					rewritten++;
+				}
+			}
+			return new CompactionStats(dropped, rewritten, expired.size(), reclaimed, System.nanoTime() - start);
+		}
+	}
+
+	private static long diskSize(Segment segment) {
+		return segment.size + segment.indexFile.length();
+	}
+
+	/**
+	 * Copies the live records and, unless the segment is the oldest one, the
+	 * tombstones of the segment to new files, then swaps them in.
+	 *
+	 * @return the number of bytes reclaimed
+	 */
+	private long rewrite(Segment segment, Map<String, Location> live, long liveBytes, boolean first) {
+		File logFile = segment.compactedLogFile();
+		File indexFile = segment.compactedIndexFile();
+		Map<String, Long> moved = new HashMap<>();
+		try {
+			DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(Files.readAllBytes(segment.indexFile.toPath())));
+			try (FileChannel log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+					FileOutputStream indexOut = new FileOutputStream(indexFile)) {
+				DataOutputStream index = new DataOutputStream(new BufferedOutputStream(indexOut));
+				long size = 0L;
+				while (in.available() > 0) {
+					byte kind = in.readByte();
+					long position = in.readLong();
+					String id = in.readUTF();
+					String sequenceKey = in.readUTF();
+					Location location = isPut(kind) ? live.get(id) : null;
+					if (isPut(kind) ? location == null || location.position != position : first) {
+						continue;
+					}
+					byte[] record = segment.read(position);
+					long newPosition = size;
+					size = writeRecord(log, size, record);
+					index.writeByte(kind);
+					index.writeLong(newPosition);
+					index.writeUTF(id);
+					index.writeUTF(sequenceKey);
+					if (location != null) {
+						moved.put(id, newPosition);
+					}
+				}
+				index.flush();
+				log.force(false);
+				indexOut.getChannel().force(false);
+			}
+			Files.setLastModifiedTime(logFile.toPath(), FileTime.fromMillis(segment.lastModified()));
+		} catch (IOException e) {
+			deleteQuietly(logFile, indexFile);
+			readLock().lock();
+			try {
+				if (!segments.contains(segment)) {
+					// Cleared meanwhile.
+					return 0L;
+				}
+			} finally {
+				readLock().unlock();
+			}
+			throw new IllegalStateException(e);
+		}
+		writeLock().lock();
+		try {
+			int index = segments.indexOf(segment);
+			if (index < 0) {
+				deleteQuietly(logFile, indexFile);
+				return 0L;
+			}
+			long before = diskSize(segment);
+			segment.close();
+			// Without an index the log is recovered on start-up, so a crash
+			// between the moves leaves a consistent segment.
+			Files.delete(segment.indexFile.toPath());
+			Files.move(logFile.toPath(), segment.logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			Files.move(indexFile.toPath(), segment.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			Segment replacement = new Segment(directory, segment.baseOffset);
+			replacement.open();
+			replacement.created = segment.created;
+			replacement.recordCount = segment.recordCount;
+			replacement.compactedLiveBytes = liveBytes;
+			replacement.compactedAsFirst = first;
+			segments.set(index, replacement);
+			for (Map.Entry<String, Long> entry : moved.entrySet()) {
+				Location location = live.get(entry.getKey());
+				if (locations.get(entry.getKey()) == location) {
+					put(entry.getKey(),
+							new Location(replacement, entry.getValue(), location.sequence, location.length));
+					if (cache != null) {
+						cache.remove(location);
+					}
+				}
+			}
+			return before - diskSize(replacement);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			writeLock().unlock();
+		}
+	}
+
+	private static void deleteQuietly(File... files) {
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	@Override
+	protected SequenceKeyGenerator getDefaultSequenceKeyGenerator() {
+		return defaultSequenceKeyGenerator;
+	}
+
+	@Override
+	protected long doGetHighestSequence() {
+		return sequenceIndex.isEmpty() ? NO_SEQUENCE : sequenceIndex.lastKey();
+	}
+
+	/**
+	 * Makes the sequence continue after the highest present one.
+	 */
+	protected void updateSequence(long highestSequence) {
+		getSequenceKeyGenerator().observe(highestSequence);
+	}
+
+}
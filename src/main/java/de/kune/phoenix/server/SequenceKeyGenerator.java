@@ -0,0 +1,53 @@
+package de.kune.phoenix.server;
+
+import de.kune.phoenix.shared.Sequenced;
+
+/**
+ * Generates the sequences stores format their sequence keys from.
+ * Implementations must be thread-safe.
+ */
+public interface SequenceKeyGenerator {
+
+	/**
+	 * Returns a sequence greater than all sequences generated or observed
+	 * before.
+	 * 
+	 * @return a non-negative sequence
+	 */
+	long next();
+
+	/**
+	 * Returns the specified number of sequences in ascending order, each
+	 * greater than all sequences generated or observed before. The default
+	 * implementation calls {@link #next()} for each.
+	 * 
+	 * @param count
+	 *            the number of sequences
+	 * @return the sequences
+	 */
+	default long[] next(int count) {
+		long[] result = new long[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = next();
+		}
+		return result;
+	}
+
+	/**
+	 * Makes all sequences generated from now on greater than the specified
+	 * one, e.g. one restored from storage or generated by another node.
+	 * 
+	 * @param sequence
+	 *            the sequence, ignored if negative
+	 */
+	void observe(long sequence);
+
+	/**
+	 * Returns a sequence no sequence generated or observed so far exceeds.
+	 * 
+	 * @return the sequence or {@link Sequenced#NO_SEQUENCE} if none has been
+	 *         generated or observed
+	 */
+	long highest();
+
+}
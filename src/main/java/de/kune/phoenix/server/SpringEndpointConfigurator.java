@@ -0,0 +1,25 @@
+package de.kune.phoenix.server;
+
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.springframework.web.context.ContextLoader;
+import org.springframework.web.context.WebApplicationContext;
+
+/**
+ * Creates WebSocket endpoint instances with their dependencies injected from
+ * the web application context.
+ */
+public class SpringEndpointConfigurator extends ServerEndpointConfig.Configurator {
+
+	@Override
+	public <T> T getEndpointInstance(Class<T> endpointClass) throws InstantiationException {
+		T result = super.getEndpointInstance(endpointClass);
+		WebApplicationContext context = ContextLoader.getCurrentWebApplicationContext();
+		if (context == null) {
+			throw new InstantiationException("no web application context");
+		}
+		context.getAutowireCapableBeanFactory().autowireBean(result);
+		return result;
+	}
+
+}
@@ -0,0 +1,159 @@
+package de.kune.phoenix.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A checkpoint of a file based store, i.e. the sequence key and file name of
+ * each stored object. The manifest consists of a snapshot followed by a
+ * journal of puts and removes appended incrementally. It is compacted into a
+ * new snapshot once the journal outgrows the live entries. Snapshots are
+ * forced to durable storage before they replace the manifest, the journal
+ * is forced on {@link #sync()}. A torn tail is ignored when loading.
+ */
+class StoreManifest {
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private final File file;
+	private FileOutputStream journalOut;
+	private DataOutputStream journal;
+	private int records;
+
+	StoreManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the manifest.
+	 *
+	 * @return a map of sequence keys to file names in sequence order or null
+	 *         if the manifest is missing or unreadable
+	 */
+	Map<String, String> load() {
+		if (!file.exists()) {
+			return null;
+		}
+		Map<String, String> result = new LinkedHashMap<>();
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())))) {
+			while (true) {
+				byte kind;
+				try {
+					kind = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				if (kind == PUT) {
+					String sequenceKey = in.readUTF();
+					result.put(sequenceKey, in.readUTF());
+				} else if (kind == REMOVE) {
+					result.remove(in.readUTF());
+				} else {
+					return null;
+				}
+			}
+		} catch (EOFException | UTFDataFormatException e) {
+			// Torn tail, use the complete records.
+		} catch (IOException e) {
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * Replaces the manifest with a snapshot of the specified entries.
+	 *
+	 * @param entries
+	 *            a map of sequence keys to file names
+	 */
+	void checkpoint(Map<String, String> entries) {
+		try {
+			close();
+			File tmp = new File(file.getPath() + ".tmp");
+			try (FileOutputStream tmpOut = new FileOutputStream(tmp)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmpOut));
+				for (Map.Entry<String, String> e : entries.entrySet()) {
+					out.writeByte(PUT);
+					out.writeUTF(e.getKey());
+					out.writeUTF(e.getValue());
+				}
+				out.flush();
+				tmpOut.getChannel().force(false);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			LockingObjectStore.syncDirectory(file.getAbsoluteFile().getParentFile());
+			records = entries.size();
+			journalOut = new FileOutputStream(file, true);
+			journal = new DataOutputStream(new BufferedOutputStream(journalOut));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void put(String sequenceKey, String fileName) {
+		try {
+			journal.writeByte(PUT);
+			journal.writeUTF(sequenceKey);
+			journal.writeUTF(fileName);
+			journal.flush();
+			records++;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void remove(String sequenceKey) {
+		try {
+			journal.writeByte(REMOVE);
+			journal.writeUTF(sequenceKey);
+			journal.flush();
+			records++;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Forces the journal to durable storage.
+	 */
+	void sync() {
+		try {
+			journalOut.getChannel().force(false);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Checks if the journal has outgrown the specified number of live entries.
+	 *
+	 * @param liveEntries
+	 *            the number of live entries
+	 * @return true if the manifest should be compacted
+	 */
+	boolean needsCompaction(int liveEntries) {
+		return records > 2 * liveEntries + 1024;
+	}
+
+	private void close() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+			journalOut = null;
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package de.kune.phoenix.server;
+
+import static de.kune.phoenix.server.MessagePredicates.matching;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Routes added messages to the clients waiting for them. Subscriptions are
+ * registered under their recipient id or, lacking one, their conversation id.
+ * An added message is only tested against the subscriptions of its
+ * recipients and conversation, so the cost of dispatching it grows with the
+ * number of its recipients rather than with the number of waiting clients.
+ * Subscriptions restricted to neither are tested against every message.
+ */
+public class SubscriptionHub {
+
+	/**
+	 * A pending subscription. Completed with the matching messages of the
+	 * first add containing any.
+	 */
+	private class Subscription {
+		private final String routingKey;
+		private final Map<String, Set<Subscription>> routes;
+		private final Predicate<Message> predicate;
+		private final CompletableFuture<Set<Message>> result = new CompletableFuture<>();
+
+		private Subscription(String recipientId, String conversationId, String lastSequenceKey) {
+			this.routingKey = recipientId != null ? recipientId : conversationId;
+			this.routes = recipientId != null ? byRecipient : conversationId != null ? byConversation : null;
+			this.predicate = matching(recipientId, conversationId, lastSequenceKey);
+		}
+
+		private void register() {
+			if (routes == null) {
+				unrouted.add(this);
+			} else {
+				routes.compute(routingKey, (k, subscriptions) -> {
+					Set<Subscription> registered = subscriptions == null ? ConcurrentHashMap.newKeySet()
+							: subscriptions;
+					registered.add(this);
+					return registered;
+				});
+			}
+		}
+
+		private void deregister() {
+			if (routes == null) {
+				unrouted.remove(this);
+			} else {
+				routes.computeIfPresent(routingKey, (k, subscriptions) -> {
+					subscriptions.remove(this);
+					return subscriptions.isEmpty() ? null : subscriptions;
+				});
+			}
+		}
+	}
+
+	private final ObjectStore<Message, String, String> messageStore;
+	private final Map<String, Set<Subscription>> byRecipient = new ConcurrentHashMap<>();
+	private final Map<String, Set<Subscription>> byConversation = new ConcurrentHashMap<>();
+	private final Set<Subscription> unrouted = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Creates a hub routing the messages added to the specified store.
+	 *
+	 * @param messageStore
+	 *            the message store
+	 */
+	public SubscriptionHub(ObjectStore<Message, String, String> messageStore) {
+		this.messageStore = messageStore;
+		messageStore.addListener(this::dispatch);
+	}
+
+	/**
+	 * Returns a future of matching messages after the last sequence key,
+	 * completed at once if the store already contains any or else with the
+	 * matching messages of the first add. As it may hold only some of them,
+	 * callers should query the store for the messages to deliver. Cancelling
+	 * the future ends the subscription.
+	 *
+	 * @param recipientId
+	 *            the recipient id, null to not restrict the messages
+	 * @param conversationId
+	 *            the conversation id, null to not restrict the messages
+	 * @param lastSequenceKey
+	 *            the exclusive lower sequence key bound, null for none
+	 * @return a future of a set of at least one matching message
+	 */
+	public CompletableFuture<Set<Message>> subscribe(String recipientId, String conversationId,
+			String lastSequenceKey) {
+		Subscription subscription = new Subscription(recipientId, conversationId, lastSequenceKey);
+		// Registers before querying the store, so no message added in between
+		// is missed.
+		subscription.register();
+		subscription.result.whenComplete((r, e) -> subscription.deregister());
+		Page<Message, String> present = messageStore.getAfter(lastSequenceKey,
+				matching(recipientId, conversationId, null), 1);
+		if (!present.getElements().isEmpty()) {
+			subscription.result.complete(new LinkedHashSet<>(present.getElements()));
+		}
+		return subscription.result;
+	}
+
+	/**
+	 * Returns the number of pending subscriptions.
+	 *
+	 * @return the number of subscriptions
+	 */
+	public int getSubscriptionCount() {
+		int result = unrouted.size();
+		for (Set<Subscription> subscriptions : byRecipient.values()) {
+			result += subscriptions.size();
+		}
+		for (Set<Subscription> subscriptions : byConversation.values()) {
+			result += subscriptions.size();
+		}
+		return result;
+	}
+
+	private void dispatch(Collection<Message> messages) {
+		Map<Subscription, Set<Message>> matches = new LinkedHashMap<>();
+		for (Message message : messages) {
+			if (message.getRecipientIds() != null) {
+				for (String recipientId : message.getRecipientIds()) {
+					if (recipientId != null) {
+						offer(byRecipient.get(recipientId), message, matches);
+					}
+				}
+			}
+			if (message.getConversationId() != null) {
+				offer(byConversation.get(message.getConversationId()), message, matches);
+			}
+			offer(unrouted, message, matches);
+		}
+		for (Map.Entry<Subscription, Set<Message>> match : matches.entrySet()) {
+			match.getKey().result.complete(match.getValue());
+		}
+	}
+
+	private static void offer(Set<Subscription> subscriptions, Message message,
+			Map<Subscription, Set<Message>> matches) {
+		if (subscriptions == null) {
+			return;
+		}
+		for (Subscription subscription : subscriptions) {
+			try {
+				if (subscription.predicate.test(message)) {
+					matches.computeIfAbsent(subscription, s -> new LinkedHashSet<>()).add(message);
+				}
+			} catch (RuntimeException e) {
+				subscription.result.completeExceptionally(e);
+			}
+		}
+	}
+
+}
@@ -1,13 +1,15 @@
 package de.kune.phoenix.server;
 
-import static java.lang.String.format;
+import static de.kune.phoenix.shared.Sequenced.NO_SEQUENCE;
 
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.TreeMap;
+import java.util.function.Predicate;
 
 import de.kune.phoenix.shared.Identifiable;
 import de.kune.phoenix.shared.Sequenced;
@@ -15,12 +17,14 @@ import de.kune.phoenix.shared.Sequenced;
 public class TransientInMemoryObjectStore<T extends Identifiable<I> & Sequenced<String>, I>
 		extends LockingObjectStore<T, I, String> {
 	private Map<I, T> objects = new LinkedHashMap<>();
+	private NavigableMap<Long, T> sequenceIndex = new TreeMap<>();
 
-	private static final AtomicLong sequence = new AtomicLong(0L);
+	private static final SequenceKeyGenerator defaultSequenceKeyGenerator = new CounterSequenceKeyGenerator();
 
 	@Override
 	protected void doClear() {
 		objects.clear();
+		sequenceIndex.clear();
 	}
 
 	@Override
@@ -31,6 +35,9 @@ public class TransientInMemoryObjectStore<T extends Identifiable<I> & Sequenced<
 	@Override
 	protected void doPut(T object) {
 		objects.put(object.getId(), object);
+		if (object.sequence() != NO_SEQUENCE) {
+			sequenceIndex.put(object.sequence(), object);
+		}
 	}
 
 	@Override
@@ -38,9 +45,41 @@ public class TransientInMemoryObjectStore<T extends Identifiable<I> & Sequenced<
 		return new LinkedHashSet<T>(objects.values());
 	}
 
+	@Override
+	protected T doGet(I id) {
+		return objects.get(id);
+	}
+
+	@Override
+	protected Page<T, String> doGetAfter(String sequenceKey, Predicate<T> predicate, int limit) {
+		NavigableMap<Long, T> range = sequenceKey == null ? sequenceIndex
+				: sequenceIndex.tailMap(sequenceOf(sequenceKey), false);
+		return page(range.values().iterator(), predicate, limit);
+	}
+
 	@Override
 	protected Iterator<T> doIterate() {
-		return objects.values().iterator();
+		Iterator<T> iterator = objects.values().iterator();
+		return new Iterator<T>() {
+			private T current;
+
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public T next() {
+				current = iterator.next();
+				return current;
+			}
+
+			@Override
+			public void remove() {
+				iterator.remove();
+				unindex(current);
+			}
+		};
 	}
 
 	@Override
@@ -50,13 +89,23 @@ public class TransientInMemoryObjectStore<T extends Identifiable<I> & Sequenced<
 
 	@Override
 	protected void doRemove(I id) {
-		objects.remove(id);
+		unindex(objects.remove(id));
+	}
 
+	private void unindex(T object) {
+		if (object != null && object.sequence() != NO_SEQUENCE) {
+			sequenceIndex.remove(object.sequence());
+		}
+	}
+
+	@Override
+	protected SequenceKeyGenerator getDefaultSequenceKeyGenerator() {
+		return defaultSequenceKeyGenerator;
 	}
 
 	@Override
-	protected String doGenerateSequenceKey() {
-		return format("%025d", sequence.getAndIncrement());
+	protected long doGetHighestSequence() {
+		return sequenceIndex.isEmpty() ? NO_SEQUENCE : sequenceIndex.lastKey();
 	}
 
-}
\ No newline at end of file
+}
@@ -82,6 +82,7 @@ public class Message implements Identifiable<String>, Sequenced<String> {
 	 * message chaining instead.
 	 */
 	private String sequenceKey;
+	private transient long sequence = NO_SEQUENCE;
 
 	public Message() {
 		this.id = Identifiable.generateStringId(32);
@@ -164,9 +165,15 @@ public class Message implements Identifiable<String>, Sequenced<String> {
 	}
 
 	public void setSequenceKey(String transmission) {
+		this.sequence = SequenceKeys.parse(transmission);
 		this.sequenceKey = transmission;
 	}
 
+	@Override
+	public long sequence() {
+		return sequence;
+	}
+
 	private Cipher getEncryptionCipher(Key key) {
 		if (key instanceof SecretKey) {
 			return SymmetricCipher.Factory.createCipher(SymmetricCipher.Algorithm.RIJNDAEL,
@@ -0,0 +1,87 @@
+package de.kune.phoenix.shared;
+
+import java.util.List;
+
+/**
+ * A frame of the message WebSocket protocol, exchanged as JSON text.
+ * <p>
+ * The client sends {@link Type#SUBSCRIBE} with a recipient id and the last
+ * received sequence key to have the messages after it pushed,
+ * {@link Type#POST} with messages and a request id to submit them, and
+ * {@link Type#ACK} with a sequence key to acknowledge the delivery of the
+ * messages up to it. The server pushes {@link Type#MESSAGES} and answers a
+ * post with {@link Type#POSTED} or {@link Type#ERROR} carrying its request
+ * id.
+ */
+public class MessageFrame {
+
+	public static enum Type {
+		SUBSCRIBE, POST, ACK, MESSAGES, POSTED, ERROR;
+	}
+
+	private Type type;
+	private String requestId;
+	private String recipientId;
+	private String sequenceKey;
+	private List<Message> messages;
+	private String error;
+
+	public static MessageFrame of(Type type) {
+		MessageFrame result = new MessageFrame();
+		result.setType(type);
+		return result;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	public String getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(String requestId) {
+		this.requestId = requestId;
+	}
+
+	public String getRecipientId() {
+		return recipientId;
+	}
+
+	public void setRecipientId(String recipientId) {
+		this.recipientId = recipientId;
+	}
+
+	/**
+	 * Returns the last received sequence key of a subscription or the
+	 * acknowledged sequence key.
+	 */
+	public String getSequenceKey() {
+		return sequenceKey;
+	}
+
+	public void setSequenceKey(String sequenceKey) {
+		this.sequenceKey = sequenceKey;
+	}
+
+	public List<Message> getMessages() {
+		return messages;
+	}
+
+	public void setMessages(List<Message> messages) {
+		this.messages = messages;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+}
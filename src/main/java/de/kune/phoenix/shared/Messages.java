@@ -27,7 +27,7 @@ public final class Messages {
 	public static final Comparator<Message> SEQUENCE_KEY_ORDER = new Comparator<Message>() {
 		@Override
 		public int compare(Message m, Message n) {
-			return m.getSequenceKey().compareTo(n.getSequenceKey());
+			return Long.compare(m.sequence(), n.sequence());
 		}
 	};
 
@@ -92,7 +92,11 @@ public final class Messages {
 	 * @return a message predicate
 	 */
 	public static Predicate<? super Message> wasReceivedAfter(String sequenceKey) {
-		return m -> sequenceKey == null || sequenceKey.compareTo(m.getSequenceKey()) < 0;
+		if (sequenceKey == null) {
+			return m -> true;
+		}
+		long sequence = SequenceKeys.parse(sequenceKey);
+		return m -> sequence < m.sequence();
 	}
 
 	/**
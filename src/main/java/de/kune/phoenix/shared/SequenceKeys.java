@@ -0,0 +1,69 @@
+package de.kune.phoenix.shared;
+
+/**
+ * Converts between sequence numbers and sequence keys, their zero-padded
+ * decimal form exchanged with clients and written to disk. Keys order like
+ * the numbers they stand for.
+ */
+public final class SequenceKeys {
+
+	private static final String PADDING = "0000000000000000000000000";
+
+	private SequenceKeys() {
+		// Do nothing.
+	}
+
+	/**
+	 * Returns the sequence key of the specified sequence number.
+	 * 
+	 * @param sequence
+	 *            the non-negative sequence number
+	 * @return the sequence key
+	 */
+	public static String format(long sequence) {
+		String digits = Long.toString(sequence);
+		return PADDING.substring(Math.min(digits.length(), PADDING.length())) + digits;
+	}
+
+	/**
+	 * Returns the sequence number of the specified sequence key.
+	 * 
+	 * @param sequenceKey
+	 *            the sequence key or null
+	 * @return the sequence number or {@link Sequenced#NO_SEQUENCE} if the
+	 *         key is null or empty
+	 * @throws NumberFormatException
+	 *             if the key is not a decimal number
+	 */
+	public static long parse(String sequenceKey) {
+		return sequenceKey == null || sequenceKey.isEmpty() ? Sequenced.NO_SEQUENCE : Long.parseLong(sequenceKey);
+	}
+
+	/**
+	 * Checks whether the specified sequence key can be parsed, e.g. one
+	 * received from a client.
+	 * 
+	 * @param sequenceKey
+	 *            the sequence key or null
+	 * @return true if the key is null, empty or the decimal digits of a
+	 *         sequence number
+	 */
+	public static boolean isValid(String sequenceKey) {
+		if (sequenceKey == null) {
+			return true;
+		}
+		for (int i = 0; i < sequenceKey.length(); i++) {
+			char c = sequenceKey.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		try {
+			parse(sequenceKey);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+}
@@ -2,6 +2,20 @@ package de.kune.phoenix.shared;
 
 public interface Sequenced<T extends Comparable<T>> {
 
+	/**
+	 * The sequence of elements without a sequence key.
+	 */
+	long NO_SEQUENCE = -1L;
+
 	T getSequenceKey();
-	
+
+	/**
+	 * Returns the sequence number the sequence key stands for, used to order
+	 * and compare elements without comparing keys. Not named as a property
+	 * accessor, so it is not part of the JSON form.
+	 * 
+	 * @return the sequence number or {@link #NO_SEQUENCE}
+	 */
+	long sequence();
+
 }
@@ -0,0 +1,338 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.MessageFrame;
+import de.kune.phoenix.shared.SequenceKeys;
+
+/**
+ * Runs a cluster of two nodes embedded in this JVM.
+ */
+public class ClusterRouterTest {
+
+	private static final GenericType<List<Message>> MESSAGE_LIST = new GenericType<List<Message>>() {
+	};
+
+	private static final long TIMEOUT = 10000L;
+
+	private static final String SECRET = "secret";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path config;
+	private Map<String, URI> nodes;
+	private ConsistentHashRing ring;
+	private Server a;
+	private Server b;
+	private Client client;
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private void writeConfig(Map<String, URI> nodes) throws IOException {
+		StringBuilder properties = new StringBuilder();
+		nodes.forEach((nodeId, uri) -> properties.append(ConsistentHashRing.NODE_PREFIX).append(nodeId).append('=')
+				.append(uri).append('\n'));
+		long modified = Files.exists(config) ? Files.getLastModifiedTime(config).toMillis() : 0L;
+		Files.write(config, properties.toString().getBytes(StandardCharsets.ISO_8859_1));
+		// Makes the change visible despite a coarse file time resolution.
+		Files.setLastModifiedTime(config,
+				FileTime.fromMillis(Math.max(modified + 2000L, System.currentTimeMillis())));
+		ring = new ConsistentHashRing(nodes, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+	}
+
+	private Server start(String nodeId, URI uri) throws Exception {
+		Map<String, String> properties = new HashMap<>();
+		properties.put("cluster.config", config.toString());
+		properties.put("cluster.nodeid", nodeId);
+		properties.put("cluster.secret", SECRET);
+		properties.put("cluster.reload.interval", "50");
+		properties.put("sequence.generator", "hlc");
+		properties.put("sequence.nodeid", Integer.toString(new ArrayList<>(nodes.keySet()).indexOf(nodeId)));
+		return EmbeddedServer.start(uri.getPort(), properties);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		config = folder.getRoot().toPath().resolve("ring.properties");
+		nodes = new LinkedHashMap<>();
+		nodes.put("a", URI.create("http://localhost:" + freePort() + "/api"));
+		nodes.put("b", URI.create("http://localhost:" + freePort() + "/api"));
+		writeConfig(nodes);
+		a = start("a", nodes.get("a"));
+		b = start("b", nodes.get("b"));
+		client = ClientBuilder.newClient().register(JacksonFeature.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		b.stop();
+		a.stop();
+	}
+
+	private String recipientOf(String nodeId) {
+		return recipientOf(nodeId, "recipient-");
+	}
+
+	private String recipientOf(String nodeId, String prefix) {
+		for (int i = 0;; i++) {
+			if (ring.ownerOf(prefix + i).equals(nodeId)) {
+				return prefix + i;
+			}
+		}
+	}
+
+	private WebTarget messages(Server server) {
+		return client.target(EmbeddedServer.uri(server)).path("message");
+	}
+
+	private static Message message(String id, String... recipientIds) {
+		Message result = new Message();
+		result.setId(id);
+		result.setConversationId("c");
+		result.setRecipientIds(recipientIds);
+		return result;
+	}
+
+	private void post(Server server, Message... messages) {
+		assertThat(messages(server).request().post(Entity.entity(asList(messages), MediaType.APPLICATION_JSON))
+				.getStatus()).isEqualTo(200);
+	}
+
+	/**
+	 * Returns the messages stored by the node itself.
+	 */
+	private List<Message> stored(Server server) {
+		return routed(messages(server).request(MediaType.APPLICATION_JSON), SECRET).get(MESSAGE_LIST);
+	}
+
+	private static Invocation.Builder routed(Invocation.Builder request, String secret) {
+		return request.header(ClusterRouter.ROUTED_HEADER, "a").header(ClusterRouter.SECRET_HEADER, secret);
+	}
+
+	private List<Message> get(Server server, String recipientId) {
+		return messages(server).queryParam("recipient-id", recipientId).request(MediaType.APPLICATION_JSON)
+				.get(MESSAGE_LIST);
+	}
+
+	private static DeliveryCursors deliveryCursors(Server server) {
+		return WebApplicationContextUtils
+				.getWebApplicationContext(((ServletContextHandler) server.getHandler()).getServletContext())
+				.getBean(DeliveryCursors.class);
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.getAsBoolean()) {
+			assertThat(System.currentTimeMillis()).as("condition met in time").isLessThan(deadline);
+			Thread.sleep(20L);
+		}
+	}
+
+	@Test
+	public void should_store_messages_with_owners_of_recipients() {
+		String atA = recipientOf("a");
+		String atB = recipientOf("b");
+		post(a, message("1", atA), message("2", atB), message("3", atA, atB));
+		assertThat(stored(a)).extracting(Message::getId).containsExactly("1", "3");
+		assertThat(stored(b)).extracting(Message::getId).containsExactly("2", "3");
+	}
+
+	@Test
+	public void should_proxy_requests_to_owner() throws Exception {
+		String atB = recipientOf("b");
+		Future<List<Message>> poll = messages(a).queryParam("wait", true).queryParam("recipient-id", atB)
+				.request(MediaType.APPLICATION_JSON).async().get(MESSAGE_LIST);
+		post(b, message("1", atB));
+		assertThat(poll.get()).extracting(Message::getId).containsExactly("1");
+		assertThat(get(a, atB)).extracting(Message::getId).containsExactly("1");
+	}
+
+	@Test
+	public void should_reject_event_streams_of_recipients_owned_by_other_nodes() throws Exception {
+		HttpURLConnection connection = (HttpURLConnection) new URL(
+				EmbeddedServer.eventSourceUri(a) + "/?recipientId=" + recipientOf("b")).openConnection();
+		try {
+			assertThat(connection.getResponseCode()).isEqualTo(421);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Test
+	public void should_reject_subscriptions_of_recipients_owned_by_other_nodes() throws Exception {
+		// Endpoints are injected from the context of the last node started in
+		// this JVM.
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Session session = ContainerProvider.getWebSocketContainer().connectToServer(new Endpoint() {
+			@Override
+			public void onOpen(Session session, EndpointConfig config) {
+				session.addMessageHandler(new MessageHandler.Whole<String>() {
+					@Override
+					public void onMessage(String text) {
+						received.add(text);
+					}
+				});
+			}
+		}, ClientEndpointConfig.Builder.create().build(), EmbeddedServer.webSocketUri(b));
+		try {
+			MessageFrame subscribe = MessageFrame.of(MessageFrame.Type.SUBSCRIBE);
+			subscribe.setRecipientId(recipientOf("a"));
+			session.getBasicRemote().sendText(new ObjectMapper().writeValueAsString(subscribe));
+			String error = received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertThat(error).contains("ERROR").contains("is owned by node [a]");
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void should_move_undelivered_messages_of_removed_node() throws Exception {
+		String atA = recipientOf("a");
+		String atB = recipientOf("b");
+		String delivered = recipientOf("b", "delivered-");
+		post(a, message("1", atA), message("2", atB), message("3", delivered));
+		String sequenceKey = get(b, delivered).get(0).getSequenceKey();
+		assertThat(messages(b).path("ack").queryParam("recipient-id", delivered)
+				.queryParam("sequence-key", sequenceKey).request().post(null).getStatus()).isEqualTo(200);
+		nodes.remove("b");
+		writeConfig(nodes);
+		await(() -> stored(b).isEmpty());
+		assertThat(stored(a)).extracting(Message::getId).containsExactly("1", "2");
+		assertThat(get(b, atB)).extracting(Message::getId).containsExactly("2");
+	}
+
+	@Test
+	public void should_move_delivery_cursors_with_messages() throws Exception {
+		String atB = recipientOf("b");
+		post(b, message("1", atB), message("2", atB));
+		String sequenceKey = get(b, atB).get(0).getSequenceKey();
+		assertThat(messages(b).path("ack").queryParam("recipient-id", atB).queryParam("sequence-key", sequenceKey)
+				.request().post(null).getStatus()).isEqualTo(200);
+		nodes.remove("b");
+		writeConfig(nodes);
+		await(() -> stored(b).isEmpty());
+		assertThat(deliveryCursors(a).get(atB)).isEqualTo(sequenceKey);
+		List<Message> moved = messages(a).queryParam("recipient-id", atB).queryParam("last-sequence-key", sequenceKey)
+				.request(MediaType.APPLICATION_JSON).get(MESSAGE_LIST);
+		assertThat(moved).extracting(Message::getId).containsExactly("2");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void should_require_hybrid_logical_clock() {
+		new ApplicationConfiguration().clusterRouter(new TransientInMemoryObjectStore<>(),
+				new DeliveryCursors(() -> -1L), new CounterSequenceKeyGenerator(), config.toString(), "a", SECRET,
+				TIMEOUT, TIMEOUT, 0L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void should_require_secret() {
+		new ApplicationConfiguration().clusterRouter(new TransientInMemoryObjectStore<>(),
+				new DeliveryCursors(() -> -1L), new HybridLogicalClock(0), config.toString(), "a", "", TIMEOUT,
+				TIMEOUT, 0L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void should_require_recipient_index() {
+		new ClusterRouter(new TransientInMemoryObjectStore<>(), new DeliveryCursors(() -> -1L), config, "a", SECRET,
+				new HybridLogicalClock(0), TIMEOUT, TIMEOUT);
+	}
+
+	@Test
+	public void should_forbid_routed_requests_without_secret() {
+		String atA = recipientOf("a");
+		Entity<List<Message>> entity = Entity.entity(asList(message("1", atA)), MediaType.APPLICATION_JSON);
+		assertThat(messages(a).request().header(ClusterRouter.ROUTED_HEADER, "b").post(entity).getStatus())
+				.isEqualTo(403);
+		assertThat(routed(messages(a).request(), "guess").post(entity).getStatus()).isEqualTo(403);
+		assertThat(routed(messages(a).queryParam("recipient-id", recipientOf("b")).request(), "guess").get()
+				.getStatus()).isEqualTo(403);
+		assertThat(messages(a).path("ack").queryParam("recipient-id", atA).queryParam("sequence-key", "0").request()
+				.header(ClusterRouter.ROUTED_HEADER, "b").post(null).getStatus()).isEqualTo(403);
+		assertThat(stored(a)).isEmpty();
+	}
+
+	@Test
+	public void should_reject_routed_messages_too_far_ahead_of_clock() {
+		String atA = recipientOf("a");
+		Message ahead = message("1", atA);
+		ahead.setSequenceKey(SequenceKeys.format(
+				(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1) - HybridLogicalClock.EPOCH) << 22));
+		assertThat(routed(messages(a).request(), SECRET).post(Entity.entity(asList(ahead),
+				MediaType.APPLICATION_JSON)).getStatus()).isEqualTo(400);
+		assertThat(stored(a)).isEmpty();
+		post(a, message("2", atA));
+		assertThat(HybridLogicalClock.timeOf(SequenceKeys.parse(stored(a).get(0).getSequenceKey())))
+				.isLessThan(System.currentTimeMillis() + TIMEOUT);
+	}
+
+	@Test
+	public void should_retry_moving_messages_until_new_owner_is_reachable() throws Exception {
+		String atB = recipientOf("b");
+		post(b, message("1", atB));
+		a.stop();
+		nodes.remove("b");
+		writeConfig(nodes);
+		// Routes to the new owner at once, keeping the messages to move.
+		await(() -> messages(b).queryParam("recipient-id", atB).request(MediaType.APPLICATION_JSON).get()
+				.getStatus() == 503);
+		assertThat(stored(b)).extracting(Message::getId).containsExactly("1");
+		a = start("a", nodes.get("a"));
+		await(() -> stored(b).isEmpty());
+		assertThat(stored(a)).extracting(Message::getId).containsExactly("1");
+	}
+
+}
@@ -0,0 +1,67 @@
+package de.kune.phoenix.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Random;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Compares the encode and decode throughput and the encoded size of a message
+ * for the JSON and the binary codec. Run with
+ * <code>[messages] [content bytes]</code>.
+ */
+public class CodecThroughput {
+
+	public static void main(String[] args) throws IOException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int contentBytes = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+		Message message = message(contentBytes);
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up.
+			measure("json", new JsonObjectCodec(), message, messages);
+			measure("binary", new BinaryObjectCodec(), message, messages);
+		}
+	}
+
+	private static Message message(int contentBytes) {
+		Random random = new Random(42L);
+		Message result = new Message();
+		result.setId("e0b5a4f2-6f5d-4c1e-9d1c-5f3b0e7a2c11");
+		result.setSenderId("3f1d2c4b-8a7e-4d6f-b5c9-0e1a2b3c4d5e");
+		result.setRecipientIds(new String[] { "7a6b5c4d-3e2f-4a1b-9c8d-7e6f5a4b3c2d" });
+		result.setConversationId("c1d2e3f4-a5b6-4c7d-8e9f-0a1b2c3d4e5f");
+		result.setKeyId("k9j8h7g6-f5e4-4d3c-b2a1-0z9y8x7w6v5u");
+		result.setMessageType(Message.Type.PLAIN_TEXT);
+		byte[] content = new byte[contentBytes];
+		random.nextBytes(content);
+		result.setContent(content);
+		result.setTimestamp(new Date());
+		byte[] signature = new byte[256];
+		random.nextBytes(signature);
+		result.setSignature(signature);
+		result.setSequenceKey(String.format("%025d", 42L));
+		return result;
+	}
+
+	private static void measure(String name, ObjectCodec codec, Message message, int messages) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			out.reset();
+			codec.encode(message, out);
+		}
+		double encodeSeconds = (System.nanoTime() - start) / 1e9;
+		byte[] encoded = out.toByteArray();
+		start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			codec.decode(new ByteArrayInputStream(encoded), Message.class);
+		}
+		double decodeSeconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-8s %6d bytes/message, %10.1f encodes/s, %10.1f decodes/s", name,
+				encoded.length, messages / encodeSeconds, messages / decodeSeconds));
+	}
+
+}
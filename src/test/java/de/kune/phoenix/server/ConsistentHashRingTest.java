@@ -0,0 +1,93 @@
+package de.kune.phoenix.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConsistentHashRingTest {
+
+	private static final int KEYS = 10000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static ConsistentHashRing ring(String... nodeIds) {
+		Map<String, URI> nodes = new LinkedHashMap<>();
+		for (String nodeId : nodeIds) {
+			nodes.put(nodeId, URI.create("http://" + nodeId + "/api"));
+		}
+		return new ConsistentHashRing(nodes, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+	}
+
+	private static Map<String, String> owners(ConsistentHashRing ring) {
+		Map<String, String> result = new HashMap<>();
+		for (int i = 0; i < KEYS; i++) {
+			result.put("recipient-" + i, ring.ownerOf("recipient-" + i));
+		}
+		return result;
+	}
+
+	@Test
+	public void should_not_depend_on_node_order() {
+		assertThat(owners(ring("a", "b", "c"))).isEqualTo(owners(ring("c", "a", "b")));
+	}
+
+	@Test
+	public void should_spread_keys_evenly() {
+		Map<String, Integer> counts = new HashMap<>();
+		owners(ring("a", "b", "c", "d")).values().forEach(owner -> counts.merge(owner, 1, Integer::sum));
+		assertThat(counts).hasSize(4);
+		for (int count : counts.values()) {
+			assertThat(count).isBetween(KEYS / 4 * 7 / 10, KEYS / 4 * 13 / 10);
+		}
+	}
+
+	@Test
+	public void should_only_move_keys_to_added_node() {
+		Map<String, String> before = owners(ring("a", "b", "c"));
+		Map<String, String> after = owners(ring("a", "b", "c", "d"));
+		int moved = 0;
+		for (Map.Entry<String, String> owner : after.entrySet()) {
+			if (!owner.getValue().equals(before.get(owner.getKey()))) {
+				assertThat(owner.getValue()).isEqualTo("d");
+				moved++;
+			}
+		}
+		assertThat(moved).isBetween(KEYS / 4 * 7 / 10, KEYS / 4 * 13 / 10);
+	}
+
+	@Test
+	public void should_only_move_keys_of_removed_node() {
+		Map<String, String> before = owners(ring("a", "b", "c"));
+		Map<String, String> after = owners(ring("a", "c"));
+		for (Map.Entry<String, String> owner : before.entrySet()) {
+			if (!owner.getValue().equals("b")) {
+				assertThat(after.get(owner.getKey())).isEqualTo(owner.getValue());
+			}
+		}
+	}
+
+	@Test
+	public void should_load_nodes_from_properties() throws IOException {
+		Path file = folder.newFile("ring.properties").toPath();
+		Files.write(file, ("node.a=http://a/api\nnode.b=http://b/api\nvirtualnodes=16\n")
+				.getBytes(StandardCharsets.ISO_8859_1));
+		ConsistentHashRing ring = ConsistentHashRing.load(file);
+		assertThat(ring.getNodeIds()).containsOnly("a", "b");
+		assertThat(ring.getUri("b")).isEqualTo(URI.create("http://b/api"));
+		assertThat(ring.getVirtualNodes()).isEqualTo(16);
+		assertThat(ring.getNodeIds()).contains(ring.ownerOf("recipient"));
+	}
+
+}
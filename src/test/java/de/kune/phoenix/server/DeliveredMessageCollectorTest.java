@@ -0,0 +1,78 @@
+package de.kune.phoenix.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.kune.phoenix.shared.Message;
+
+public class DeliveredMessageCollectorTest {
+
+	private ObjectStore<Message, String, String> store;
+	private DeliveryCursors cursors;
+	private DeliveredMessageCollector collector;
+
+	@Before
+	public void setUp() {
+		SequenceKeyGenerator generator = new CounterSequenceKeyGenerator();
+		TransientInMemoryObjectStore<Message, String> store = new TransientInMemoryObjectStore<>();
+		store.setSequenceKeyGenerator(generator);
+		this.store = store;
+		cursors = new DeliveryCursors(generator::highest);
+		collector = new DeliveredMessageCollector(store, cursors);
+	}
+
+	private Message add(String id, String... recipientIds) {
+		Message result = new Message();
+		result.setId(id);
+		result.setRecipientIds(recipientIds);
+		result.setSequenceKey(store.generateSequenceKey());
+		store.add(result);
+		return result;
+	}
+
+	@Test
+	public void should_only_advance_cursors() {
+		add("first", "a");
+		add("second", "a");
+		add("third", "a");
+		cursors.advance("a", "0000000000000000000000002");
+		cursors.advance("a", "0000000000000000000000001");
+		assertThat(cursors.get("a")).isEqualTo("0000000000000000000000002");
+		assertThat(cursors.get("b")).isNull();
+	}
+
+	@Test
+	public void should_reject_cursors_beyond_the_highest_sequence() {
+		Message first = add("first", "a");
+		try {
+			cursors.advance("a", "0000000000000000000000001");
+			fail("advanced beyond the highest sequence");
+		} catch (IllegalArgumentException e) {
+			assertThat(e).hasMessageContaining("has not been issued");
+		}
+		assertThat(cursors.get("a")).isNull();
+		cursors.advance("a", first.getSequenceKey());
+		assertThat(cursors.get("a")).isEqualTo(first.getSequenceKey());
+	}
+
+	@Test
+	public void should_remove_messages_delivered_to_all_recipients() {
+		Message first = add("first", "a", "b");
+		Message second = add("second", "a");
+		Message broadcast = add("broadcast", (String[]) null);
+		Message third = add("third", "a");
+		cursors.advance("a", second.getSequenceKey());
+		assertThat(collector.collect()).isEqualTo(1);
+		assertThat(store.get()).containsOnly(first, broadcast, third);
+		cursors.advance("b", third.getSequenceKey());
+		assertThat(collector.collect()).isEqualTo(1);
+		assertThat(store.get()).containsOnly(broadcast, third);
+		cursors.advance("a", third.getSequenceKey());
+		assertThat(collector.collect()).isEqualTo(1);
+		assertThat(store.get()).containsOnly(broadcast);
+	}
+
+}
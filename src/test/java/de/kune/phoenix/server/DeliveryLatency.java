@@ -0,0 +1,308 @@
+package de.kune.phoenix.server;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.jetty.server.Server;
+import org.glassfish.jersey.filter.LoggingFilter;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Measures the time from posting a message until a waiting recipient receives
+ * it, on a node embedded in this JVM. Recipients wait by long polling or on
+ * the event source, senders post messages to conversations of a fixed number
+ * of recipients. Run with
+ * <code>[recipients] [senders] [fan-out] [seconds] [messages/s per sender] [poll|sse]</code>.
+ * <p>
+ * Each message carries the time it was due to be sent. Senders post at a
+ * fixed rate and a late post is measured from when it was due, so a stalled
+ * server is not hidden by senders waiting for it. A rate of 0 posts as fast
+ * as responses arrive. Messages sent during the first
+ * {@value #WARM_UP_SECONDS} seconds are not measured, and senders falling
+ * behind during them skip ahead instead of catching up.
+ * <p>
+ * Delivery latency, the response time of posts and deliveries per second are
+ * written as HdrHistogram percentile distributions.
+ */
+public class DeliveryLatency {
+
+	private static final MediaType BINARY_TYPE = MediaType.valueOf(BinaryMessageProvider.MEDIA_TYPE);
+
+	private static final GenericType<List<Message>> MESSAGE_LIST = new GenericType<List<Message>>() {
+	};
+
+	private static final long WARM_UP_SECONDS = 5L;
+
+	private static final long DRAIN_SECONDS = 10L;
+
+	private static final double MICROS_PER_MILLI = 1000.0;
+
+	/**
+	 * The logger of the request logging filter of the REST API, silenced for
+	 * the measurement.
+	 */
+	private static final Logger REQUEST_LOGGER = Logger.getLogger(LoggingFilter.class.getName());
+
+	private final int recipients;
+	private final int senders;
+	private final int fanOut;
+	private final int rate;
+	private final boolean eventSource;
+	private final Histogram deliveryLatency = new Histogram();
+	private final Histogram postLatency = new Histogram();
+	private final Histogram deliveryThroughput = new Histogram();
+	private final AtomicLong posted = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong measuredDeliveries = new AtomicLong();
+	private final ObjectMapper mapper = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	private Server server;
+	private Client client;
+	private volatile boolean running = true;
+	private long measureFrom;
+	private long measureUntil;
+
+	private DeliveryLatency(int recipients, int senders, int fanOut, int rate, boolean eventSource) {
+		if (fanOut < 1 || fanOut > recipients) {
+			throw new IllegalArgumentException("fan-out must be between 1 and the number of recipients");
+		}
+		this.recipients = recipients;
+		this.senders = senders;
+		this.fanOut = fanOut;
+		this.rate = rate;
+		this.eventSource = eventSource;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int senders = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int fanOut = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+		int rate = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		boolean eventSource = args.length > 5 && "sse".equals(args[5]);
+		REQUEST_LOGGER.setLevel(Level.WARNING);
+		new DeliveryLatency(recipients, senders, fanOut, rate, eventSource).run(seconds);
+	}
+
+	private void run(int seconds) throws Exception {
+		server = EmbeddedServer.start(0, new HashMap<>());
+		client = ClientBuilder.newClient().register(BinaryMessageProvider.class);
+		try {
+			measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(WARM_UP_SECONDS);
+			measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+			for (int i = 0; i < recipients; i++) {
+				String recipientId = "recipient-" + i;
+				start(recipientId, eventSource ? () -> listen(recipientId) : () -> poll(recipientId));
+			}
+			ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+			AtomicLong lastDelivered = new AtomicLong();
+			sampler.scheduleAtFixedRate(() -> {
+				long count = delivered.get();
+				long previous = lastDelivered.getAndSet(count);
+				long now = System.nanoTime();
+				if (now > measureFrom + TimeUnit.SECONDS.toNanos(1) && now <= measureUntil) {
+					deliveryThroughput.record(count - previous);
+				}
+			}, WARM_UP_SECONDS, 1, TimeUnit.SECONDS);
+			Thread[] threads = new Thread[senders];
+			for (int i = 0; i < senders; i++) {
+				int sender = i;
+				threads[i] = start("sender-" + i, () -> send(sender));
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			sampler.shutdownNow();
+			long expected = posted.get() * fanOut;
+			long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+			while (measuredDeliveries.get() < expected && System.nanoTime() < drainUntil) {
+				Thread.sleep(10L);
+			}
+			report(seconds, expected);
+		} finally {
+			running = false;
+			client.close();
+			server.stop();
+		}
+	}
+
+	private static Thread start(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Posts messages to random conversations until the end of the measurement.
+	 * Conversation k consists of the recipients k to k + fan-out - 1.
+	 */
+	private void send(int sender) {
+		WebTarget target = client.target(EmbeddedServer.uri(server)).path("message");
+		long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0L;
+		long due = System.nanoTime() + (interval > 0 ? ThreadLocalRandom.current().nextLong(interval) : 0L);
+		for (int n = 0; due < measureUntil; n++) {
+			if (interval > 0) {
+				for (long now = System.nanoTime(); now < due; now = System.nanoTime()) {
+					LockSupport.parkNanos(due - now);
+				}
+				if (due < measureFrom) {
+					// Senders fall behind while the JVM warms up, do not carry
+					// that over into the measurement.
+					due = Math.max(due, System.nanoTime());
+				}
+			} else {
+				due = System.nanoTime();
+			}
+			int conversation = ThreadLocalRandom.current().nextInt(recipients);
+			String[] recipientIds = new String[fanOut];
+			for (int i = 0; i < fanOut; i++) {
+				recipientIds[i] = "recipient-" + (conversation + i) % recipients;
+			}
+			Message message = new Message();
+			message.setId("sender-" + sender + "-" + n);
+			message.setSenderId("sender-" + sender);
+			message.setConversationId("conversation-" + conversation);
+			message.setRecipientIds(recipientIds);
+			message.setMessageType(Message.Type.PLAIN_TEXT);
+			message.setContent(ByteBuffer.allocate(Long.BYTES).putLong(due).array());
+			long start = System.nanoTime();
+			Response response = target.request().post(BinaryMessageProvider.entity(Collections.singletonList(message)));
+			response.close();
+			long end = System.nanoTime();
+			if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+				throw new IllegalStateException(format("post responded with status [%d]", response.getStatus()));
+			}
+			if (isMeasured(due)) {
+				postLatency.record(TimeUnit.NANOSECONDS.toMicros(end - start));
+				posted.incrementAndGet();
+			}
+			due += interval;
+		}
+	}
+
+	private boolean isMeasured(long sent) {
+		return sent >= measureFrom && sent < measureUntil;
+	}
+
+	private void deliver(List<Message> messages) {
+		long now = System.nanoTime();
+		delivered.addAndGet(messages.size());
+		for (Message message : messages) {
+			long sent = ByteBuffer.wrap(message.getContent()).getLong();
+			if (isMeasured(sent)) {
+				deliveryLatency.record(TimeUnit.NANOSECONDS.toMicros(now - sent));
+				measuredDeliveries.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Long polls the messages of a recipient, passing the last received
+	 * sequence key.
+	 */
+	private void poll(String recipientId) {
+		WebTarget target = client.target(EmbeddedServer.uri(server)).path("message").queryParam("wait", true)
+				.queryParam("recipient-id", recipientId);
+		String lastSequenceKey = null;
+		while (running) {
+			try {
+				List<Message> messages = target.queryParam("last-sequence-key", lastSequenceKey)
+						.request(BINARY_TYPE).get(MESSAGE_LIST);
+				deliver(messages);
+				if (!messages.isEmpty()) {
+					lastSequenceKey = messages.get(messages.size() - 1).getSequenceKey();
+				}
+			} catch (ProcessingException e) {
+				if (running) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the event stream of a recipient.
+	 */
+	private void listen(String recipientId) {
+		try {
+			URL url = new URL(EmbeddedServer.eventSourceUri(server) + "/?recipientId="
+					+ URLEncoder.encode(recipientId, "UTF-8"));
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestProperty("Accept", "text/event-stream");
+			try (BufferedReader in = new BufferedReader(
+					new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+				StringBuilder data = new StringBuilder();
+				for (String line = in.readLine(); line != null && running; line = in.readLine()) {
+					if (line.startsWith("data: ")) {
+						data.append(line, "data: ".length(), line.length()).append('\n');
+					} else if (line.isEmpty() && data.length() > 0) {
+						deliver(mapper.readValue(data.toString(), new TypeReference<List<Message>>() {
+						}));
+						data.setLength(0);
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private void report(int seconds, long expected) {
+		System.out.println(format("%d recipients on %s, %d senders at %s, fan-out %d, %ds", recipients,
+				eventSource ? "event source" : "long poll", senders,
+				rate > 0 ? rate + " messages/s" : "full speed", fanOut, seconds));
+		System.out.println(format("posted %d messages, %.1f messages/s", posted.get(), posted.get() / (double) seconds));
+		System.out.println(format("delivered %d of %d, %.1f deliveries/s", measuredDeliveries.get(), expected,
+				measuredDeliveries.get() / (double) seconds));
+		System.out.println(format("delivery latency p50 %.3fms, p99 %.3fms, p99.9 %.3fms, max %.3fms",
+				deliveryLatency.getValueAtPercentile(50.0) / MICROS_PER_MILLI,
+				deliveryLatency.getValueAtPercentile(99.0) / MICROS_PER_MILLI,
+				deliveryLatency.getValueAtPercentile(99.9) / MICROS_PER_MILLI,
+				deliveryLatency.getMax() / MICROS_PER_MILLI));
+		System.out.println();
+		System.out.println("Delivery latency in milliseconds");
+		deliveryLatency.writePercentileDistribution(System.out, MICROS_PER_MILLI);
+		System.out.println();
+		System.out.println("Post latency in milliseconds");
+		postLatency.writePercentileDistribution(System.out, MICROS_PER_MILLI);
+		System.out.println();
+		System.out.println("Deliveries per second");
+		deliveryThroughput.writePercentileDistribution(System.out, 1.0);
+	}
+
+}
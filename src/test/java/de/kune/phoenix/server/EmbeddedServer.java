@@ -0,0 +1,89 @@
+package de.kune.phoenix.server;
+
+import java.net.URI;
+import java.util.Map;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.websocket.jsr356.server.deploy.WebSocketServerContainerInitializer;
+import org.glassfish.jersey.servlet.ServletContainer;
+import org.springframework.web.context.ContextLoaderListener;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+
+/**
+ * Runs the REST API, the event source and the WebSocket endpoint of a node in
+ * an embedded Jetty server, configured like the web application with a
+ * transient message store. Several nodes may run in one JVM.
+ */
+public class EmbeddedServer {
+
+	private EmbeddedServer() {
+	}
+
+	/**
+	 * Starts a node.
+	 *
+	 * @param port
+	 *            the port, 0 for any free port
+	 * @param properties
+	 *            the configuration properties of the node
+	 * @return the started server
+	 */
+	public static Server start(int port, Map<String, String> properties) throws Exception {
+		Server server = new Server(port);
+		ServletContextHandler context = new ServletContextHandler();
+		context.setContextPath("/");
+		context.setInitParameter("contextClass", AnnotationConfigWebApplicationContext.class.getName());
+		context.setInitParameter("contextConfigLocation", ApplicationConfiguration.class.getName());
+		context.setInitParameter("messagestore", "transient");
+		properties.forEach(context::setInitParameter);
+		context.addEventListener(new ContextLoaderListener());
+		ServletHolder rest = context.addServlet(ServletContainer.class, "/api/*");
+		rest.setInitParameter("javax.ws.rs.Application", RestApplication.class.getName());
+		rest.setAsyncSupported(true);
+		ServletHolder eventSource = context.addServlet(EventSourceServlet.class, "/es/*");
+		eventSource.setInitParameter("dispatcher-threads", "2");
+		eventSource.setAsyncSupported(true);
+		server.setHandler(context);
+		WebSocketServerContainerInitializer.configureContext(context).addEndpoint(MessageSocket.class);
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Returns the URI of the event source of a started node.
+	 *
+	 * @param server
+	 *            the server
+	 * @return the URI
+	 */
+	public static URI eventSourceUri(Server server) {
+		return URI.create("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/es");
+	}
+
+	/**
+	 * Returns the URI of the WebSocket endpoint of a started node.
+	 *
+	 * @param server
+	 *            the server
+	 * @return the URI
+	 */
+	public static URI webSocketUri(Server server) {
+		return URI.create(
+				"ws://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/ws/message");
+	}
+
+	/**
+	 * Returns the URI of the REST API of a started node.
+	 *
+	 * @param server
+	 *            the server
+	 * @return the URI
+	 */
+	public static URI uri(Server server) {
+		return URI.create("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/api");
+	}
+
+}
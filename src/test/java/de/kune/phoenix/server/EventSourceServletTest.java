@@ -0,0 +1,150 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+
+import org.eclipse.jetty.server.Server;
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Streams the messages of a single node embedded in this JVM as server-sent
+ * events.
+ */
+public class EventSourceServletTest {
+
+	private static final int TIMEOUT = 10000;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private Server server;
+	private Client client;
+
+	@Before
+	public void setUp() throws Exception {
+		server = EmbeddedServer.start(0, Collections.emptyMap());
+		client = ClientBuilder.newClient().register(JacksonFeature.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		server.stop();
+	}
+
+	private void post(String... ids) {
+		Message[] messages = new Message[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			messages[i] = new Message();
+			messages[i].setId(ids[i]);
+			messages[i].setConversationId("c");
+			messages[i].setRecipientIds(new String[] { "r" });
+		}
+		assertThat(client.target(EmbeddedServer.uri(server)).path("message").request()
+				.post(Entity.json(asList(messages))).getStatus()).isEqualTo(200);
+	}
+
+	private HttpURLConnection open(String lastEventId) throws IOException {
+		HttpURLConnection result = (HttpURLConnection) new URL(EmbeddedServer.eventSourceUri(server) + "/?recipientId=r")
+				.openConnection();
+		result.setRequestProperty("Accept", "text/event-stream");
+		if (lastEventId != null) {
+			result.setRequestProperty("Last-Event-ID", lastEventId);
+		}
+		result.setReadTimeout(TIMEOUT);
+		return result;
+	}
+
+	/**
+	 * Reads the next event, skipping comments.
+	 *
+	 * @return the id of the event followed by its messages
+	 */
+	private static Object[] readEvent(BufferedReader in) throws IOException {
+		String id = null;
+		StringBuilder data = new StringBuilder();
+		for (String line = in.readLine(); line != null; line = in.readLine()) {
+			if (line.startsWith("id: ")) {
+				id = line.substring("id: ".length());
+			} else if (line.startsWith("data: ")) {
+				data.append(line, "data: ".length(), line.length()).append('\n');
+			} else if (line.isEmpty() && data.length() > 0) {
+				return new Object[] { id, mapper.readValue(data.toString(), new TypeReference<List<Message>>() {
+				}) };
+			}
+		}
+		throw new IOException("stream closed");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Message> messages(Object[] event) {
+		return (List<Message>) event[1];
+	}
+
+	@Test
+	public void should_stream_messages_and_resume_after_last_event_id() throws Exception {
+		post("1", "2");
+		String lastEventId;
+		HttpURLConnection connection = open(null);
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+			assertThat(connection.getContentType()).startsWith("text/event-stream");
+			Object[] event = readEvent(in);
+			assertThat(messages(event)).extracting(Message::getId).containsExactly("1", "2");
+			lastEventId = (String) event[0];
+			assertThat(lastEventId).isEqualTo(messages(event).get(1).getSequenceKey());
+			post("3");
+			assertThat(messages(readEvent(in))).extracting(Message::getId).containsExactly("3");
+		} finally {
+			connection.disconnect();
+		}
+		connection = open(lastEventId);
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+			assertThat(messages(readEvent(in))).extracting(Message::getId).containsExactly("3");
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Test
+	public void should_reject_malformed_last_event_id() throws Exception {
+		HttpURLConnection connection = open("x");
+		try {
+			assertThat(connection.getResponseCode()).isEqualTo(400);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Test
+	public void should_reject_last_event_id_not_issued() throws Exception {
+		HttpURLConnection connection = open("0000000000000000000000001");
+		try {
+			assertThat(connection.getResponseCode()).isEqualTo(400);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+}
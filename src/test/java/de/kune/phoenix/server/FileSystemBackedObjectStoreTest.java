@@ -0,0 +1,66 @@
+package de.kune.phoenix.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.kune.phoenix.server.ObjectStoreTest.TestElement;
+import de.kune.phoenix.shared.SequenceKeys;
+
+public class FileSystemBackedObjectStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static TestElement element(long sequence) {
+		TestElement result = new TestElement();
+		result.setId(SequenceKeys.format(sequence));
+		return result;
+	}
+
+	private String fileNameOf(TestElement element) {
+		String[] names = folder.getRoot().list((dir, name) -> name.startsWith(element.getId() + "["));
+		assertThat(names).hasSize(1);
+		return names[0];
+	}
+
+	@Test
+	public void should_not_share_cached_objects() {
+		FileSystemBackedObjectStore<TestElement, String> store = FileSystemBackedObjectStore
+				.getInstance(folder.getRoot().getPath());
+		store.enableCache(10, 1024 * 1024);
+		TestElement element = element(1L);
+		store.add(element);
+		TestElement read = store.getAfter(null, e -> true, 1).getElements().get(0);
+		assertThat(read).isNotSameAs(element);
+		read.setId(SequenceKeys.format(2L));
+		assertThat(store.getAfter(null, e -> true, 1).getElements()).containsExactly(element);
+		assertThat(store.getCache().getHitCount()).isEqualTo(2L);
+	}
+
+	@Test
+	public void should_rebuild_sequence_index_from_files_if_manifest_does_not_match() {
+		String directory = folder.getRoot().getPath();
+		FileSystemBackedObjectStore<TestElement, String> store = FileSystemBackedObjectStore.getInstance(directory);
+		TestElement first = element(1L);
+		TestElement second = element(2L);
+		store.add(first);
+		store.add(second);
+		Map<String, String> stale = new LinkedHashMap<>();
+		stale.put(SequenceKeys.format(1L), fileNameOf(first));
+		stale.put(SequenceKeys.format(99L), fileNameOf(second));
+		new StoreManifest(new File(folder.getRoot(), "manifest")).checkpoint(stale);
+
+		store = FileSystemBackedObjectStore.getInstance(directory);
+
+		assertThat(store.getAfter(first.getSequenceKey(), e -> true, 10).getElements()).containsExactly(second);
+		assertThat(store.getAfter(second.getSequenceKey(), e -> true, 10).getElements()).isEmpty();
+	}
+
+}
@@ -0,0 +1,159 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.kune.phoenix.shared.Message;
+
+public class GroupCommitTest {
+
+	private final AtomicInteger syncs = new AtomicInteger();
+	private final AtomicBoolean failSync = new AtomicBoolean();
+	private TransientInMemoryObjectStore<Message, String> store;
+
+	@Before
+	public void setUp() {
+		store = new TransientInMemoryObjectStore<Message, String>() {
+			@Override
+			protected void doSync() {
+				syncs.incrementAndGet();
+				if (failSync.get()) {
+					throw new IllegalStateException("sync failed");
+				}
+			}
+		};
+	}
+
+	private static Message message(String id) {
+		Message result = new Message();
+		result.setId(id);
+		result.setConversationId("c");
+		result.setRecipientIds(new String[] { "r" });
+		return result;
+	}
+
+	@Test
+	public void should_not_sync_without_group_commit() {
+		store.add(message("1"));
+		store.addAllIfAbsent(asList(message("2"), message("3")), Message::setSequenceKey);
+		store.putAllIfAbsent(asList(message("4")));
+		assertThat(syncs.get()).isZero();
+		assertThat(store.get()).hasSize(4);
+	}
+
+	@Test
+	public void should_sync_concurrent_bulk_adds_once_per_batch() throws Exception {
+		store.enableGroupCommit(16, 500, TimeUnit.MILLISECONDS);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Map<String, String>>> added = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			String id = Integer.toString(i);
+			added.add(executor.submit(() -> store.addAllIfAbsent(asList(message(id + "a"), message(id + "b")),
+					Message::setSequenceKey)));
+		}
+		for (Future<Map<String, String>> future : added) {
+			assertThat(future.get()).hasSize(2);
+		}
+		executor.shutdown();
+		assertThat(store.get()).hasSize(16);
+		assertThat(syncs.get()).isLessThan(8);
+	}
+
+	@Test
+	public void should_roll_back_add_on_failed_sync() {
+		store.enableGroupCommit(16, 2, TimeUnit.MILLISECONDS);
+		failSync.set(true);
+		try {
+			store.add(message("1"));
+			fail("add succeeded despite the failed sync");
+		} catch (IllegalStateException e) {
+			assertThat(e).hasMessage("sync failed");
+		}
+		assertThat(store.contains("1")).isFalse();
+		failSync.set(false);
+		store.add(message("1"));
+		assertThat(store.contains("1")).isTrue();
+	}
+
+	@Test
+	public void should_roll_back_bulk_add_on_failed_sync() {
+		store.enableGroupCommit(16, 2, TimeUnit.MILLISECONDS);
+		failSync.set(true);
+		try {
+			store.addAllIfAbsent(asList(message("1"), message("2")), Message::setSequenceKey);
+			fail("add succeeded despite the failed sync");
+		} catch (IllegalStateException e) {
+			assertThat(e).hasMessage("sync failed");
+		}
+		assertThat(store.get()).isEmpty();
+	}
+
+	@Test
+	public void should_stop_group_commit_on_close() {
+		store.enableGroupCommit(16, 2, TimeUnit.MILLISECONDS);
+		store.add(message("1"));
+		store.close();
+		store.close();
+		store.add(message("2"));
+		assertThat(syncs.get()).isEqualTo(1);
+		assertThat(store.get()).hasSize(2);
+	}
+
+	@Test
+	public void should_commit_queued_objects_on_close_without_interrupting() throws Exception {
+		AtomicBoolean interrupted = new AtomicBoolean();
+		List<Integer> committed = new ArrayList<>();
+		GroupCommitter<Integer> committer = new GroupCommitter<>("test", 2, 100, TimeUnit.MILLISECONDS, batch -> {
+			try {
+				Thread.sleep(20L);
+			} catch (InterruptedException e) {
+				interrupted.set(true);
+			}
+			for (GroupCommitter.Pending<Integer> pending : batch) {
+				committed.add(pending.getObject());
+				pending.getCommitted().complete(null);
+			}
+		});
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			futures.add(committer.submit(i));
+		}
+		committer.close();
+		for (Future<Void> future : futures) {
+			assertThat(future.isDone()).isTrue();
+			future.get();
+		}
+		assertThat(committed).containsExactly(0, 1, 2, 3, 4);
+		assertThat(interrupted.get()).isFalse();
+	}
+
+	@Test
+	public void should_fail_submits_after_close_at_once() throws Exception {
+		GroupCommitter<Integer> committer = new GroupCommitter<>("test", 2, 1, TimeUnit.MILLISECONDS,
+				batch -> batch.forEach(pending -> pending.getCommitted().complete(null)));
+		committer.close();
+		committer.close();
+		try {
+			committer.submit(1).get(1, TimeUnit.SECONDS);
+			fail("submit succeeded after close");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+		}
+	}
+
+}
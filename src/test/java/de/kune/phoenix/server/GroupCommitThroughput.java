@@ -0,0 +1,54 @@
+package de.kune.phoenix.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import de.kune.phoenix.server.ObjectStoreTest.TestElement;
+
+/**
+ * Compares the add throughput of unsynced per-file writes with the segmented
+ * log syncing each add and group-committing under concurrent posters. Run with
+ * <code>[posters] [adds per poster]</code>.
+ */
+public class GroupCommitThroughput {
+
+	public static void main(String[] args) throws InterruptedException {
+		int posters = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int addsPerPoster = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		measure("file system, one file per object", FileSystemBackedObjectStore.getInstance("throughput-store"),
+				posters, addsPerPoster);
+		SegmentedLogObjectStore<TestElement, String> syncing = SegmentedLogObjectStore
+				.getInstance("throughput-log-store", 16 * 1024 * 1024);
+		syncing.enableGroupCommit(1, 0, TimeUnit.MILLISECONDS);
+		measure("segmented log, one sync per add", syncing, posters, addsPerPoster);
+		SegmentedLogObjectStore<TestElement, String> groupCommitting = SegmentedLogObjectStore
+				.getInstance("throughput-group-commit-store", 16 * 1024 * 1024);
+		groupCommitting.enableGroupCommit(posters, 2, TimeUnit.MILLISECONDS);
+		measure("segmented log, group commit", groupCommitting, posters, addsPerPoster);
+	}
+
+	private static void measure(String name, ObjectStore<TestElement, String, String> store, int posters,
+			int addsPerPoster) throws InterruptedException {
+		store.clear();
+		ExecutorService executor = Executors.newFixedThreadPool(posters);
+		long start = System.nanoTime();
+		for (int i = 0; i < posters; i++) {
+			executor.submit(() -> {
+				for (int j = 0; j < addsPerPoster; j++) {
+					TestElement element = new TestElement();
+					element.setId(store.generateSequenceKey());
+					store.add(element);
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.HOURS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int adds = posters * addsPerPoster;
+		System.out.println(String.format("%-35s %8d adds in %7.3fs, %10.1f adds/s", name, adds, seconds,
+				adds / seconds));
+		store.clear();
+	}
+
+}
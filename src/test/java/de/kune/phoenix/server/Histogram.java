@@ -0,0 +1,155 @@
+package de.kune.phoenix.server;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records non-negative values with a relative precision of about 0.1% in the
+ * manner of an HdrHistogram: values are counted in buckets of doubling size,
+ * each split into {@value #SUB_BUCKETS} linear sub-buckets, so recording
+ * takes constant time and space regardless of the range of the values.
+ * Recording is thread-safe.
+ */
+class Histogram {
+
+	private static final int SUB_BUCKET_HALF_BITS = 10;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_HALF_BITS + 1;
+
+	private static final int SUB_BUCKET_HALF = SUB_BUCKETS / 2;
+
+	private static final int BUCKETS = 64 - SUB_BUCKET_HALF_BITS - 1;
+
+	private static final int TICKS_PER_HALF_DISTANCE = 5;
+
+	private final AtomicLongArray counts = new AtomicLongArray((BUCKETS + 1) * SUB_BUCKET_HALF);
+
+	private static int indexOf(long value) {
+		int bucket = BUCKETS - Long.numberOfLeadingZeros(value | SUB_BUCKETS - 1);
+		int subBucket = (int) (value >>> bucket);
+		return (bucket + 1 << SUB_BUCKET_HALF_BITS) + subBucket - SUB_BUCKET_HALF;
+	}
+
+	private static int bucketAt(int index) {
+		return Math.max(0, (index >> SUB_BUCKET_HALF_BITS) - 1);
+	}
+
+	/**
+	 * Returns the lowest value counted at the specified index.
+	 */
+	private static long lowestValueAt(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		return (long) ((index & SUB_BUCKET_HALF - 1) + SUB_BUCKET_HALF) << bucketAt(index);
+	}
+
+	/**
+	 * Returns the highest value counted at the specified index.
+	 */
+	private static long highestValueAt(int index) {
+		return lowestValueAt(index) + (1L << bucketAt(index)) - 1;
+	}
+
+	/**
+	 * Records a value, negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            the value
+	 */
+	public void record(long value) {
+		counts.incrementAndGet(indexOf(Math.max(0L, value)));
+	}
+
+	public long getTotalCount() {
+		long result = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			result += counts.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the value at the specified percentile, the highest value
+	 * counted together with the value at that rank.
+	 *
+	 * @param percentile
+	 *            the percentile between 0 and 100
+	 * @return the value or 0 if no value has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = getTotalCount();
+		long rank = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+			if (count >= rank) {
+				return highestValueAt(i);
+			}
+		}
+		return 0L;
+	}
+
+	public long getMax() {
+		for (int i = counts.length() - 1; i >= 0; i--) {
+			if (counts.get(i) > 0) {
+				return highestValueAt(i);
+			}
+		}
+		return 0L;
+	}
+
+	public double getMean() {
+		long total = 0;
+		double sum = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			long count = counts.get(i);
+			total += count;
+			// The middle of the values counted at the index.
+			sum += count * (lowestValueAt(i) + (highestValueAt(i) - lowestValueAt(i)) / 2.0);
+		}
+		return total == 0 ? 0.0 : sum / total;
+	}
+
+	/**
+	 * Writes the percentile distribution in the format of HdrHistogram, which
+	 * plotting tools for <code>.hgrm</code> files read. The percentiles
+	 * approach 100 in steps halving every {@value #TICKS_PER_HALF_DISTANCE}
+	 * lines.
+	 *
+	 * @param out
+	 *            the stream to write to
+	 * @param scale
+	 *            the divisor of the recorded values, e.g. 1000.0 to write
+	 *            microseconds as milliseconds
+	 */
+	public void writePercentileDistribution(PrintStream out, double scale) {
+		long total = getTotalCount();
+		out.println(String.format("%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+		if (total > 0) {
+			double percentile = 0.0;
+			for (int half = 0; total * (100.0 - percentile) / 100.0 >= 1.0; half++) {
+				double width = 100.0 / (1L << half + 1);
+				for (int tick = 0; tick < TICKS_PER_HALF_DISTANCE; tick++) {
+					percentile = 100.0 - 2 * width + width * tick / TICKS_PER_HALF_DISTANCE;
+					writePercentile(out, percentile, total, scale);
+				}
+				percentile = 100.0 - width;
+			}
+			writePercentile(out, 100.0, total, scale);
+		}
+		out.println(String.format("#[Mean    = %12.3f, Max            = %12.3f]", getMean() / scale,
+				getMax() / scale));
+		out.println(String.format("#[Total count    = %12d, SubBuckets     = %12d]", total, SUB_BUCKETS));
+	}
+
+	private void writePercentile(PrintStream out, double percentile, long total, double scale) {
+		long value = getValueAtPercentile(percentile);
+		long count = (long) Math.ceil(percentile / 100.0 * total);
+		out.println(percentile < 100.0
+				? String.format("%12.3f %2.12f %10d %14.2f", value / scale, percentile / 100.0, count,
+						1.0 / (1.0 - percentile / 100.0))
+				: String.format("%12.3f %2.12f %10d", value / scale, 1.0, total));
+	}
+
+}
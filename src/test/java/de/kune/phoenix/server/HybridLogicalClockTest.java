@@ -0,0 +1,155 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.Sequenced;
+
+public class HybridLogicalClockTest {
+
+	private static final long NOW = HybridLogicalClock.EPOCH + 1000L;
+
+	@Test
+	public void should_embed_node_id_and_time() {
+		long sequence = new HybridLogicalClock(7, () -> NOW).next();
+		assertThat(HybridLogicalClock.nodeOf(sequence)).isEqualTo(7);
+		assertThat(HybridLogicalClock.timeOf(sequence)).isEqualTo(NOW);
+	}
+
+	@Test
+	public void should_increase_while_clock_stands_still_or_goes_back() {
+		AtomicLong time = new AtomicLong(NOW);
+		HybridLogicalClock clock = new HybridLogicalClock(1, time::get);
+		long previous = clock.next();
+		for (int i = 0; i < 10000; i++) {
+			if (i % 100 == 0) {
+				time.addAndGet(-5L);
+			}
+			long next = clock.next();
+			assertThat(next).isGreaterThan(previous);
+			previous = next;
+		}
+	}
+
+	@Test
+	public void should_bound_generated_and_observed_sequences() {
+		HybridLogicalClock clock = new HybridLogicalClock(1, () -> NOW);
+		assertThat(clock.highest()).isEqualTo(Sequenced.NO_SEQUENCE);
+		long generated = clock.next();
+		assertThat(clock.highest()).isGreaterThanOrEqualTo(generated).isLessThan(clock.next());
+		long observed = new HybridLogicalClock(HybridLogicalClock.MAX_NODES - 1, () -> NOW + 5L).next();
+		clock.observe(observed);
+		assertThat(clock.highest()).isGreaterThanOrEqualTo(observed).isLessThan(clock.next());
+	}
+
+	@Test
+	public void should_follow_the_wall_clock() {
+		AtomicLong time = new AtomicLong(NOW);
+		HybridLogicalClock clock = new HybridLogicalClock(1, time::get);
+		clock.next();
+		clock.next();
+		time.addAndGet(10L);
+		assertThat(HybridLogicalClock.timeOf(clock.next())).isEqualTo(NOW + 10L);
+	}
+
+	@Test
+	public void should_not_collide_across_nodes() {
+		HybridLogicalClock a = new HybridLogicalClock(1, () -> NOW);
+		HybridLogicalClock b = new HybridLogicalClock(2, () -> NOW);
+		Set<Long> sequences = ConcurrentHashMap.newKeySet();
+		for (int i = 0; i < 1000; i++) {
+			assertThat(sequences.add(a.next())).isTrue();
+			assertThat(sequences.add(b.next())).isTrue();
+		}
+	}
+
+	@Test
+	public void should_advance_past_observed_sequence() {
+		HybridLogicalClock ahead = new HybridLogicalClock(1, () -> NOW + 60000L);
+		HybridLogicalClock behind = new HybridLogicalClock(2, () -> NOW);
+		long remote = ahead.next();
+		behind.observe(remote);
+		assertThat(behind.next()).isGreaterThan(remote);
+	}
+
+	@Test
+	public void should_detect_sequences_too_far_ahead() {
+		HybridLogicalClock clock = new HybridLogicalClock(1, () -> NOW);
+		assertThat(clock.isAhead(new HybridLogicalClock(2, () -> NOW + 100L).next(), 100L)).isFalse();
+		assertThat(clock.isAhead(new HybridLogicalClock(2, () -> NOW + 101L).next(), 100L)).isTrue();
+		assertThat(clock.isAhead(Long.MAX_VALUE - 1, 100L)).isTrue();
+		assertThat(clock.isAhead(Sequenced.NO_SEQUENCE, 100L)).isFalse();
+		clock.observe(new HybridLogicalClock(2, () -> NOW + 1000L).next());
+		assertThat(clock.isAhead(new HybridLogicalClock(2, () -> NOW + 1100L).next(), 100L)).isFalse();
+	}
+
+	@Test
+	public void should_reserve_ascending_sequences() {
+		HybridLogicalClock clock = new HybridLogicalClock(3, () -> NOW);
+		long first = clock.next();
+		long[] reserved = clock.next(100);
+		assertThat(reserved).hasSize(100);
+		assertThat(reserved[0]).isGreaterThan(first);
+		for (int i = 1; i < reserved.length; i++) {
+			assertThat(reserved[i]).isGreaterThan(reserved[i - 1]);
+			assertThat(HybridLogicalClock.nodeOf(reserved[i])).isEqualTo(3);
+		}
+		assertThat(clock.next()).isGreaterThan(reserved[99]);
+	}
+
+	@Test
+	public void should_generate_unique_sequences_concurrently() throws InterruptedException {
+		HybridLogicalClock clock = new HybridLogicalClock(0);
+		Set<Long> sequences = ConcurrentHashMap.newKeySet();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(() -> {
+				long previous = -1L;
+				for (int i = 0; i < 50000; i++) {
+					long next = clock.next();
+					assertThat(next).isGreaterThan(previous);
+					sequences.add(next);
+					previous = next;
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(sequences).hasSize(200000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void should_reject_invalid_node_id() {
+		new HybridLogicalClock(HybridLogicalClock.MAX_NODES);
+	}
+
+	@Test
+	public void should_order_store_keys_by_clock() {
+		TransientInMemoryObjectStore<Message, String> store = new TransientInMemoryObjectStore<>();
+		store.setSequenceKeyGenerator(new HybridLogicalClock(5));
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Message message = new Message();
+			message.setId(Integer.toString(i));
+			store.addAllIfAbsent(asList(message), Message::setSequenceKey);
+			ids.add(message.getId());
+			assertThat(HybridLogicalClock.nodeOf(message.sequence())).isEqualTo(5);
+		}
+		List<String> ordered = new ArrayList<>();
+		store.getAfter(null, 100).getElements().forEach(m -> ordered.add(m.getId()));
+		assertThat(ordered).isEqualTo(ids);
+	}
+
+}
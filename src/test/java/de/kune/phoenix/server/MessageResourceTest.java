@@ -0,0 +1,94 @@
+package de.kune.phoenix.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.jetty.server.Server;
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Runs the REST API of a single node embedded in this JVM.
+ */
+public class MessageResourceTest {
+
+	private static final GenericType<List<Message>> MESSAGE_LIST = new GenericType<List<Message>>() {
+	};
+
+	private static final long TIMEOUT = 10000L;
+
+	private Server server;
+	private Client client;
+
+	@Before
+	public void setUp() throws Exception {
+		server = EmbeddedServer.start(0, Collections.singletonMap("longpoll.maxwait", "60000"));
+		client = ClientBuilder.newClient().register(JacksonFeature.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		server.stop();
+	}
+
+	private WebTarget messages() {
+		return client.target(EmbeddedServer.uri(server)).path("message");
+	}
+
+	@Test
+	public void should_reject_malformed_binary_messages() {
+		byte[] malformed = { BinaryMessageProvider.VERSION, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
+		assertThat(messages().request().post(Entity.entity(malformed, BinaryMessageProvider.MEDIA_TYPE)).getStatus())
+				.isEqualTo(400);
+	}
+
+	@Test
+	public void should_reject_acknowledgement_of_sequence_keys_not_issued() {
+		assertThat(messages().path("ack").queryParam("recipient-id", "r")
+				.queryParam("sequence-key", "0000000000000000000000001").request().post(null).getStatus())
+						.isEqualTo(400);
+		assertThat(messages().queryParam("recipient-id", "r")
+				.queryParam("last-sequence-key", "0000000000000000000000001").request(MediaType.APPLICATION_JSON)
+				.get().getStatus()).isEqualTo(400);
+	}
+
+	@Test
+	public void should_reject_malformed_sequence_keys() {
+		assertThat(messages().queryParam("conversation-id", "c").queryParam("last-sequence-key", "x1")
+				.request(MediaType.APPLICATION_JSON).get().getStatus()).isEqualTo(400);
+		assertThat(messages().queryParam("recipient-id", "r").queryParam("last-sequence-key", "99999999999999999999")
+				.request(MediaType.APPLICATION_JSON).get().getStatus()).isEqualTo(400);
+		assertThat(messages().path("ack").queryParam("recipient-id", "r").queryParam("sequence-key", "-1").request()
+				.post(null).getStatus()).isEqualTo(400);
+	}
+
+	@Test
+	public void should_answer_at_once_on_zero_timeout() throws Exception {
+		assertThat(messages().queryParam("wait", true).queryParam("recipient-id", "r").queryParam("timeout", 0)
+				.request(MediaType.APPLICATION_JSON).async().get(MESSAGE_LIST).get(TIMEOUT, TimeUnit.MILLISECONDS))
+						.isEmpty();
+	}
+
+	@Test
+	public void should_answer_at_once_on_negative_timeout() throws Exception {
+		assertThat(messages().queryParam("wait", true).queryParam("recipient-id", "r").queryParam("timeout", -1)
+				.request(MediaType.APPLICATION_JSON).async().get(MESSAGE_LIST).get(TIMEOUT, TimeUnit.MILLISECONDS))
+						.isEmpty();
+	}
+
+}
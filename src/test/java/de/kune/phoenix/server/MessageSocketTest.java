@@ -0,0 +1,224 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.MessageFrame;
+
+/**
+ * Exchanges frames with the WebSocket endpoint of a single node embedded in
+ * this JVM.
+ */
+public class MessageSocketTest {
+
+	private static final long TIMEOUT = 10000L;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private Server server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = EmbeddedServer.start(0, Collections.emptyMap());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * A client connection collecting the received frames.
+	 */
+	private class Connection implements AutoCloseable {
+		private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		private final CompletableFuture<CloseReason> closed = new CompletableFuture<>();
+		private final Session session;
+
+		private Connection() throws Exception {
+			session = ContainerProvider.getWebSocketContainer().connectToServer(new Endpoint() {
+				@Override
+				public void onOpen(Session session, EndpointConfig config) {
+					session.addMessageHandler(new MessageHandler.Whole<String>() {
+						@Override
+						public void onMessage(String text) {
+							received.add(text);
+						}
+					});
+				}
+
+				@Override
+				public void onClose(Session session, CloseReason reason) {
+					closed.complete(reason);
+				}
+			}, ClientEndpointConfig.Builder.create().build(), EmbeddedServer.webSocketUri(server));
+		}
+
+		private void send(MessageFrame frame) throws IOException {
+			session.getBasicRemote().sendText(mapper.writeValueAsString(frame));
+		}
+
+		private MessageFrame receive() throws Exception {
+			String text = received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertThat(text).as("received frame").isNotNull();
+			return mapper.readValue(text, MessageFrame.class);
+		}
+
+		@Override
+		public void close() throws IOException {
+			session.close();
+		}
+	}
+
+	private static Message message(String id) {
+		Message result = new Message();
+		result.setId(id);
+		result.setConversationId("c");
+		result.setRecipientIds(new String[] { "r" });
+		return result;
+	}
+
+	private static MessageFrame post(String requestId, Message... messages) {
+		MessageFrame result = MessageFrame.of(MessageFrame.Type.POST);
+		result.setRequestId(requestId);
+		result.setMessages(asList(messages));
+		return result;
+	}
+
+	private static MessageFrame frame(MessageFrame.Type type, String sequenceKey) {
+		MessageFrame result = MessageFrame.of(type);
+		result.setRecipientId("r");
+		result.setSequenceKey(sequenceKey);
+		return result;
+	}
+
+	private <T> T bean(Class<T> type) {
+		return WebApplicationContextUtils
+				.getWebApplicationContext(((ServletContextHandler) server.getHandler()).getServletContext())
+				.getBean(type);
+	}
+
+	private DeliveryCursors deliveryCursors() {
+		return bean(DeliveryCursors.class);
+	}
+
+	@Test
+	public void should_answer_posts() throws Exception {
+		try (Connection connection = new Connection()) {
+			connection.send(post("1", message("a")));
+			MessageFrame posted = connection.receive();
+			assertThat(posted.getType()).isEqualTo(MessageFrame.Type.POSTED);
+			assertThat(posted.getRequestId()).isEqualTo("1");
+			MessageFrame missing = MessageFrame.of(MessageFrame.Type.POST);
+			missing.setRequestId("2");
+			connection.send(missing);
+			MessageFrame error = connection.receive();
+			assertThat(error.getType()).isEqualTo(MessageFrame.Type.ERROR);
+			assertThat(error.getRequestId()).isEqualTo("2");
+			assertThat(error.getError()).isEqualTo("missing messages");
+		}
+	}
+
+	@Test
+	public void should_answer_malformed_frames_with_errors() throws Exception {
+		try (Connection connection = new Connection()) {
+			connection.session.getBasicRemote().sendText("{");
+			assertThat(connection.receive().getError()).isEqualTo("malformed frame");
+			MessageFrame subscribe = frame(MessageFrame.Type.SUBSCRIBE, "x");
+			subscribe.setRequestId("1");
+			connection.send(subscribe);
+			MessageFrame error = connection.receive();
+			assertThat(error.getType()).isEqualTo(MessageFrame.Type.ERROR);
+			assertThat(error.getRequestId()).isEqualTo("1");
+			connection.send(post("2", message("a")));
+			assertThat(connection.receive().getType()).isEqualTo(MessageFrame.Type.POSTED);
+		}
+	}
+
+	@Test
+	public void should_push_messages_and_resume_after_sequence_key() throws Exception {
+		String lastSequenceKey;
+		try (Connection connection = new Connection()) {
+			connection.send(post("1", message("a"), message("b")));
+			assertThat(connection.receive().getType()).isEqualTo(MessageFrame.Type.POSTED);
+			connection.send(frame(MessageFrame.Type.SUBSCRIBE, null));
+			MessageFrame pushed = connection.receive();
+			assertThat(pushed.getType()).isEqualTo(MessageFrame.Type.MESSAGES);
+			assertThat(pushed.getMessages()).extracting(Message::getId).containsExactly("a", "b");
+			lastSequenceKey = pushed.getMessages().get(1).getSequenceKey();
+			connection.send(post("2", message("c")));
+			MessageFrame first = connection.receive();
+			MessageFrame second = connection.receive();
+			MessageFrame messages = first.getType() == MessageFrame.Type.MESSAGES ? first : second;
+			assertThat(messages.getMessages()).extracting(Message::getId).containsExactly("c");
+		}
+		try (Connection connection = new Connection()) {
+			connection.send(frame(MessageFrame.Type.SUBSCRIBE, lastSequenceKey));
+			assertThat(connection.receive().getMessages()).extracting(Message::getId).containsExactly("c");
+		}
+		assertThat(deliveryCursors().get("r")).isEqualTo(lastSequenceKey);
+	}
+
+	@Test
+	public void should_close_with_an_error_if_messages_cannot_be_pushed() throws Exception {
+		try (Connection connection = new Connection()) {
+			connection.send(post("1", message("a")));
+			assertThat(connection.receive().getType()).isEqualTo(MessageFrame.Type.POSTED);
+			bean(ExecutorService.class).shutdownNow();
+			connection.send(frame(MessageFrame.Type.SUBSCRIBE, null));
+			CloseReason reason = connection.closed.get(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertThat(reason.getCloseCode()).isEqualTo(CloseReason.CloseCodes.UNEXPECTED_CONDITION);
+			assertThat(reason.getReasonPhrase()).isEqualTo("pushing messages failed");
+		}
+	}
+
+	@Test
+	public void should_advance_delivery_cursor_on_ack() throws Exception {
+		try (Connection connection = new Connection()) {
+			connection.send(post("1", message("a")));
+			assertThat(connection.receive().getType()).isEqualTo(MessageFrame.Type.POSTED);
+			connection.send(frame(MessageFrame.Type.SUBSCRIBE, null));
+			String sequenceKey = connection.receive().getMessages().get(0).getSequenceKey();
+			connection.send(frame(MessageFrame.Type.ACK, sequenceKey));
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (!sequenceKey.equals(deliveryCursors().get("r")) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10L);
+			}
+			assertThat(deliveryCursors().get("r")).isEqualTo(sequenceKey);
+			MessageFrame ack = frame(MessageFrame.Type.ACK, "0000000000000000001000000");
+			ack.setRequestId("2");
+			connection.send(ack);
+			MessageFrame error = connection.receive();
+			assertThat(error.getType()).isEqualTo(MessageFrame.Type.ERROR);
+			assertThat(error.getRequestId()).isEqualTo("2");
+			assertThat(deliveryCursors().get("r")).isEqualTo(sequenceKey);
+		}
+	}
+
+}
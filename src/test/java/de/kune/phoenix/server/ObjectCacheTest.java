@@ -0,0 +1,45 @@
+package de.kune.phoenix.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class ObjectCacheTest {
+
+	@Test
+	public void should_evict_least_recently_used_entry_exceeding_max_entries() {
+		ObjectCache<String, String> cache = new ObjectCache<>(2, 1024);
+		cache.put("a", "A", 1);
+		cache.put("b", "B", 1);
+		assertThat(cache.get("a")).isEqualTo("A");
+		cache.put("c", "C", 1);
+		assertThat(cache.get("b")).isNull();
+		assertThat(cache.get("a")).isEqualTo("A");
+		assertThat(cache.get("c")).isEqualTo("C");
+		assertThat(cache.getEvictionCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void should_evict_entries_exceeding_max_bytes() {
+		ObjectCache<String, String> cache = new ObjectCache<>(10, 100);
+		cache.put("a", "A", 60);
+		cache.put("b", "B", 60);
+		assertThat(cache.get("a")).isNull();
+		assertThat(cache.getBytes()).isEqualTo(60);
+		cache.remove("b");
+		assertThat(cache.getBytes()).isEqualTo(0);
+	}
+
+	@Test
+	public void should_count_hits_and_misses() {
+		ObjectCache<String, String> cache = new ObjectCache<>(10, 100);
+		cache.put("a", "A", 1);
+		cache.get("a");
+		cache.get("b");
+		cache.clear();
+		cache.get("a");
+		assertThat(cache.getHitCount()).isEqualTo(1);
+		assertThat(cache.getMissCount()).isEqualTo(2);
+	}
+
+}
@@ -0,0 +1,184 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import javax.ws.rs.BadRequestException;
+
+import org.junit.Test;
+
+import de.kune.phoenix.shared.Message;
+
+public class ObjectCodecTest {
+
+	private static Message message(String id, String sequenceKey) {
+		Message result = new Message();
+		result.setId(id);
+		result.setSenderId("sender");
+		result.setRecipientIds(new String[] { "first", null, "second" });
+		result.setConversationId("conversation");
+		result.setKeyId("key");
+		result.setMessageType(Message.Type.PLAIN_TEXT);
+		result.setContent(new byte[] { 1, 2, 3, -128, 127 });
+		result.setTimestamp(new Date(1234567890L));
+		result.setSignature(new byte[256]);
+		result.setSequenceKey(sequenceKey);
+		return result;
+	}
+
+	private static byte[] encode(ObjectCodec codec, Object object) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.encode(object, out);
+		return out.toByteArray();
+	}
+
+	private static void assertSameFields(Message actual, Message expected) {
+		assertThat(actual.toString()).isEqualTo(expected.toString());
+		assertThat(actual.getContent()).isEqualTo(expected.getContent());
+		assertThat(actual.getSignature()).isEqualTo(expected.getSignature());
+	}
+
+	@Test
+	public void should_decode_encoded_messages() throws IOException {
+		Message empty = new Message();
+		for (ObjectCodec codec : asList(ObjectCodec.forName("json"), ObjectCodec.forName("bin"))) {
+			for (Message message : asList(message("id", "0000000000000000000000042"), empty)) {
+				Message decoded = codec.decode(new ByteArrayInputStream(encode(codec, message)), Message.class);
+				assertSameFields(decoded, message);
+			}
+		}
+	}
+
+	@Test
+	public void should_encode_messages_more_compactly_than_json() throws IOException {
+		Message message = message("id", "0000000000000000000000042");
+		assertThat(encode(new BinaryObjectCodec(), message).length)
+				.isLessThan(encode(new JsonObjectCodec(), message).length * 2 / 3);
+	}
+
+	@Test
+	public void should_fall_back_to_json_for_other_objects() throws IOException {
+		ObjectStoreTest.TestElement element = new ObjectStoreTest.TestElement();
+		element.setId("id");
+		BinaryObjectCodec codec = new BinaryObjectCodec();
+		assertThat(codec.decode(new ByteArrayInputStream(encode(codec, element)), ObjectStoreTest.TestElement.class))
+				.isEqualTo(element);
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void should_read_collections_of_messages_written_by_provider() throws Exception {
+		BinaryMessageProvider provider = new BinaryMessageProvider();
+		Type listOfMessages = ObjectCodecTest.class.getDeclaredMethod("messages").getGenericReturnType();
+		List<Message> messages = messages();
+		assertThat(provider.isWriteable(ArrayList.class, listOfMessages, null, null)).isTrue();
+		assertThat(provider.isWriteable(LinkedHashSet.class, LinkedHashSet.class, null, null)).isFalse();
+		assertThat(provider.isReadable(List.class, listOfMessages, null, null)).isTrue();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		provider.writeTo(new ArrayList<>(messages), ArrayList.class, listOfMessages, null, null, null, out);
+		List<Message> read = (List<Message>) provider.readFrom((Class) List.class, listOfMessages, null, null, null,
+				new ByteArrayInputStream(out.toByteArray()));
+		assertThat(read).hasSize(2);
+		assertSameFields(read.get(0), messages.get(0));
+		assertSameFields(read.get(1), messages.get(1));
+	}
+
+	@Test
+	public void should_reject_malformed_messages() throws IOException {
+		byte[] encoded = encode(new BinaryObjectCodec(), message("id", "0000000000000000000000042"));
+		// The content length directly follows the message type.
+		int contentLength = indexOf(encoded, new byte[] { 0, 0, 0, 5, 1, 2, 3, -128, 127 });
+		for (int length : new int[] { -1, Integer.MAX_VALUE, BinaryObjectCodec.MAX_LENGTH + 1, 1 << 20 }) {
+			byte[] malformed = encoded.clone();
+			ByteBuffer.wrap(malformed).putInt(contentLength, length);
+			assertDecodingFails(malformed);
+		}
+		byte[] unknownType = encoded.clone();
+		unknownType[contentLength - 1] = (byte) 0xff;
+		assertDecodingFails(unknownType);
+		assertDecodingFails(Arrays.copyOf(encoded, encoded.length / 2));
+	}
+
+	private static int indexOf(byte[] bytes, byte[] part) {
+		for (int i = 0; i <= bytes.length - part.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + part.length), part)) {
+				return i;
+			}
+		}
+		throw new AssertionError("part not found");
+	}
+
+	private static void assertDecodingFails(byte[] malformed) {
+		try {
+			new BinaryObjectCodec().decode(new ByteArrayInputStream(malformed), Message.class);
+			fail("decoded a malformed message");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void should_reject_malformed_entities_as_bad_requests() throws Exception {
+		BinaryMessageProvider provider = new BinaryMessageProvider();
+		Type listOfMessages = ObjectCodecTest.class.getDeclaredMethod("messages").getGenericReturnType();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryMessageProvider.writeMessages(messages(), out);
+		byte[] negativeCount = out.toByteArray();
+		ByteBuffer.wrap(negativeCount).putInt(1, -1);
+		byte[] unknownVersion = out.toByteArray();
+		unknownVersion[0] = 2;
+		for (byte[] malformed : asList(negativeCount, unknownVersion,
+				Arrays.copyOf(out.toByteArray(), out.size() - 1))) {
+			try {
+				provider.readFrom((Class) List.class, listOfMessages, null, null, null,
+						new ByteArrayInputStream(malformed));
+				fail("read a malformed entity");
+			} catch (BadRequestException e) {
+				// Expected.
+			}
+		}
+	}
+
+	private static List<Message> messages() {
+		return asList(message("first", "0000000000000000000000001"), new Message());
+	}
+
+	@Test
+	public void should_read_objects_written_with_another_codec() {
+		FileSystemBackedObjectStore<Message, String> fileSystemStore = FileSystemBackedObjectStore
+				.getInstance("test-codec-store");
+		SegmentedLogObjectStore<Message, String> segmentedLogStore = SegmentedLogObjectStore
+				.getInstance("test-codec-log-store", 16 * 1024);
+		fileSystemStore.clear();
+		segmentedLogStore.clear();
+		fileSystemStore.add(message("json", "0000000000000000000000001"));
+		segmentedLogStore.add(message("json", "0000000000000000000000001"));
+		fileSystemStore.setCodec(new BinaryObjectCodec());
+		segmentedLogStore.setCodec(new BinaryObjectCodec());
+		fileSystemStore.add(message("bin", "0000000000000000000000002"));
+		segmentedLogStore.add(message("bin", "0000000000000000000000002"));
+		for (ObjectStore<Message, String, String> store : asList(
+				FileSystemBackedObjectStore.<Message, String> getInstance("test-codec-store"),
+				SegmentedLogObjectStore.<Message, String> getInstance("test-codec-log-store", 16 * 1024))) {
+			List<Message> messages = store.getAfter(null, 10).getElements();
+			assertThat(messages).hasSize(2);
+			assertSameFields(messages.get(0), message("json", "0000000000000000000000001"));
+			assertSameFields(messages.get(1), message("bin", "0000000000000000000000002"));
+			store.clear();
+		}
+	}
+
+}
@@ -1,15 +1,21 @@
 package de.kune.phoenix.server;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -22,6 +28,7 @@ import org.junit.runners.Parameterized.Parameters;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import de.kune.phoenix.shared.Identifiable;
+import de.kune.phoenix.shared.SequenceKeys;
 import de.kune.phoenix.shared.Sequenced;
 
 @RunWith(Parameterized.class)
@@ -30,7 +37,25 @@ public class ObjectStoreTest {
 	@Parameters
 	public static Collection<Object[]> data() {
 		return asList(new Object[][] { { new TransientInMemoryObjectStore<>() },
-				{ FileSystemBackedObjectStore.getInstance("test-store") } });
+				{ FileSystemBackedObjectStore.getInstance("test-store") },
+				{ SegmentedLogObjectStore.getInstance("test-log-store", 16 * 1024) },
+				{ new IndexedObjectStore<TestElement, String, String>(new TransientInMemoryObjectStore<>())
+						.withIndex("id", e -> singleton(e.getId())).withIndex("parity", e -> singleton(e.sequence() % 2)) },
+				{ groupCommitting(SegmentedLogObjectStore.getInstance("test-group-commit-store", 16 * 1024)) },
+				{ caching(FileSystemBackedObjectStore.getInstance("test-caching-store")) },
+				{ new PartitionedObjectStore<TestElement, String>(asList(new TransientInMemoryObjectStore<>(),
+						SegmentedLogObjectStore.getInstance("test-partition-store", 16 * 1024)), TestElement::getId) } });
+	}
+
+	private static <T extends Identifiable<String> & Sequenced<String>> FileSystemBackedObjectStore<T, String> caching(
+			FileSystemBackedObjectStore<T, String> store) {
+		store.enableCache(3, 1024 * 1024);
+		return store;
+	}
+
+	private static <T extends LockingObjectStore<?, ?, ?>> T groupCommitting(T store) {
+		store.enableGroupCommit(64, 2, TimeUnit.MILLISECONDS);
+		return store;
 	}
 
 	private ObjectStore<TestElement, String, String> store;
@@ -58,6 +83,31 @@ public class ObjectStoreTest {
 		assertThat(store.get()).isEmpty();
 	}
 
+	@Test
+	public void should_return_highest_sequence_key() {
+		assertThat(store.getHighestSequenceKey()).isNull();
+		List<TestElement> testElements = asList(testElement(), testElement(), testElement());
+		store.add(testElements.get(1));
+		store.add(testElements.get(2));
+		store.add(testElements.get(0));
+		assertThat(store.getHighestSequenceKey()).isEqualTo(testElements.get(2).getSequenceKey());
+		store.remove(testElements.get(2));
+		assertThat(store.getHighestSequenceKey()).isEqualTo(testElements.get(1).getSequenceKey());
+	}
+
+	@Test
+	public void should_return_keys_of_maintained_indexes() {
+		List<TestElement> testElements = asList(testElement(), testElement());
+		store.add(testElements.get(0));
+		store.add(testElements.get(1));
+		store.remove(testElements.get(0));
+		if (store instanceof IndexedObjectStore) {
+			assertThat(store.getIndexKeys("id")).containsExactly(testElements.get(1).getId());
+		} else {
+			assertThat(store.getIndexKeys("id")).isNull();
+		}
+	}
+
 	@Test
 	public void should_contain_any_element_after_add() {
 		store.add(testElement());
@@ -91,6 +141,58 @@ public class ObjectStoreTest {
 		assertThat(store.get(e -> e.getId().equals(testElement.getId()))).isNotEmpty();
 	}
 
+	@Test
+	public void should_get_element_by_index_predicate_after_add() {
+		List<TestElement> testElements = asList(testElement(), testElement());
+		store.add(testElements.get(0));
+		store.add(testElements.get(1));
+		String id = testElements.get(1).getId();
+		assertThat(store.get(IndexPredicate.of("id", id, e -> e.getId().equals(id))))
+				.containsExactly(testElements.get(1));
+		store.remove(testElements.get(1));
+		assertThat(store.get(IndexPredicate.of("id", id, e -> e.getId().equals(id)))).isEmpty();
+	}
+
+	@Test
+	public void should_get_elements_after_sequence_key_in_pages() {
+		List<TestElement> testElements = asList(testElement(), testElement(), testElement(), testElement(),
+				testElement());
+		for (TestElement t : testElements) {
+			store.add(t);
+		}
+		Page<TestElement, String> page = store.getAfter(testElements.get(0).getSequenceKey(), 2);
+		assertThat(page.getElements()).containsExactly(testElements.get(1), testElements.get(2));
+		page = store.getAfter(page.getContinuationKey(), 2);
+		assertThat(page.getElements()).containsExactly(testElements.get(3), testElements.get(4));
+		page = store.getAfter(page.getContinuationKey(), 2);
+		assertThat(page.getElements()).isEmpty();
+		assertThat(page.getContinuationKey()).isNull();
+		store.remove(testElements.get(2));
+		assertThat(store.getAfter(null, e -> !e.equals(testElements.get(1)), 10).getElements())
+				.containsExactly(testElements.get(0), testElements.get(3), testElements.get(4));
+	}
+
+	@Test
+	public void should_get_elements_by_index_predicate_after_sequence_key_in_pages() {
+		List<TestElement> even = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			TestElement t = testElement();
+			store.add(t);
+			if (t.sequence() % 2 == 0) {
+				even.add(t);
+			}
+		}
+		IndexPredicate<TestElement> predicate = IndexPredicate.of("parity", 0L, e -> e.sequence() % 2 == 0);
+		Page<TestElement, String> page = store.getAfter(null, predicate, 2);
+		assertThat(page.getElements()).containsExactlyElementsOf(even.subList(0, 2));
+		page = store.getAfter(page.getContinuationKey(), predicate, 10);
+		assertThat(page.getElements()).containsExactlyElementsOf(even.subList(2, even.size()));
+		assertThat(page.getContinuationKey()).isNull();
+		store.remove(even.get(3));
+		assertThat(store.getAfter(even.get(1).getSequenceKey(), predicate, 10).getElements())
+				.containsExactlyElementsOf(asList(even.get(2), even.get(4)));
+	}
+
 	@Test(expected = IllegalStateException.class)
 	public void should_fail_to_add_one_element_twice() {
 		TestElement testElement = testElement();
@@ -98,6 +200,40 @@ public class ObjectStoreTest {
 		store.add(testElement);
 	}
 
+	@Test(timeout = 1000)
+	public void should_add_absent_elements_once_with_contiguous_sequence_keys() throws Exception {
+		TestElement present = testElement();
+		store.add(present);
+		TestElement first = testElement();
+		TestElement second = testElement();
+		TestElement duplicate = new TestElement();
+		duplicate.setId(first.getId());
+		CompletableFuture<Set<TestElement>> result = store.awaitAsync(t -> !t.equals(present));
+		List<TestElement> assigned = new ArrayList<>();
+		Map<String, String> sequenceKeys = store.addAllIfAbsent(asList(first, present, duplicate, second),
+				(t, s) -> assigned.add(t));
+		assertThat(assigned).containsExactly(first, second);
+		assertThat(sequenceKeys.keySet()).containsExactly(first.getId(), second.getId());
+		assertThat(Long.parseLong(sequenceKeys.get(second.getId())))
+				.isEqualTo(Long.parseLong(sequenceKeys.get(first.getId())) + 1);
+		assertThat(result.get()).containsOnly(first, second);
+		assertThat(store.get()).containsOnly(present, first, second);
+		assertThat(store.addAllIfAbsent(asList(first, second), (t, s) -> assigned.add(t))).isEmpty();
+	}
+
+	@Test(timeout = 1000)
+	public void should_put_absent_elements_keeping_sequence_keys() throws Exception {
+		TestElement present = testElement();
+		store.add(present);
+		TestElement replicated = new TestElement();
+		replicated.setId(SequenceKeys.format(present.sequence() + 1000L));
+		CompletableFuture<Set<TestElement>> result = store.awaitAsync(t -> !t.equals(present));
+		assertThat(store.putAllIfAbsent(asList(present, replicated))).isEqualTo(1);
+		assertThat(result.get()).containsOnly(replicated);
+		assertThat(store.getAfter(present.getSequenceKey(), 10).getElements()).containsExactly(replicated);
+		assertThat(SequenceKeys.parse(store.generateSequenceKey())).isGreaterThan(replicated.sequence());
+	}
+
 	@Test
 	public void should_get_all_elements_after_add() {
 		List<TestElement> testElements = asList(testElement(), testElement());
@@ -125,13 +261,49 @@ public class ObjectStoreTest {
 		assertThat(result).isNotEmpty();
 	}
 
+	@Test(timeout = 2000)
+	public void should_wake_waiter_with_matching_object_only() throws Exception {
+		TestElement other = testElement();
+		TestElement expected = testElement();
+		Future<Set<TestElement>> result = Executors.newSingleThreadExecutor()
+				.submit(() -> store.await(t -> t.equals(expected)));
+		Thread.sleep(200);
+		store.add(other);
+		Thread.sleep(200);
+		assertThat(result.isDone()).isFalse();
+		store.add(expected);
+		assertThat(result.get()).containsExactly(expected);
+	}
+
+	@Test(timeout = 1000)
+	public void should_complete_future_when_matching_object_is_added() throws Exception {
+		TestElement expected = testElement();
+		CompletableFuture<Set<TestElement>> cancelled = store.awaitAsync(t -> true);
+		CompletableFuture<Set<TestElement>> result = store.awaitAsync(t -> t.equals(expected));
+		cancelled.cancel(false);
+		assertThat(result.isDone()).isFalse();
+		store.add(expected);
+		assertThat(result.get()).containsExactly(expected);
+		assertThat(store.awaitAsync(t -> t.equals(expected)).isDone()).isTrue();
+	}
+
+	@Test(timeout = 1000)
+	public void should_return_empty_set_after_wait_timeout() {
+		assertThat(store.await(t -> true, 200, TimeUnit.MILLISECONDS)).isEmpty();
+		TestElement testElement = testElement();
+		store.add(testElement);
+		assertThat(store.await(t -> true, 200, TimeUnit.MILLISECONDS)).containsExactly(testElement);
+	}
+
 	@Test(timeout = 15000)
-	public void should_wait_for_objects_being_added_multi_threaded() {
-		execute(store, 500, store::add, this::testElement);
+	public void should_wait_for_objects_being_added_multi_threaded() throws InterruptedException {
+		ExecutorService executor = execute(store, 500, store::add, this::testElement);
 		while (store.get().size() < 500) {
 			assertThat(store.await(t -> true)).isNotEmpty();
 		}
 		assertThat(store.get().size()).isEqualTo(500);
+		// Adders may still be notifying waiters.
+		executor.awaitTermination(5, TimeUnit.SECONDS);
 	}
 
 	private ExecutorService execute(final ObjectStore<TestElement, String, String> store, int count,
@@ -207,6 +379,11 @@ public class ObjectStoreTest {
 			return id;
 		}
 
+		@Override
+		public long sequence() {
+			return SequenceKeys.parse(id);
+		}
+
 	}
 
 }
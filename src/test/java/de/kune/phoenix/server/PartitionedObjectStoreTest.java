@@ -0,0 +1,97 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.kune.phoenix.shared.Message;
+import de.kune.phoenix.shared.SequenceKeys;
+import de.kune.phoenix.shared.Sequenced;
+
+public class PartitionedObjectStoreTest {
+
+	private PartitionedObjectStore<Message, String> store;
+
+	@Before
+	public void setUp() {
+		store = new PartitionedObjectStore<>(
+				asList(new TransientInMemoryObjectStore<>(), new TransientInMemoryObjectStore<>()),
+				Message::getConversationId);
+	}
+
+	private static Message message(String id, String conversationId) {
+		Message result = new Message();
+		result.setId(id);
+		result.setConversationId(conversationId);
+		return result;
+	}
+
+	@Test
+	public void should_merge_shards_by_sequence_key() {
+		// "a" and "b" hash to different shards.
+		store.addAllIfAbsent(asList(message("1", "a"), message("2", "b")), Message::setSequenceKey);
+		store.addAllIfAbsent(asList(message("3", "b"), message("4", "a")), Message::setSequenceKey);
+		List<String> ids = new ArrayList<>();
+		store.getAfter(null, 10).getElements().forEach(m -> ids.add(m.getId()));
+		assertThat(ids).containsExactly("1", "2", "3", "4");
+		Page<Message, String> page = store.getAfter(null, 3);
+		assertThat(page.getElements()).hasSize(3);
+		assertThat(store.getAfter(page.getContinuationKey(), 10).getElements()).extracting(Message::getId)
+				.containsExactly("4");
+	}
+
+	@Test
+	public void should_not_return_elements_with_pending_sequence_keys() {
+		store.addAllIfAbsent(asList(message("1", "a")), Message::setSequenceKey);
+		List<List<Message>> visible = new ArrayList<>();
+		CompletableFuture<Set<Message>> woken = store.awaitAsync(m -> m.getId().equals("2"));
+		store.addAllIfAbsent(asList(message("2", "a"), message("3", "b")), (message, sequenceKey) -> {
+			message.setSequenceKey(sequenceKey);
+			if (message.getId().equals("3")) {
+				// The second message has been added to its shard, but the add
+				// has not completed yet.
+				visible.add(store.getAfter(null, 10).getElements());
+				visible.add(woken.isDone() ? new ArrayList<>(woken.join()) : new ArrayList<>());
+			}
+		});
+		assertThat(visible.get(0)).extracting(Message::getId).containsExactly("1");
+		assertThat(visible.get(1)).isEmpty();
+		assertThat(woken.join()).extracting(Message::getId).containsExactly("2");
+		assertThat(store.getAfter(null, 10).getElements()).extracting(Message::getId).containsExactly("1", "2", "3");
+	}
+
+	@Test
+	public void should_assign_each_sequence_key_once() {
+		SequenceKeyGenerator generator = new CounterSequenceKeyGenerator();
+		store.setSequenceKeyGenerator(generator);
+		assertThat(generator.highest()).isEqualTo(Sequenced.NO_SEQUENCE);
+		Map<String, String> added = store.addAllIfAbsent(asList(message("1", "a"), message("2", "b"), message("1", "a")),
+				Message::setSequenceKey);
+		assertThat(added.keySet()).containsExactly("1", "2");
+		assertThat(SequenceKeys.parse(store.generateSequenceKey())).isEqualTo(2L);
+		assertThat(store.getAfter(null, 10).getElements()).extracting(Message::getSequenceKey)
+				.containsExactly(SequenceKeys.format(0L), SequenceKeys.format(1L));
+	}
+
+	@Test
+	public void should_put_elements_across_shards_keeping_sequence_keys() {
+		Message first = message("1", "a");
+		first.setSequenceKey(SequenceKeys.format(100L));
+		Message second = message("2", "b");
+		second.setSequenceKey(SequenceKeys.format(101L));
+		assertThat(store.putAllIfAbsent(asList(first, second, first))).isEqualTo(2);
+		assertThat(store.getAfter(null, 10).getElements()).containsExactly(first, second);
+		Message added = message("3", "a");
+		store.addAllIfAbsent(asList(added), Message::setSequenceKey);
+		assertThat(added.sequence()).isGreaterThan(second.sequence());
+	}
+
+}
@@ -0,0 +1,134 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.jetty.server.Server;
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.kune.phoenix.shared.Message;
+
+/**
+ * Runs a leader and a follower node embedded in this JVM.
+ */
+public class ReplicationTest {
+
+	private static final GenericType<List<Message>> MESSAGE_LIST = new GenericType<List<Message>>() {
+	};
+
+	private static final long TIMEOUT = 10000L;
+
+	private Server leader;
+	private Server follower;
+	private Client client;
+
+	@Before
+	public void setUp() throws Exception {
+		leader = EmbeddedServer.start(0, new HashMap<>());
+		Map<String, String> properties = new HashMap<>();
+		properties.put("replication.leader", EmbeddedServer.uri(leader).toString());
+		properties.put("replication.wait", "1000");
+		follower = EmbeddedServer.start(0, properties);
+		client = ClientBuilder.newClient().register(JacksonFeature.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		follower.stop();
+		leader.stop();
+	}
+
+	private WebTarget messages(Server server) {
+		return client.target(EmbeddedServer.uri(server)).path("message");
+	}
+
+	private static Message message(String id, String recipientId) {
+		Message result = new Message();
+		result.setId(id);
+		result.setConversationId("c");
+		result.setRecipientIds(new String[] { recipientId });
+		return result;
+	}
+
+	private void post(Server server, Message... messages) {
+		assertThat(messages(server).request().post(Entity.entity(asList(messages), MediaType.APPLICATION_JSON))
+				.getStatus()).isEqualTo(200);
+	}
+
+	private List<Message> get(Server server) {
+		return messages(server).request(MediaType.APPLICATION_JSON).get(MESSAGE_LIST);
+	}
+
+	private Map<?, ?> status(Server server) {
+		return client.target(EmbeddedServer.uri(server)).path("replication").request(MediaType.APPLICATION_JSON)
+				.get(Map.class);
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.getAsBoolean()) {
+			assertThat(System.currentTimeMillis()).as("condition met in time").isLessThan(deadline);
+			Thread.sleep(20L);
+		}
+	}
+
+	private static List<String> sequenceKeys(List<Message> messages) {
+		List<String> result = new ArrayList<>();
+		messages.forEach(m -> result.add(m.getSequenceKey()));
+		return result;
+	}
+
+	@Test
+	public void should_replicate_messages_with_leader_sequence_keys() throws InterruptedException {
+		post(leader, message("1", "a"), message("2", "b"));
+		post(leader, message("3", "a"));
+		await(() -> get(follower).size() == 3);
+		assertThat(sequenceKeys(get(follower))).isEqualTo(sequenceKeys(get(leader)));
+	}
+
+	@Test
+	public void should_forward_posts_to_leader() throws InterruptedException {
+		post(follower, message("1", "a"));
+		assertThat(get(leader)).extracting(Message::getId).containsExactly("1");
+		await(() -> get(follower).size() == 1);
+	}
+
+	@Test
+	public void should_wake_long_polls_on_follower() throws Exception {
+		Future<List<Message>> poll = messages(follower).queryParam("wait", true).queryParam("recipient-id", "a")
+				.request(MediaType.APPLICATION_JSON).async().get(MESSAGE_LIST);
+		post(leader, message("1", "b"), message("2", "a"));
+		assertThat(poll.get()).extracting(Message::getId).containsExactly("2");
+	}
+
+	@Test
+	public void should_expose_replication_lag() throws InterruptedException {
+		assertThat(status(leader).get("role")).isEqualTo("leader");
+		post(leader, message("1", "a"));
+		await(() -> Integer.valueOf(1).equals(status(follower).get("appliedCount")));
+		Map<?, ?> status = status(follower);
+		assertThat(status.get("role")).isEqualTo("follower");
+		assertThat(status.get("connected")).isEqualTo(true);
+		assertThat(status.get("lastAppliedSequenceKey")).isEqualTo(get(leader).get(0).getSequenceKey());
+		assertThat(((Number) status.get("lagMillis")).longValue()).isBetween(0L, TIMEOUT);
+	}
+
+}
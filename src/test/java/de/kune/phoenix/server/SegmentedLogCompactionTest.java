@@ -0,0 +1,90 @@
+package de.kune.phoenix.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.kune.phoenix.server.ObjectStoreTest.TestElement;
+
+public class SegmentedLogCompactionTest {
+
+	private static final String DIRECTORY = "test-compaction-store";
+
+	private SegmentedLogObjectStore<TestElement, String> store;
+
+	@Before
+	public void setUp() {
+		store = SegmentedLogObjectStore.getInstance(DIRECTORY, 1024);
+		store.clear();
+	}
+
+	private List<TestElement> add(int count) {
+		List<TestElement> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			TestElement element = new TestElement();
+			element.setId(store.generateSequenceKey());
+			store.add(element);
+			result.add(element);
+		}
+		return result;
+	}
+
+	private static SegmentedLogObjectStore<TestElement, String> reopen() {
+		return SegmentedLogObjectStore.getInstance(DIRECTORY, 1024);
+	}
+
+	@Test
+	public void should_drop_oldest_segments_exceeding_count() {
+		List<TestElement> elements = add(200);
+		store.enableCompaction(new RetentionPolicy(0L, TimeUnit.MILLISECONDS, 50L, 0L), 0.0, 1, TimeUnit.HOURS);
+		CompactionStats stats = store.compact();
+		assertThat(stats.getSegmentsDropped()).isGreaterThan(0);
+		assertThat(stats.getBytesReclaimed()).isGreaterThan(0L);
+		int retained = store.get().size();
+		assertThat(retained).isBetween(1, 50);
+		assertThat(stats.getElementsExpired()).isEqualTo(200 - retained);
+		assertThat(store.get()).containsExactlyElementsOf(elements.subList(200 - retained, 200));
+		assertThat(reopen().get()).containsExactlyElementsOf(elements.subList(200 - retained, 200));
+	}
+
+	@Test
+	public void should_drop_segments_exceeding_age() {
+		List<TestElement> elements = add(200);
+		for (File file : new File(DIRECTORY).listFiles()) {
+			file.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+		}
+		List<TestElement> recent = add(1);
+		store.enableCompaction(new RetentionPolicy(1L, TimeUnit.MINUTES, 0L, 0L), 0.0, 1, TimeUnit.HOURS);
+		CompactionStats stats = store.compact();
+		assertThat(stats.getElementsExpired()).isGreaterThan(0);
+		assertThat(store.get()).doesNotContain(elements.get(0)).contains(recent.get(0));
+	}
+
+	@Test
+	public void should_rewrite_partially_dead_segments() {
+		List<TestElement> elements = add(200);
+		List<TestElement> kept = new ArrayList<>();
+		for (int i = 0; i < elements.size(); i++) {
+			if (i % 4 == 0) {
+				kept.add(elements.get(i));
+			} else {
+				store.remove(elements.get(i));
+			}
+		}
+		store.enableCompaction(RetentionPolicy.UNLIMITED, 0.5, 1, TimeUnit.HOURS);
+		CompactionStats stats = store.compact();
+		assertThat(stats.getSegmentsDropped()).isEqualTo(0);
+		assertThat(stats.getSegmentsRewritten()).isGreaterThan(0);
+		assertThat(stats.getBytesReclaimed()).isGreaterThan(0L);
+		assertThat(store.get()).containsExactlyElementsOf(kept);
+		assertThat(store.compact().getSegmentsRewritten()).isEqualTo(0);
+		assertThat(reopen().get()).containsExactlyElementsOf(kept);
+	}
+
+}
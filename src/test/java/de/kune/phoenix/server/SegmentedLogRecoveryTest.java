@@ -0,0 +1,100 @@
+package de.kune.phoenix.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.kune.phoenix.server.ObjectStoreTest.TestElement;
+
+public class SegmentedLogRecoveryTest {
+
+	private static final String DIRECTORY = "test-recovery-store";
+
+	private static final File LOG = new File(DIRECTORY, String.format("%020d.log", 0L));
+
+	private SegmentedLogObjectStore<TestElement, String> store;
+
+	@Before
+	public void setUp() {
+		store = reopen();
+		store.clear();
+	}
+
+	private static SegmentedLogObjectStore<TestElement, String> reopen() {
+		return SegmentedLogObjectStore.getInstance(DIRECTORY, 1024 * 1024);
+	}
+
+	private List<TestElement> add(int count) {
+		List<TestElement> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			TestElement element = new TestElement();
+			element.setId(store.generateSequenceKey());
+			store.add(element);
+			result.add(element);
+		}
+		return result;
+	}
+
+	private static void append(byte[] bytes) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(LOG, "rw")) {
+			file.seek(file.length());
+			file.write(bytes);
+		}
+	}
+
+	private void assertRecovered(List<TestElement> expected) {
+		SegmentedLogObjectStore<TestElement, String> recovered = reopen();
+		assertThat(recovered.get()).containsExactlyElementsOf(expected);
+		store = recovered;
+		List<TestElement> all = new ArrayList<>(expected);
+		all.addAll(add(1));
+		assertThat(reopen().get()).containsExactlyElementsOf(all);
+	}
+
+	@Test
+	public void should_truncate_a_torn_record_header() throws Exception {
+		List<TestElement> elements = add(3);
+		append(new byte[] { 0, 0 });
+		assertRecovered(elements);
+	}
+
+	@Test
+	public void should_truncate_a_torn_indexed_record() throws Exception {
+		List<TestElement> elements = add(3);
+		try (RandomAccessFile file = new RandomAccessFile(LOG, "rw")) {
+			file.setLength(file.length() - 2);
+		}
+		assertRecovered(elements.subList(0, 2));
+	}
+
+	@Test
+	public void should_truncate_records_with_invalid_lengths() throws Exception {
+		List<TestElement> elements = add(3);
+		for (int length : new int[] { 0, -1, Integer.MAX_VALUE }) {
+			append(ByteBuffer.allocate(12).putInt(length).putInt(0).putInt(42).array());
+			assertRecovered(elements);
+			elements = new ArrayList<>(store.get());
+		}
+	}
+
+	@Test
+	public void should_truncate_indexed_records_with_checksum_mismatches() throws Exception {
+		List<TestElement> elements = add(3);
+		try (RandomAccessFile file = new RandomAccessFile(LOG, "rw")) {
+			file.seek(file.length() - 1);
+			int last = file.read();
+			file.seek(file.length() - 1);
+			file.write(last ^ 0xff);
+		}
+		assertRecovered(elements.subList(0, 2));
+	}
+
+}
@@ -0,0 +1,86 @@
+package de.kune.phoenix.server;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.kune.phoenix.shared.Message;
+
+public class SubscriptionHubTest {
+
+	private ObjectStore<Message, String, String> store;
+	private SubscriptionHub hub;
+
+	@Before
+	public void setUp() {
+		store = new TransientInMemoryObjectStore<>();
+		hub = new SubscriptionHub(store);
+	}
+
+	private static Message message(String id, String conversationId, String... recipientIds) {
+		Message result = new Message();
+		result.setId(id);
+		result.setConversationId(conversationId);
+		result.setRecipientIds(recipientIds);
+		return result;
+	}
+
+	private Message add(String id, String conversationId, String... recipientIds) {
+		Message result = message(id, conversationId, recipientIds);
+		store.addAllIfAbsent(asList(result), Message::setSequenceKey);
+		return result;
+	}
+
+	@Test
+	public void should_only_wake_subscriptions_of_recipients() {
+		CompletableFuture<Set<Message>> a = hub.subscribe("a", null, null);
+		CompletableFuture<Set<Message>> b = hub.subscribe("b", null, null);
+		Message toB = add("1", "c", "b");
+		assertThat(a).isNotDone();
+		assertThat(b.join()).containsOnly(toB);
+		Message toA = add("2", "c", "a", "c");
+		assertThat(a.join()).containsOnly(toA);
+		assertThat(hub.getSubscriptionCount()).isZero();
+	}
+
+	@Test
+	public void should_complete_with_present_messages() {
+		Message first = add("1", "c", "a");
+		assertThat(hub.subscribe("a", null, null).join()).containsOnly(first);
+		CompletableFuture<Set<Message>> after = hub.subscribe("a", null, first.getSequenceKey());
+		assertThat(after).isNotDone();
+		after.cancel(false);
+		assertThat(hub.getSubscriptionCount()).isZero();
+	}
+
+	@Test
+	public void should_route_by_conversation_without_recipient() {
+		CompletableFuture<Set<Message>> conversation = hub.subscribe(null, "c", null);
+		CompletableFuture<Set<Message>> recipientInConversation = hub.subscribe("a", "d", null);
+		CompletableFuture<Set<Message>> any = hub.subscribe(null, null, null);
+		Message message = add("1", "c", "a");
+		assertThat(conversation.join()).containsOnly(message);
+		assertThat(any.join()).containsOnly(message);
+		assertThat(recipientInConversation).isNotDone();
+		assertThat(hub.getSubscriptionCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void should_wake_partitioned_subscriptions_once_visible() {
+		PartitionedObjectStore<Message, String> partitioned = new PartitionedObjectStore<>(
+				asList(new TransientInMemoryObjectStore<>(), new TransientInMemoryObjectStore<>()),
+				Message::getConversationId);
+		SubscriptionHub partitionedHub = new SubscriptionHub(partitioned);
+		CompletableFuture<Set<Message>> a = partitionedHub.subscribe("a", null, null);
+		Message message = message("1", "c", "a");
+		partitioned.addAllIfAbsent(asList(message), Message::setSequenceKey);
+		assertThat(a.join()).containsOnly(message);
+		assertThat(partitioned.getAfter(null, 10).getElements()).containsOnly(message);
+	}
+
+}